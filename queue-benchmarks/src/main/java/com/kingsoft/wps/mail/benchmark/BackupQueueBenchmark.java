@@ -0,0 +1,128 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.backup.RedisBackupQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 备份队列在不同积压规模下的开销
+ * <p>
+ * backupPopTask：循环取出备份队列的一个元素（rpoplpush），与备份队列的长度无关；<br>
+ * pushPopFinishTask：备份队列索引中已有 inFlight 个执行中的任务时，插入、获取、完成一个任务，
+ * 完成任务通过备份队列索引删除，耗时不随 inFlight 增长
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackupQueueBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark_backup_queue";
+
+    /**
+     * 每次获取的任务数
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * 备份队列的长度以及备份队列索引中执行中的任务数
+     */
+    @Param({"100", "10000", "100000"})
+    public int inFlight;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    private RedisBackupQueue backupQueue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":" + KMQueueManager.SAFE)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .build();
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+        backupQueue = new RedisBackupQueue(kmQueueManager);
+        clear();
+
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            // 备份队列中放入还没有建立索引的任务
+            byte[] backUpQueueName = SafeEncoder.encode(backupQueue.getName());
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < inFlight; i++) {
+                pipeline.lpush(backUpQueueName, kmQueueManager.getTaskCodec().encode(newTask()));
+            }
+            pipeline.sync();
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+
+        // 备份队列索引中放入执行中的任务
+        for (int i = 0; i < inFlight; i += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, inFlight - i);
+            List<Task> tasks = new ArrayList<>();
+            for (int j = 0; j < count; j++) {
+                tasks.add(newTask());
+            }
+            taskQueue.pushTasks(tasks);
+            tasks = taskQueue.popTasks(count, 0);
+            if (tasks.size() != count) {
+                throw new IllegalStateException("Expected " + count + " tasks, got " + tasks.size());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        clear();
+        kmQueueManager.destroy();
+    }
+
+    @Benchmark
+    public Task backupPopTask() {
+        return backupQueue.popTask();
+    }
+
+    @Benchmark
+    public Task pushPopFinishTask() {
+        taskQueue.pushTask(newTask());
+        Task task = taskQueue.popTask();
+        taskQueue.finishTask(task);
+        return task;
+    }
+
+    /**
+     * 清空任务队列、备份队列以及备份队列索引，并重新添加备份队列循环标记
+     */
+    private void clear() {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME, QUEUE_NAME + Constant.UNIQUE_SUFFIX, backupQueue.getName(),
+                    backupQueue.getTasksKey(0), backupQueue.getIndexKey(0));
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        backupQueue.initQueue();
+    }
+
+    private static Task newTask() {
+        return new Task(QUEUE_NAME, null, "", "mail proxy task", new Task.TaskStatus());
+    }
+}
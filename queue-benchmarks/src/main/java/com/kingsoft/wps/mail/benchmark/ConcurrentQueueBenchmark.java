@@ -0,0 +1,69 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程插入、获取任务的吞吐量，Redis模式与本地模式（{@link KMQueueManager.Builder#local(String...)}）对比，
+ * 两者之差即为Redis网络往返的开销；线程数通过 -t 参数指定，例如 -t 1、-t 8
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentQueueBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark_concurrent_queue";
+
+    @Param({"redis", "local"})
+    public String backend;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if ("local".equals(backend)) {
+            kmQueueManager = KMQueueManager.Builder.local(QUEUE_NAME).build();
+        } else {
+            kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME)
+                    .setMaxWaitMillis(-1L)
+                    .setMaxTotal(600)
+                    .setMaxIdle(300)
+                    .build();
+        }
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        if ("redis".equals(backend)) {
+            Jedis jedis = kmQueueManager.getResource();
+            try {
+                jedis.del(QUEUE_NAME);
+            } finally {
+                kmQueueManager.returnResource(jedis);
+            }
+        }
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 每个线程插入一个任务，再取出一个任务
+     */
+    @Benchmark
+    public Task pushPopTask() {
+        taskQueue.pushTask(new Task(QUEUE_NAME, null, "", "mail proxy task", new Task.TaskStatus()));
+        return taskQueue.popTask();
+    }
+}
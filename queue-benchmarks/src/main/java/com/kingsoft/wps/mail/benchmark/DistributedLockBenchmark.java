@@ -0,0 +1,69 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.distributed.lock.DistributedLock;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁的请求、释放开销
+ * <p>
+ * 每个线程使用单独的Jedis连接（Jedis不是线程安全的），请求超时时长为0，与备份队列监控的用法一致：<br>
+ * uncontended：每个线程使用不同的锁，请求总是成功；<br>
+ * contended：所有线程竞争同一个锁，请求失败时会休眠一个自旋周期（默认100ms）后返回，
+ * 可以通过 -Ddistribute.lock.default.acquire.resolution.millis 调整
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+@Fork(1)
+@State(Scope.Thread)
+public class DistributedLockBenchmark {
+
+    private static final String LOCK_KEY = "benchmark_lock";
+
+    private static final int LOCK_EXPIRY_MILLIS = 60 * 1000;
+
+    private Jedis jedis;
+
+    private DistributedLock contendedLock;
+
+    private DistributedLock uncontendedLock;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        jedis = new Jedis(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort());
+        contendedLock = new DistributedLock(jedis, LOCK_KEY, 0, LOCK_EXPIRY_MILLIS);
+        uncontendedLock = new DistributedLock(jedis, LOCK_KEY + "_" + UUID.randomUUID(), 0, LOCK_EXPIRY_MILLIS);
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() {
+        contendedLock.release();
+        uncontendedLock.release();
+        jedis.close();
+    }
+
+    @Benchmark
+    public boolean uncontended() throws InterruptedException {
+        return acquireAndRelease(uncontendedLock);
+    }
+
+    @Benchmark
+    public boolean contended() throws InterruptedException {
+        return acquireAndRelease(contendedLock);
+    }
+
+    private static boolean acquireAndRelease(DistributedLock lock) throws InterruptedException {
+        boolean acquired = lock.acquire();
+        if (acquired) {
+            lock.release();
+        }
+        return acquired;
+    }
+}
@@ -0,0 +1,146 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的延迟直方图，与HdrHistogram相同的对数-线性分桶，占用固定内存，记录不分配对象
+ * <p>
+ * 小于{@link #SUB_BUCKET_COUNT}的值精确记录；更大的值按2的幂分段，每段再等分为{@link #SUB_BUCKET_COUNT}个桶，
+ * 相对误差不超过 1/{@link #SUB_BUCKET_COUNT}（即两位有效数字）。百分位数返回所在桶的上界，不会低估延迟
+ */
+public class LatencyHistogram {
+
+    /**
+     * 每段的桶数，2的幂
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 覆盖 0 ~ Long.MAX_VALUE 的桶数
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalValue = new AtomicLong();
+
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * 记录一个值，负数按0记录
+     *
+     * @param value 值，例如延迟的微秒数
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        maxValue.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * 将当前记录的值累加到另一个直方图，并清空当前直方图，用于按时间段统计
+     * <p>
+     * 并发记录的值要么计入本次，要么保留到下一次，不会丢失；最大值按段统计，可能略大于实际值
+     *
+     * @param target 目标直方图
+     */
+    public void drainTo(LatencyHistogram target) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = counts.getAndSet(i, 0);
+            if (c > 0) {
+                target.counts.addAndGet(i, c);
+                count += c;
+            }
+        }
+        totalCount.addAndGet(-count);
+        target.totalCount.addAndGet(count);
+        target.totalValue.addAndGet(totalValue.getAndSet(0));
+        long max = maxValue.getAndSet(0);
+        target.maxValue.accumulateAndGet(max, Math::max);
+    }
+
+    /**
+     * 将另一个直方图的值累加到当前直方图，另一个直方图不变
+     *
+     * @param other 另一个直方图
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.counts.get(i);
+            if (c > 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalValue.addAndGet(other.totalValue.get());
+        maxValue.accumulateAndGet(other.maxValue.get(), Math::max);
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * 获取百分位数
+     *
+     * @param percentile 百分位，0 ~ 100
+     * @return 不小于该百分位上所有值的桶上界，没有记录时返回0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * 值所在的桶
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
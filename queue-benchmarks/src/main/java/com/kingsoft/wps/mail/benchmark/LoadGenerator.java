@@ -0,0 +1,531 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.extension.monitor.BackupQueueMonitor;
+import com.kingsoft.wps.mail.utils.Assert;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 端到端压测工具，用于根据实际数据规划任务队列以及连接池的大小（setMaxTotal/setMaxIdle）
+ * <p>
+ * 通过{@link KMQueueManager}创建多个任务队列，每个任务队列启动若干生产者、消费者线程，统计：
+ * <ul>
+ * <li>push：生产者插入一个任务的耗时，包含获取连接的等待时间；</li>
+ * <li>pop：任务从插入到被消费者取出的延迟；</li>
+ * <li>ack：任务从插入到被消费者完成的延迟；</li>
+ * </ul>
+ * 每个统计周期输出各个任务队列的吞吐量、重试次数、积压任务数、延迟的百分位数以及连接池的使用情况，结束时输出汇总。
+ * 限速时以计划的插入时间作为起点，生产者落后于计划时，落后的时间同样计入延迟。
+ * <p>
+ * 安全队列可以通过{@value #PREFIX}failRate让消费者按比例不完成任务，由备份队列监控（本地模式下由队列管理器）
+ * 在执行超时后重试，重试的任务仍以第一次插入的时间计算延迟。
+ * <p>
+ * 系统属性（均以{@value #PREFIX}为前缀）：
+ * <ul>
+ * <li>redis：embedded - 内嵌的Redis（默认，同样支持-Dkmq.redis.port、-Dkmq.redis.latency），local - 本地模式，host:port - 指定的Redis</li>
+ * <li>queues：逗号分隔的任务队列，格式与{@link KMQueueManager.Builder}相同，默认 load_default_queue,load_safe_queue:safe</li>
+ * <li>producers、consumers：每个任务队列的生产者、消费者线程数，默认2、4</li>
+ * <li>rate：每个生产者每秒插入的任务数，默认0，即不限速</li>
+ * <li>duration、interval、drain：压测时长、统计周期、生产者停止后等待消费完成的最长时间，单位：s，默认30、5、10</li>
+ * <li>dataSize：任务数据的长度，默认256</li>
+ * <li>batch：消费者每次获取的任务数，默认1</li>
+ * <li>failRate：安全队列中不完成的任务的比例，默认0</li>
+ * <li>protectedTimeout、retryTimes：执行超时时间（ms）以及重试次数，默认10000、3</li>
+ * <li>maxTotal、maxIdle：连接池的最大连接数、最大空闲连接数，默认600、300</li>
+ * <li>verbose：是否输出队列的INFO日志，默认false</li>
+ * </ul>
+ * 例如：
+ * <pre>
+ * java -Dkmq.load.queues=mail_queue:safe -Dkmq.load.consumers=16 -Dkmq.load.rate=500 -Dkmq.load.maxTotal=32 \
+ *     -cp queue-benchmarks/target/benchmarks.jar com.kingsoft.wps.mail.benchmark.LoadGenerator
+ * </pre>
+ * 注意，使用指定的Redis时不会清空任务队列，之前遗留的任务会被消费并完成，但不计入统计
+ */
+public class LoadGenerator {
+
+    private static final String PREFIX = "kmq.load.";
+
+    private static final String TASK_TYPE = "load";
+
+    /**
+     * 消费者获取任务的超时时间，单位：ms
+     */
+    private static final long POP_TIMEOUT_MS = 100;
+
+    /**
+     * 队列的日志，默认只输出WARNING以上的日志，避免备份队列监控的日志影响压测结果的输出
+     */
+    private static final Logger queueLogger = Logger.getLogger("com.kingsoft.wps.mail");
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final String redis;
+    private final String[] queues;
+    private final int producers;
+    private final int consumers;
+    private final int rate;
+    private final int duration;
+    private final int interval;
+    private final int drain;
+    private final int dataSize;
+    private final int batch;
+    private final double failRate;
+    private final long protectedTimeout;
+    private final int retryTimes;
+    private final int maxTotal;
+    private final int maxIdle;
+
+    /**
+     * 本次压测的标识，写入任务数据，用于区分之前遗留的任务
+     */
+    private final String runId = UUID.randomUUID().toString().substring(0, 8);
+
+    /**
+     * 任务队列名称 -> 统计
+     */
+    private final Map<String, QueueStats> stats = new LinkedHashMap<>();
+
+    private volatile boolean producing = true;
+
+    private volatile boolean consuming = true;
+
+    private KMQueueManager kmQueueManager;
+
+    private BackupQueueMonitor backupQueueMonitor;
+
+    private ScheduledExecutorService monitorExecutor;
+
+    public LoadGenerator() {
+        this.redis = System.getProperty(PREFIX + "redis", "embedded");
+        this.queues = System.getProperty(PREFIX + "queues", "load_default_queue,load_safe_queue:safe").split(",");
+        this.producers = Integer.getInteger(PREFIX + "producers", 2);
+        this.consumers = Integer.getInteger(PREFIX + "consumers", 4);
+        this.rate = Integer.getInteger(PREFIX + "rate", 0);
+        this.duration = Integer.getInteger(PREFIX + "duration", 30);
+        this.interval = Integer.getInteger(PREFIX + "interval", 5);
+        this.drain = Integer.getInteger(PREFIX + "drain", 10);
+        this.dataSize = Integer.getInteger(PREFIX + "dataSize", 256);
+        this.batch = Integer.getInteger(PREFIX + "batch", 1);
+        this.failRate = Double.parseDouble(System.getProperty(PREFIX + "failRate", "0"));
+        this.protectedTimeout = Long.getLong(PREFIX + "protectedTimeout", 10000);
+        this.retryTimes = Integer.getInteger(PREFIX + "retryTimes", 3);
+        this.maxTotal = Integer.getInteger(PREFIX + "maxTotal", 600);
+        this.maxIdle = Integer.getInteger(PREFIX + "maxIdle", 300);
+
+        Assert.isTrue(producers > 0 && consumers > 0, "Param producers and consumers must be greater than 0");
+        Assert.isTrue(duration > 0 && interval > 0, "Param duration and interval must be greater than 0");
+        Assert.isTrue(batch > 0, "Param batch must be greater than 0");
+        Assert.isTrue(failRate >= 0 && failRate < 1, "Param failRate must be in [0, 1)");
+
+        for (String queue : queues) {
+            String[] queueInfo = queue.trim().split(":");
+            String name = queueInfo[0];
+            boolean safe = queueInfo.length > 1 && KMQueueManager.SAFE.equals(queueInfo[1]);
+            stats.put(name, new QueueStats(name, safe));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!Boolean.getBoolean(PREFIX + "verbose")) {
+            queueLogger.setLevel(Level.WARNING);
+        }
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    /**
+     * 执行压测，输出统计结果
+     *
+     * @throws Exception 初始化或者关闭队列管理器异常
+     */
+    public void run() throws Exception {
+        init();
+        printConfig();
+
+        List<Thread> producerThreads = new ArrayList<>();
+        List<Thread> consumerThreads = new ArrayList<>();
+        for (QueueStats queueStats : stats.values()) {
+            TaskQueue taskQueue = kmQueueManager.getTaskQueue(queueStats.name);
+            for (int i = 0; i < consumers; i++) {
+                consumerThreads.add(start(() -> consume(taskQueue, queueStats), "load-consumer-" + queueStats.name + "-" + i));
+            }
+            for (int i = 0; i < producers; i++) {
+                producerThreads.add(start(() -> produce(taskQueue, queueStats), "load-producer-" + queueStats.name + "-" + i));
+            }
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long lastReport = start;
+        while (lastReport < end) {
+            long next = Math.min(lastReport + TimeUnit.SECONDS.toNanos(interval), end);
+            sleepUntil(next);
+            if (next == end) {
+                producing = false;
+                for (Thread thread : producerThreads) {
+                    thread.join();
+                }
+            }
+            report((next - start) / 1e9, (next - lastReport) / 1e9);
+            lastReport = next;
+        }
+
+        // 等待消费完成
+        long drainStart = System.nanoTime();
+        long drainEnd = drainStart + TimeUnit.SECONDS.toNanos(drain);
+        while (pending() > 0 && System.nanoTime() < drainEnd) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        consuming = false;
+        for (Thread thread : consumerThreads) {
+            thread.join();
+        }
+        double drained = (System.nanoTime() - drainStart) / 1e9;
+        report(duration + drained, drained);
+
+        printSummary(duration);
+        destroy();
+    }
+
+    private void init() {
+        String[] queueNames = new String[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            queueNames[i] = queues[i].trim();
+        }
+        boolean hasSafeQueue = stats.values().stream().anyMatch(queueStats -> queueStats.safe);
+
+        if ("local".equals(redis)) {
+            kmQueueManager = KMQueueManager.Builder.local(queueNames)
+                    .setProtectedTimeout(protectedTimeout)
+                    .setRetryTimes(retryTimes)
+                    .build();
+            kmQueueManager.init();
+            return;
+        }
+
+        String host;
+        int port;
+        if ("embedded".equals(redis)) {
+            host = EmbeddedRedis.HOST;
+            port = EmbeddedRedis.getInstance().getPort();
+        } else {
+            String[] hostPort = redis.split(":");
+            Assert.isTrue(hostPort.length == 2, "Param " + PREFIX + "redis must be embedded, local or host:port");
+            host = hostPort[0];
+            port = Integer.parseInt(hostPort[1]);
+        }
+        kmQueueManager = new KMQueueManager.Builder(host, port, queueNames)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(maxTotal)
+                .setMaxIdle(maxIdle)
+                .build();
+        kmQueueManager.init();
+
+        if (hasSafeQueue) {
+            // 备份队列监控，统计超过重试次数而丢弃的任务
+            backupQueueMonitor = new BackupQueueMonitor.Builder(host, port, kmQueueManager.getBackUpQueueName())
+                    .setMaxWaitMillis(-1L)
+                    .setMaxTotal(8)
+                    .setMaxIdle(8)
+                    .setProtectedTimeout(protectedTimeout)
+                    .setRetryTimes(retryTimes)
+                    .setPipeline((taskQueue, task) -> {
+                        QueueStats queueStats = stats.get(task.getQueue());
+                        if (queueStats != null && enqueueTime(task) >= 0) {
+                            queueStats.discarded.incrementAndGet();
+                        }
+                    })
+                    .build();
+            long monitorInterval = Math.max(10, Math.min(protectedTimeout / 2, 1000));
+            monitorExecutor = Executors.newSingleThreadScheduledExecutor();
+            monitorExecutor.scheduleWithFixedDelay(backupQueueMonitor::monitor, monitorInterval, monitorInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void destroy() throws Exception {
+        if (monitorExecutor != null) {
+            monitorExecutor.shutdownNow();
+            monitorExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            backupQueueMonitor.destroy();
+        }
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 生产者：按计划的时间插入任务，不限速时连续插入
+     */
+    private void produce(TaskQueue taskQueue, QueueStats queueStats) {
+        long period = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < dataSize) {
+            padding.append('x');
+        }
+
+        long intended = System.nanoTime();
+        while (producing) {
+            if (period > 0) {
+                sleepUntil(intended);
+            } else {
+                intended = System.nanoTime();
+            }
+            Task task = new Task(queueStats.name, null, TASK_TYPE, runId + "|" + intended + "|" + padding, new Task.TaskStatus());
+            Task pushed = taskQueue.pushTask(task);
+            queueStats.push.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+            if (pushed != null) {
+                queueStats.produced.incrementAndGet();
+            } else {
+                queueStats.pushFailed.incrementAndGet();
+            }
+            intended += period;
+        }
+    }
+
+    /**
+     * 消费者：获取任务，按比例不完成安全队列中的任务，其它任务批量完成
+     */
+    private void consume(TaskQueue taskQueue, QueueStats queueStats) {
+        while (consuming) {
+            List<Task> tasks = taskQueue.popTasks(batch, POP_TIMEOUT_MS);
+            if (tasks.isEmpty()) {
+                continue;
+            }
+            long now = System.nanoTime();
+            List<Task> finished = new ArrayList<>(tasks.size());
+            long[] enqueueTimes = new long[tasks.size()];
+            int count = 0;
+            for (Task task : tasks) {
+                long enqueueTime = enqueueTime(task);
+                if (enqueueTime < 0) {// 之前遗留的任务，直接完成
+                    finished.add(task);
+                    continue;
+                }
+                queueStats.consumed.incrementAndGet();
+                queueStats.pop.record(TimeUnit.NANOSECONDS.toMicros(now - enqueueTime));
+                if (Constant.RETRY.equals(task.getTaskStatus().getState())) {
+                    queueStats.retries.incrementAndGet();
+                }
+                if (queueStats.safe && failRate > 0 && ThreadLocalRandom.current().nextDouble() < failRate) {
+                    queueStats.unfinished.incrementAndGet();
+                    continue;
+                }
+                finished.add(task);
+                enqueueTimes[count++] = enqueueTime;
+            }
+            taskQueue.finishTasks(finished);
+            now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                queueStats.ack.record(TimeUnit.NANOSECONDS.toMicros(now - enqueueTimes[i]));
+            }
+            queueStats.acked.addAndGet(count);
+        }
+    }
+
+    /**
+     * 从任务数据中读取插入的时间
+     *
+     * @return System.nanoTime()，不是本次压测插入的任务返回-1
+     */
+    private long enqueueTime(Task task) {
+        String data = task.getData();
+        if (!TASK_TYPE.equals(task.getType()) || data == null || !data.startsWith(runId + "|")) {
+            return -1;
+        }
+        int end = data.indexOf('|', runId.length() + 1);
+        return Long.parseLong(data.substring(runId.length() + 1, end));
+    }
+
+    /**
+     * 已插入但还没有完成、也没有被丢弃的任务数
+     */
+    private long pending() {
+        long pending = 0;
+        for (QueueStats queueStats : stats.values()) {
+            pending += queueStats.produced.get() - queueStats.acked.get() - queueStats.discarded.get();
+        }
+        return pending;
+    }
+
+    private void printConfig() {
+        System.out.println("========================================");
+        System.out.println("redis: " + redis + ", queues: " + String.join(",", queues));
+        System.out.println("producers/queue: " + producers + ", consumers/queue: " + consumers
+                + ", rate/producer: " + (rate > 0 ? rate + "/s" : "unlimited") + ", batch: " + batch + ", dataSize: " + dataSize);
+        System.out.println("duration: " + duration + "s, failRate: " + failRate
+                + ", protectedTimeout: " + protectedTimeout + "ms, retryTimes: " + retryTimes
+                + ", maxTotal: " + maxTotal + ", maxIdle: " + maxIdle);
+        System.out.println("========================================");
+    }
+
+    /**
+     * 输出一个统计周期的结果，并累加到汇总中
+     *
+     * @param elapsed 已执行的时间，单位：s
+     * @param seconds 统计周期的时长，单位：s
+     */
+    private void report(double elapsed, double seconds) {
+        seconds = Math.max(seconds, 0.001);
+        for (QueueStats queueStats : stats.values()) {
+            long produced = queueStats.produced.get();
+            long consumed = queueStats.consumed.get();
+            long acked = queueStats.acked.get();
+            long retries = queueStats.retries.get();
+            LatencyHistogram pop = new LatencyHistogram();
+            LatencyHistogram ack = new LatencyHistogram();
+            queueStats.pop.drainTo(pop);
+            queueStats.ack.drainTo(ack);
+            queueStats.totalPop.add(pop);
+            queueStats.totalAck.add(ack);
+
+            System.out.println(String.format("[%6.1fs] %-24s push %8.0f/s  pop %8.0f/s  ack %8.0f/s  retry %6d  backlog %8d | pop p50 %s p99 %s | ack p50 %s p99 %s",
+                    elapsed, queueStats.label(),
+                    (produced - queueStats.lastProduced) / seconds,
+                    (consumed - queueStats.lastConsumed) / seconds,
+                    (acked - queueStats.lastAcked) / seconds,
+                    retries - queueStats.lastRetries,
+                    produced - acked - queueStats.discarded.get(),
+                    millis(pop.getValueAtPercentile(50)), millis(pop.getValueAtPercentile(99)),
+                    millis(ack.getValueAtPercentile(50)), millis(ack.getValueAtPercentile(99))));
+
+            queueStats.lastProduced = produced;
+            queueStats.lastConsumed = consumed;
+            queueStats.lastAcked = acked;
+            queueStats.lastRetries = retries;
+        }
+
+        Pool<Jedis> pool = kmQueueManager.getPool();
+        if (pool != null) {
+            System.out.println(String.format("[%6.1fs] pool active %d  idle %d  waiters %d  borrow wait mean %dms max %dms",
+                    elapsed, pool.getNumActive(), pool.getNumIdle(), pool.getNumWaiters(),
+                    pool.getMeanBorrowWaitTimeMillis(), pool.getMaxBorrowWaitTimeMillis()));
+        }
+    }
+
+    private void printSummary(int duration) {
+        System.out.println("========================================");
+        for (QueueStats queueStats : stats.values()) {
+            System.out.println(queueStats.label());
+            System.out.println(String.format("  produced %d (%.0f/s), push failed %d, consumed %d, acked %d, retries %d, unfinished %d, discarded %d, pending %d",
+                    queueStats.produced.get(), queueStats.produced.get() / (double) duration, queueStats.pushFailed.get(),
+                    queueStats.consumed.get(), queueStats.acked.get(), queueStats.retries.get(),
+                    queueStats.unfinished.get(), queueStats.discarded.get(),
+                    queueStats.produced.get() - queueStats.acked.get() - queueStats.discarded.get()));
+            printPercentiles("push", queueStats.push);
+            printPercentiles("pop", queueStats.totalPop);
+            printPercentiles("ack", queueStats.totalAck);
+        }
+        System.out.println("========================================");
+    }
+
+    private static void printPercentiles(String name, LatencyHistogram histogram) {
+        StringBuilder line = new StringBuilder(String.format("  %-5s count %9d  mean %s", name, histogram.getTotalCount(), millis((long) histogram.getMean())));
+        for (double percentile : PERCENTILES) {
+            line.append(String.format("  p%s %s", percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile),
+                    millis(histogram.getValueAtPercentile(percentile))));
+        }
+        line.append("  max ").append(millis(histogram.getMax()));
+        System.out.println(line);
+    }
+
+    /**
+     * 微秒转换为毫秒
+     */
+    private static String millis(long micros) {
+        return String.format("%.3fms", micros / 1000.0);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static Thread start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 任务队列的统计
+     */
+    private static class QueueStats {
+
+        private final String name;
+
+        private final boolean safe;
+
+        private final AtomicLong produced = new AtomicLong();
+        private final AtomicLong pushFailed = new AtomicLong();
+        private final AtomicLong consumed = new AtomicLong();
+        private final AtomicLong acked = new AtomicLong();
+
+        /**
+         * 消费者取出的重试任务数
+         */
+        private final AtomicLong retries = new AtomicLong();
+
+        /**
+         * 消费者按failRate没有完成的任务数
+         */
+        private final AtomicLong unfinished = new AtomicLong();
+
+        /**
+         * 超过重试次数被丢弃的任务数，本地模式下不统计
+         */
+        private final AtomicLong discarded = new AtomicLong();
+
+        /**
+         * 插入任务的耗时，单位：us
+         */
+        private final LatencyHistogram push = new LatencyHistogram();
+
+        /**
+         * 消费者记录的当前统计周期的延迟，单位：us
+         */
+        private final LatencyHistogram pop = new LatencyHistogram();
+        private final LatencyHistogram ack = new LatencyHistogram();
+
+        /**
+         * 汇总的延迟，单位：us
+         */
+        private final LatencyHistogram totalPop = new LatencyHistogram();
+        private final LatencyHistogram totalAck = new LatencyHistogram();
+
+        /**
+         * 上一个统计周期结束时的计数，只由输出统计结果的线程访问
+         */
+        private long lastProduced;
+        private long lastConsumed;
+        private long lastAcked;
+        private long lastRetries;
+
+        QueueStats(String name, boolean safe) {
+            this.name = name;
+            this.safe = safe;
+        }
+
+        String label() {
+            return name + "(" + (safe ? KMQueueManager.SAFE : KMQueueManager.DEFAULT) + ")";
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.backup.RedisBackupQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.extension.monitor.BackupQueueMonitor;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 备份队列中有 inFlight 个执行中的任务时，一次监控的耗时
+ * <p>
+ * expired=true：所有任务都已执行超时，监控将其重新放入任务队列；<br>
+ * expired=false：没有执行超时的任务，监控只读取备份队列索引，耗时不随 inFlight 增长
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonitorBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark_monitor_queue";
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"100", "1000", "10000"})
+    public int inFlight;
+
+    @Param({"true", "false"})
+    public boolean expired;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    private RedisBackupQueue backupQueue;
+
+    private BackupQueueMonitor backupQueueMonitor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":" + KMQueueManager.SAFE)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .build();
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+        backupQueue = new RedisBackupQueue(kmQueueManager);
+
+        backupQueueMonitor = new BackupQueueMonitor.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), kmQueueManager.getBackUpQueueName())
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setProtectedTimeout(expired ? 1 : 60 * 60 * 1000)
+                .build();
+    }
+
+    /**
+     * 每次监控之前，重新放入 inFlight 个执行中的任务
+     */
+    @Setup(Level.Invocation)
+    public void fill() throws InterruptedException {
+        clear();
+        for (int i = 0; i < inFlight; i += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, inFlight - i);
+            List<Task> tasks = new ArrayList<>();
+            for (int j = 0; j < count; j++) {
+                tasks.add(new Task(QUEUE_NAME, null, "", "mail proxy task", new Task.TaskStatus()));
+            }
+            taskQueue.pushTasks(tasks);
+            taskQueue.popTasks(count, 0);
+        }
+        // 超过protectedTimeout，任务执行超时
+        Thread.sleep(5);
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        clear();
+        backupQueueMonitor.destroy();
+        kmQueueManager.destroy();
+    }
+
+    @Benchmark
+    public void monitor() {
+        backupQueueMonitor.monitor();
+    }
+
+    /**
+     * 清空任务队列以及备份队列索引，保留备份队列循环标记
+     */
+    private void clear() {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME, QUEUE_NAME + Constant.UNIQUE_SUFFIX, backupQueue.getTasksKey(0), backupQueue.getIndexKey(0));
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.codec.JsonTaskCodec;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 安全队列取任务的吞吐量对比：brpop + lpush 两次往返 vs 原子地移入备份队列（popTask）
+ * <p>
+ * 获取任务在队列为空时会阻塞，因此与插入任务组合测试，两者插入任务的开销相同
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PopTaskBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark_pop_queue";
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":" + KMQueueManager.SAFE)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setTaskCodec(new JsonTaskCodec())// 对比的旧方式按JSON格式读写任务
+                .build();
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+    }
+
+    /**
+     * 每次迭代之前清空任务队列、备份队列以及备份队列索引，只保留备份队列的循环标记
+     */
+    @Setup(Level.Iteration)
+    public void clear() {
+        String backUpQueueName = kmQueueManager.getBackUpQueueName();
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME, QUEUE_NAME + Constant.UNIQUE_SUFFIX,
+                    backUpQueueName + Constant.BACKUP_TASKS_SUFFIX, backUpQueueName + Constant.BACKUP_INDEX_SUFFIX);
+            jedis.ltrim(backUpQueueName, -1, -1);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        clear();
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 旧方式：brpop取出任务，再lpush放入备份队列，两次往返之间宕机会丢失任务
+     */
+    @Benchmark
+    public Task pushBrpopLpush() {
+        taskQueue.pushTask(newTask());
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            List<String> result = jedis.brpop(0, QUEUE_NAME);
+            Task task = JSON.parseObject(result.get(1), Task.class);
+            task.getTaskStatus().setExcTimestamp(System.currentTimeMillis());
+            jedis.lpush(kmQueueManager.getBackUpQueueName(), JSON.toJSONString(task));
+            return task;
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    /**
+     * 通过脚本取出任务，并在同一脚本内放入备份队列索引
+     */
+    @Benchmark
+    public Task pushPopTask() {
+        taskQueue.pushTask(newTask());
+        return taskQueue.popTask();
+    }
+
+    private static Task newTask() {
+        return new Task(QUEUE_NAME, null, "", "mail proxy task", new Task.TaskStatus());
+    }
+}
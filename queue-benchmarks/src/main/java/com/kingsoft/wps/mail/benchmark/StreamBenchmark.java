@@ -0,0 +1,91 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.stream.StreamTaskQueue;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 安全队列的吞吐量对比：基于列表的任务队列（备份队列） vs 基于Redis Stream的任务队列（待确认列表）
+ * <p>
+ * 每次调用插入batchSize个任务，再批量获取、完成这些任务，batchSize为1时即逐个获取、完成任务；
+ * 结果为每秒的调用次数，乘以batchSize即为每秒处理的任务数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamBenchmark {
+
+    private static final String LIST_QUEUE_NAME = "benchmark_list_queue";
+
+    private static final String STREAM_QUEUE_NAME = "benchmark_stream_queue";
+
+    @Param({"list", "stream"})
+    public String type;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    private List<Task> tasks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), LIST_QUEUE_NAME + ":" + KMQueueManager.SAFE)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        kmQueueManager.init();
+        if ("stream".equals(type)) {
+            taskQueue = new StreamTaskQueue.Builder(kmQueueManager, STREAM_QUEUE_NAME)
+                    .setMode(KMQueueManager.SAFE)
+                    .build();
+        } else {
+            taskQueue = kmQueueManager.getTaskQueue(LIST_QUEUE_NAME);
+        }
+        tasks = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            tasks.add(new Task(taskQueue.getName(), null, "", "mail proxy task " + i, new Task.TaskStatus()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            String backUpQueueName = kmQueueManager.getBackUpQueueName();
+            jedis.del(LIST_QUEUE_NAME, backUpQueueName, backUpQueueName + Constant.BACKUP_TASKS_SUFFIX, backUpQueueName + Constant.BACKUP_INDEX_SUFFIX,
+                    STREAM_QUEUE_NAME + Constant.STREAM_SUFFIX, STREAM_QUEUE_NAME + Constant.STREAM_HEADER_SUFFIX, STREAM_QUEUE_NAME + Constant.STREAM_SIGNAL_SUFFIX);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 插入batchSize个任务，再批量获取、完成
+     */
+    @Benchmark
+    public int pushPopFinish() {
+        taskQueue.pushTasks(tasks);
+        List<Task> popped = taskQueue.popTasks(batchSize, 0);
+        taskQueue.finishTasks(popped);
+        return popped.size();
+    }
+}
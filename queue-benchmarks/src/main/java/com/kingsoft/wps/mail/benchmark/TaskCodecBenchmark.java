@@ -0,0 +1,79 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.JsonTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 任务编解码的开销，不需要Redis
+ * <p>
+ * codec：json - JSON格式，binary - 二进制格式（默认），compressed - 二进制格式且任务数据超过256字节时压缩；<br>
+ * decodeGetData：解码后读取任务数据，包含压缩数据第一次读取时的解压开销
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TaskCodecBenchmark {
+
+    @Param({"json", "binary", "compressed"})
+    public String codec;
+
+    /**
+     * 任务数据的长度，单位：字符
+     */
+    @Param({"64", "4096"})
+    public int dataSize;
+
+    private TaskCodec taskCodec;
+
+    private Task task;
+
+    private byte[] taskBytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (codec) {
+            case "json":
+                taskCodec = new JsonTaskCodec();
+                break;
+            case "binary":
+                taskCodec = new BinaryTaskCodec();
+                break;
+            case "compressed":
+                taskCodec = new BinaryTaskCodec.Builder().setCompressThreshold(256).build();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+
+        StringBuilder data = new StringBuilder(dataSize);
+        while (data.length() < dataSize) {
+            data.append("{\"uid\":").append(data.length()).append(",\"folder\":\"INBOX\"},");
+        }
+        data.setLength(dataSize);
+        task = new Task("benchmark_codec_queue", null, "mail", data.toString(), new Task.TaskStatus());
+        taskBytes = taskCodec.encode(task);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return taskCodec.encode(task);
+    }
+
+    @Benchmark
+    public Task decode() {
+        return taskCodec.decode(taskBytes);
+    }
+
+    @Benchmark
+    public String decodeGetData() {
+        return taskCodec.decode(taskBytes).getData();
+    }
+}
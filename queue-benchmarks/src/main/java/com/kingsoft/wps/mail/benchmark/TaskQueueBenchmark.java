@@ -0,0 +1,93 @@
+package com.kingsoft.wps.mail.benchmark;
+
+import com.kingsoft.wps.mail.EmbeddedRedis;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 任务队列插入、获取、完成任务的吞吐量，分别测试简单队列和安全队列
+ * <p>
+ * 获取任务在队列为空时会阻塞，因此与插入任务组合测试：pushPopTask - pushTask 即为获取任务的开销，
+ * pushPopFinishTask - pushPopTask 即为完成任务的开销；多线程测试使用 -t 参数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaskQueueBenchmark {
+
+    private static final String QUEUE_NAME = "benchmark_queue";
+
+    @Param({KMQueueManager.DEFAULT, KMQueueManager.SAFE})
+    public String mode;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":" + mode)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .build();
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+    }
+
+    /**
+     * 每次迭代之前清空任务队列和备份队列索引，避免pushTask的积压影响后续迭代
+     */
+    @Setup(Level.Iteration)
+    public void clear() {
+        String backUpQueueName = kmQueueManager.getBackUpQueueName();
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME, QUEUE_NAME + Constant.UNIQUE_SUFFIX,
+                    backUpQueueName + Constant.BACKUP_TASKS_SUFFIX, backUpQueueName + Constant.BACKUP_INDEX_SUFFIX);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        clear();
+        kmQueueManager.destroy();
+    }
+
+    @Benchmark
+    public Task pushTask() {
+        return taskQueue.pushTask(newTask());
+    }
+
+    /**
+     * 每个线程先插入再获取，获取任务时队列不会为空
+     */
+    @Benchmark
+    public Task pushPopTask() {
+        taskQueue.pushTask(newTask());
+        return taskQueue.popTask();
+    }
+
+    @Benchmark
+    public Task pushPopFinishTask() {
+        taskQueue.pushTask(newTask());
+        Task task = taskQueue.popTask();
+        taskQueue.finishTask(task);
+        return task;
+    }
+
+    private static Task newTask() {
+        return new Task(QUEUE_NAME, null, "", "mail proxy task", new Task.TaskStatus());
+    }
+}
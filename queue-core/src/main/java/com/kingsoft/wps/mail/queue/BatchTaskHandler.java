@@ -0,0 +1,24 @@
+package com.kingsoft.wps.mail.queue;
+
+import java.util.List;
+
+/**
+ * 批量任务处理器，一次处理多个任务，便于合并下游的I/O（例如批量写入数据库）
+ * <p>
+ * 返回每个任务是否处理成功，对于安全队列，处理成功的任务通过{@link TaskQueue#finishTasks(List)}批量完成；
+ * 处理失败的任务不会被完成，由备份队列监控在执行超时后重试，超过重试次数后不再执行。
+ * 抛出异常或者返回结果的个数与任务数不一致时，整批任务都视为处理失败。
+ * <p>
+ * 与{@link TaskHandler}通过任务消费者消费时的失败处理一致：只完成处理成功的任务
+ */
+public interface BatchTaskHandler {
+
+    /**
+     * 业务处理
+     *
+     * @param tasks  队列任务
+     * @param params 业务自定义参数
+     * @return 每个任务是否处理成功，与tasks一一对应
+     */
+    boolean[] handle(List<Task> tasks, Object... params);
+}
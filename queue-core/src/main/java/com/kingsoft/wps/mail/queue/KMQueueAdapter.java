@@ -1,11 +1,26 @@
 package com.kingsoft.wps.mail.queue;
 
+import com.kingsoft.wps.mail.exception.NestedException;
+import com.kingsoft.wps.mail.queue.cluster.KMJedisCluster;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
 import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.KMQUtils;
 import redis.clients.jedis.Jedis;
 import redis.clients.util.Pool;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Created by 刘春龙 on 2018/1/19.
+ * <p>
+ * 连接池本身是线程安全的，获取、归还连接不需要额外加锁，各个生产者、消费者线程之间不会相互阻塞
+ * <p>
+ * 集群模式下每个节点各有一个连接池，按key获取所在节点的连接（{@link #getResource(int, String)}）；
+ * 每个任务队列的所有key带有相同的hash tag，位于同一个槽位，不同的任务队列分布在各个节点上
+ * <p>
+ * 本地模式（{@link KMQueueManager.Builder#local(String...)}）下没有redis连接池，任务队列保存在进程内
  */
 public abstract class KMQueueAdapter {
 
@@ -20,10 +35,36 @@ public abstract class KMQueueAdapter {
     protected String backUpQueueName;
 
     /**
-     * redis连接池
+     * redis连接池，本地模式下为null
      */
     protected Pool<Jedis> pool;
 
+    /**
+     * redis集群，集群模式下使用，此时pool为null
+     */
+    protected KMJedisCluster cluster;
+
+    /**
+     * 备份队列索引的分区数，默认1，即不分区
+     * <p>
+     * 队列管理器与备份队列监控需要设置相同的分区数
+     */
+    protected int backupPartitions = 1;
+
+    /**
+     * 任务编解码器，默认为{@link BinaryTaskCodec}
+     * <p>
+     * 队列管理器与备份队列监控需要设置相同的编解码器
+     */
+    protected TaskCodec taskCodec = new BinaryTaskCodec();
+
+    /**
+     * 各个任务队列的优先级设置，没有设置的任务队列不区分优先级
+     * <p>
+     * 队列管理器与备份队列监控需要设置相同的优先级
+     */
+    protected Map<String, TaskPriorities> taskPriorities = new HashMap<>();
+
     /**
      * 获取备份队列的名称
      *
@@ -33,8 +74,98 @@ public abstract class KMQueueAdapter {
         return this.backUpQueueName;
     }
 
+    /**
+     * 获取任务队列对应的备份队列的名称
+     * <p>
+     * 集群模式下每个hash tag有单独的备份队列（{@link #BACK_UP_QUEUE_PREFIX} + "{hash tag}"），
+     * 与任务队列位于同一个槽位，安全队列的脚本才能在一个节点上执行；否则所有安全队列共用一个备份队列
+     *
+     * @param queue 任务队列名称
+     * @return 备份队列的名称
+     */
+    public String getBackUpQueueName(String queue) {
+        if (this.cluster == null) {
+            return this.backUpQueueName;
+        }
+        return BACK_UP_QUEUE_PREFIX + "{" + getHashTag(queue) + "}";
+    }
+
+    /**
+     * 获取任务队列在Redis中的key，唯一性标记集合、优先级列表、延时任务集合等均以此为前缀
+     * <p>
+     * 集群模式下，任务队列名称没有hash tag时以"{任务队列名称}"作为key，使任务队列的所有key位于同一个槽位；
+     * 需要在同一个槽位的多个任务队列（例如多队列消费，{@link KMQueueManager#getMultiTaskQueue(String...)}）可以在名称中指定相同的hash tag，
+     * 例如"{mail}_high"、"{mail}_low"，此时以任务队列名称本身作为key，这些任务队列共用一个备份队列
+     *
+     * @param queue 任务队列名称
+     * @return 任务队列的key，非集群模式下即为任务队列名称
+     */
+    public String getQueueKey(String queue) {
+        if (this.cluster == null || KMQUtils.hashTag(queue) != null) {
+            return queue;
+        }
+        return "{" + queue + "}";
+    }
+
+    /**
+     * 获取任务队列的hash tag，任务队列名称没有hash tag时即为任务队列名称
+     *
+     * @param queue 任务队列名称
+     * @return hash tag
+     */
+    private String getHashTag(String queue) {
+        String hashTag = KMQUtils.hashTag(queue);
+        return hashTag != null ? hashTag : queue;
+    }
+
+    /**
+     * 是否是集群模式
+     *
+     * @return 集群模式返回true
+     */
+    public boolean isCluster() {
+        return this.cluster != null;
+    }
+
+    /**
+     * 获取redis连接池，用于查看连接池的使用情况（活跃、空闲、等待的连接数，获取连接的等待时长），调整连接池的大小
+     *
+     * @return redis连接池，集群模式、本地模式下为null
+     */
+    public Pool<Jedis> getPool() {
+        return this.pool;
+    }
+
     public abstract long getAliveTimeout();
 
+    /**
+     * 获取备份队列索引的分区数
+     *
+     * @return 备份队列索引的分区数
+     */
+    public int getBackupPartitions() {
+        return this.backupPartitions;
+    }
+
+    /**
+     * 获取任务编解码器
+     *
+     * @return 任务编解码器
+     */
+    public TaskCodec getTaskCodec() {
+        return this.taskCodec;
+    }
+
+    /**
+     * 获取任务队列的优先级设置
+     *
+     * @param queue 任务队列名称
+     * @return 优先级设置，任务队列不区分优先级时返回null
+     */
+    public TaskPriorities getTaskPriorities(String queue) {
+        return this.taskPriorities.get(queue);
+    }
+
     /**
      * 获取Jedis对象
      * <p>
@@ -42,7 +173,13 @@ public abstract class KMQueueAdapter {
      *
      * @return Jedis对象
      */
-    public synchronized Jedis getResource() {
+    public Jedis getResource() {
+        if (this.cluster != null) {
+            throw new NestedException("The key is required to get a jedis client in cluster mode");
+        }
+        if (this.pool == null) {
+            throw new NestedException("There is no redis connection pool in local mode");
+        }
         Jedis jedis = this.pool.getResource();
         Assert.notNull(jedis, "Get jedis client failed");
         return jedis;
@@ -52,14 +189,46 @@ public abstract class KMQueueAdapter {
      * 获取Jedis对象
      * <p>
      * 使用完成后，必须归还到连接池中
+     * <p>
+     * Jedis对象会记录当前连接所选择的数据库，只有与db不同时才执行select，
+     * 连接池默认的数据库即为db时（默认为0），不会产生额外的网络往返
      *
      * @param db Redis数据库序号
      * @return Jedis对象
      */
-    public synchronized Jedis getResource(int db) {
+    public Jedis getResource(int db) {
+        if (this.cluster != null) {
+            throw new NestedException("The key is required to get a jedis client in cluster mode");
+        }
+        if (this.pool == null) {
+            throw new NestedException("There is no redis connection pool in local mode");
+        }
         Jedis jedis = this.pool.getResource();
         Assert.notNull(jedis, "Get jedis client failed");
-        jedis.select(db);
+        if (jedis.getDB() != db) {
+            jedis.select(db);
+        }
+        return jedis;
+    }
+
+    /**
+     * 获取key所在节点的Jedis对象
+     * <p>
+     * 使用完成后，必须归还到连接池中
+     * <p>
+     * 集群模式下返回key所在节点的连接，集群只支持0号数据库；否则与{@link #getResource(int)}相同
+     *
+     * @param db  Redis数据库序号
+     * @param key 本次操作的key，同一连接上操作的key需要位于同一个槽位
+     * @return Jedis对象
+     */
+    public Jedis getResource(int db, String key) {
+        if (this.cluster == null) {
+            return getResource(db);
+        }
+        Assert.isTrue(db == 0, "Only the database 0 is supported in cluster mode");
+        Jedis jedis = this.cluster.getConnection(key);
+        Assert.notNull(jedis, "Get jedis client failed");
         return jedis;
     }
 
@@ -68,7 +237,7 @@ public abstract class KMQueueAdapter {
      *
      * @param jedis Jedis对象
      */
-    public synchronized void returnResource(Jedis jedis) {
+    public void returnResource(Jedis jedis) {
         if (jedis != null) {
 //            pool.returnResource(jedis);
             // from Jedis 3.0
@@ -77,6 +246,10 @@ public abstract class KMQueueAdapter {
     }
 
     public synchronized void destroy() throws Exception {
-        pool.destroy();
+        if (cluster != null) {
+            cluster.close();
+        } else if (pool != null) {
+            pool.destroy();
+        }
     }
 }
@@ -2,21 +2,30 @@ package com.kingsoft.wps.mail.queue;
 
 import com.kingsoft.wps.mail.exception.NestedException;
 import com.kingsoft.wps.mail.queue.backup.BackupQueue;
+import com.kingsoft.wps.mail.queue.backup.LocalBackupQueue;
 import com.kingsoft.wps.mail.queue.backup.RedisBackupQueue;
+import com.kingsoft.wps.mail.queue.cluster.KMJedisCluster;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.JsonTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
+import com.kingsoft.wps.mail.queue.config.Constant;
 import com.kingsoft.wps.mail.utils.Assert;
 import com.kingsoft.wps.mail.utils.KMQUtils;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisSentinelPool;
 import redis.clients.util.Pool;
-import sun.misc.BASE64Encoder;
 
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -46,6 +55,51 @@ public class KMQueueManager extends KMQueueAdapter {
      */
     private long aliveTimeout;
 
+    /**
+     * 任务处理器注册表，任务类型 -> 任务处理器，构建之后不再修改
+     */
+    private Map<String, TaskHandler> taskHandlers;
+
+    /**
+     * 默认的任务处理器，任务类型没有注册任务处理器时使用
+     */
+    private TaskHandler defaultTaskHandler;
+
+    /**
+     * 各个任务队列在多队列消费时的权重，没有设置的任务队列权重为1
+     */
+    private Map<String, Integer> queueWeights;
+
+    /**
+     * 各个任务队列的分片数，没有设置的任务队列不分片
+     */
+    private Map<String, Integer> queueShards;
+
+    /**
+     * 是否是本地模式，任务队列保存在进程内（{@link LocalTaskQueue}），不使用redis
+     */
+    private boolean local;
+
+    /**
+     * 本地模式下每个任务队列的容量
+     */
+    private int localCapacity;
+
+    /**
+     * 本地模式下任务执行的超时时间（一次执行），单位：ms
+     */
+    private long protectedTimeout;
+
+    /**
+     * 本地模式下任务超时重试次数
+     */
+    private int retryTimes;
+
+    /**
+     * 本地模式下重试执行超时任务的线程
+     */
+    private ScheduledExecutorService localMonitor;
+
     /**
      * 构造方法私有化，防止外部调用
      */
@@ -66,6 +120,41 @@ public class KMQueueManager extends KMQueueAdapter {
         return null;
     }
 
+    /**
+     * 获取多个任务队列的组合，用于一个消费者按权重同时消费多个任务队列
+     * <p>
+     * 各个任务队列的权重通过{@link Builder#setQueueWeight(String, int)}设置；
+     * 返回的组合线程安全，可以在多个线程中共用，每次调用本方法都会创建新的组合；
+     * 集群模式下，这些任务队列需要在名称中指定相同的hash tag（{@link KMQueueAdapter#getQueueKey(String)}）
+     * <p>
+     * 分片队列（{@link ShardedTaskQueue}）的任务按分片插入、完成，不能直接组合，可以组合其各个分片（任务队列名称 + {@link Constant#SHARD_SUFFIX} + 分片序号）；
+     * 本地模式下不支持多队列消费
+     *
+     * @param queues 任务队列名称，必须是队列管理器中已经创建的任务队列
+     * @return 多个任务队列的组合
+     */
+    public MultiTaskQueue getMultiTaskQueue(String... queues) {
+        Assert.notEmpty(queues, "Param queues can't empty");
+        List<RedisTaskQueue> taskQueues = new ArrayList<>(queues.length);
+        int[] weights = new int[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            TaskQueue taskQueue = getTaskQueue(queues[i]);
+            if (taskQueue instanceof ShardedTaskQueue) {
+                throw new NestedException("The sharded task queue can't be combined, combine its shards("
+                        + queues[i] + Constant.SHARD_SUFFIX + "0...) instead：" + queues[i]);
+            }
+            if (taskQueue instanceof LocalTaskQueue) {
+                throw new NestedException("The multi-queue consumption is not supported in local mode：" + queues[i]);
+            }
+            if (!(taskQueue instanceof RedisTaskQueue)) {
+                throw new NestedException("The task queue does not exist：" + queues[i]);
+            }
+            taskQueues.add((RedisTaskQueue) taskQueue);
+            weights[i] = this.queueWeights.getOrDefault(queues[i], 1);
+        }
+        return new MultiTaskQueue(this, taskQueues, weights);
+    }
+
     /**
      * 获取任务存活超时时间。注意，该时间是任务从创建({@code new Task(...)})到销毁的总时间。单位：ms
      *
@@ -75,6 +164,17 @@ public class KMQueueManager extends KMQueueAdapter {
         return this.aliveTimeout;
     }
 
+    /**
+     * 根据任务类型获取注册的任务处理器，没有注册时返回默认的任务处理器
+     *
+     * @param type 任务类型
+     * @return 任务处理器，没有注册任务处理器、也没有设置默认的任务处理器时返回null
+     */
+    public TaskHandler getTaskHandler(String type) {
+        TaskHandler taskHandler = this.taskHandlers.get(type);
+        return taskHandler != null ? taskHandler : this.defaultTaskHandler;
+    }
+
     /**
      * 初始化队列
      */
@@ -84,7 +184,8 @@ public class KMQueueManager extends KMQueueAdapter {
 
         logger.info("Initializing the queues");
 
-        boolean hasSq = false;
+        Set<String> backUpQueueNames = new LinkedHashSet<>();// 安全队列对应的备份队列，集群模式下每个hash tag一个
+        LocalBackupQueue localBackupQueue = this.local ? new LocalBackupQueue(backUpQueueName) : null;// 本地模式下的备份队列
 
         for (String queue : this.queues) {
             String[] qInfos = queue.trim().split(":");
@@ -99,13 +200,44 @@ public class KMQueueManager extends KMQueueAdapter {
             }
 
             if (!"".equals(qName)) {
-                if (!queueMap.containsKey(qName)) {
+                if (this.local) {
+                    if (queueMap.containsKey(qName)) {
+                        logger.info("The current queue already exists. Do not create the queue name repeatedly：" + qName);
+                        continue;
+                    }
+                    if (this.queueShards.containsKey(qName) || this.taskPriorities.containsKey(qName)) {
+                        throw new NestedException("The shards and priorities are not supported in local mode, the queue name：" + qName);
+                    }
                     if (qMode != null && qMode.equals(SAFE)) {
-                        hasSq = true;// 标记存在安全队列
+                        backUpQueueNames.add(backUpQueueName);// 标记存在安全队列
+                    }
+                    queueMap.put(qName, new LocalTaskQueue(this, qName, qMode, this.localCapacity, localBackupQueue));
+                    logger.info("Creating a local task queue：" + qName);
+                } else if (!queueMap.containsKey(qName)) {
+                    int shards = this.queueShards.getOrDefault(qName, 1);
+                    List<String> names = new ArrayList<>(shards);
+                    if (shards > 1) {// 分片队列，每个分片是一个任务队列
+                        for (int i = 0; i < shards; i++) {
+                            names.add(qName + Constant.SHARD_SUFFIX + i);
+                        }
+                    } else {
+                        names.add(qName);
                     }
 
-                    queueMap.put(qName, new RedisTaskQueue(this, qName, qMode));
-                    logger.info("Creating a task queue：" + qName);
+                    List<RedisTaskQueue> taskQueues = new ArrayList<>(shards);
+                    for (String name : names) {
+                        if (qMode != null && qMode.equals(SAFE)) {
+                            backUpQueueNames.add(getBackUpQueueName(name));// 标记存在安全队列
+                        }
+                        RedisTaskQueue taskQueue = new RedisTaskQueue(this, name, qMode);
+                        taskQueues.add(taskQueue);
+                        queueMap.put(name, taskQueue);
+                        logger.info("Creating a task queue：" + name);
+                    }
+                    if (shards > 1) {
+                        queueMap.put(qName, new ShardedTaskQueue(qName, taskQueues));
+                        logger.info("Creating a sharded task queue：" + qName + ", shards：" + shards);
+                    }
                 } else {
                     logger.info("The current queue already exists. Do not create the queue name repeatedly：" + qName);
                 }
@@ -115,12 +247,89 @@ public class KMQueueManager extends KMQueueAdapter {
         }
 
         // 添加备份队列
-        if (hasSq) {
-            BackupQueue backupQueue = new RedisBackupQueue(this);
+        if (this.local) {
+            if (!backUpQueueNames.isEmpty()) {
+                queueMap.put(backUpQueueName, localBackupQueue);
+                logger.info("Initializing local backup queue：" + backUpQueueName);
+                startLocalMonitor(localBackupQueue);
+            }
+            return;
+        }
+        for (String name : backUpQueueNames) {
+            BackupQueue backupQueue = new RedisBackupQueue(this, name);
             backupQueue.initQueue();
-            queueMap.put(backUpQueueName, backupQueue);
-            logger.info("Initializing backup queue");
+            queueMap.put(name, backupQueue);
+            logger.info("Initializing backup queue：" + name);
+        }
+    }
+
+    /**
+     * 本地模式下启动重试执行超时任务的线程
+     * <p>
+     * 每隔执行超时时间的一半（10ms ~ 1s）检查一次备份队列，没有设置执行超时时间时不启动
+     *
+     * @param backupQueue 本地模式下的备份队列
+     */
+    private void startLocalMonitor(LocalBackupQueue backupQueue) {
+        if (this.protectedTimeout == Long.MAX_VALUE) {
+            return;
         }
+        long intervalMs = Math.max(10, Math.min(this.protectedTimeout / 2, 1000));
+        this.localMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kmq-local-monitor-" + backUpQueueName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.localMonitor.scheduleWithFixedDelay(() -> monitorLocalTasks(backupQueue), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 本地模式下处理执行超时的任务，与备份队列监控的处理方式一致
+     * <p>
+     * 1. 任务存活时间超时，不再重试；<br>
+     * 2. 任务执行超时，且重试次数小于retryTimes，则标记为retry，重试次数加1，重新放入任务队列的队首；<br>
+     * 3. 任务执行超时，且重试次数大于等于retryTimes，不再重试；<br>
+     * 最后删除备份队列中的该任务
+     *
+     * @param backupQueue 本地模式下的备份队列
+     */
+    private void monitorLocalTasks(LocalBackupQueue backupQueue) {
+        try {
+            long maxExcTimestamp = System.currentTimeMillis() - this.protectedTimeout;
+            List<Task> tasks = backupQueue.getExpiredTasks(0, maxExcTimestamp, 0, Integer.MAX_VALUE);
+            for (Task task : tasks) {
+                TaskQueue taskQueue = getTaskQueue(task.getQueue());
+                Task.TaskStatus status = task.getTaskStatus();
+                long intervalTimeMillis = System.currentTimeMillis() - status.getGenTimestamp();// 任务的存活时间
+                if (taskQueue != null && intervalTimeMillis <= this.aliveTimeout && status.getRetry() < this.retryTimes) {
+                    // 复制任务后重新放入任务队列的队首，原任务对象仍由之前的执行者持有
+                    Task retryTask = this.taskCodec.decode(this.taskCodec.encode(task));
+                    retryTask.getTaskStatus().setState(Constant.RETRY);
+                    retryTask.getTaskStatus().setRetry(status.getRetry() + 1);
+                    taskQueue.pushTaskToHeader(retryTask);
+                } else {
+                    logger.info("Discard the expired task：" + task.getId() + ", queue：" + task.getQueue() + ", retry：" + status.getRetry());
+                }
+                // 删除备份队列中的该任务
+                backupQueue.finishTask(task);
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 关闭本地模式下重试执行超时任务的线程以及redis连接池
+     *
+     * @throws Exception 关闭redis连接池异常
+     */
+    @Override
+    public synchronized void destroy() throws Exception {
+        if (this.localMonitor != null) {
+            this.localMonitor.shutdownNow();
+        }
+        super.destroy();
     }
 
     /**
@@ -134,11 +343,15 @@ public class KMQueueManager extends KMQueueAdapter {
          * <li>default</li>
          * <li>single</li>
          * <li>sentinel</li>
+         * <li>cluster</li>
+         * <li>local，不使用redis</li>
          * </ul>
          */
         private final String REDIS_CONN_DEFAULT = "default";
         private final String REDIS_CONN_SINGLE = "single";
         private final String REDIS_CONN_SENTINEL = "sentinel";
+        private final String REDIS_CONN_CLUSTER = "cluster";
+        private final String REDIS_CONN_LOCAL = "local";
         private String REDIS_CONN_MODE;
 
         /**
@@ -166,6 +379,11 @@ public class KMQueueManager extends KMQueueAdapter {
          */
         private Set<String> sentinels;
 
+        /**
+         * 集群节点
+         */
+        private Set<HostAndPort> clusterNodes;
+
         /**
          * 连接池最大分配的连接数
          */
@@ -190,6 +408,56 @@ public class KMQueueManager extends KMQueueAdapter {
          */
         private long aliveTimeout;
 
+        /**
+         * 备份队列索引的分区数，默认1，即不分区
+         */
+        private int backupPartitions = 1;
+
+        /**
+         * 任务编解码器，默认为{@link BinaryTaskCodec}
+         */
+        private TaskCodec taskCodec = new BinaryTaskCodec();
+
+        /**
+         * 任务处理器注册表，任务类型 -> 任务处理器
+         */
+        private Map<String, TaskHandler> taskHandlers = new HashMap<>();
+
+        /**
+         * 各个任务队列的优先级设置
+         */
+        private Map<String, TaskPriorities> taskPriorities = new HashMap<>();
+
+        /**
+         * 各个任务队列在多队列消费时的权重
+         */
+        private Map<String, Integer> queueWeights = new HashMap<>();
+
+        /**
+         * 各个任务队列的分片数
+         */
+        private Map<String, Integer> queueShards = new HashMap<>();
+
+        /**
+         * 本地模式下每个任务队列的容量
+         */
+        private int localCapacity = LocalTaskQueue.DEFAULT_CAPACITY;
+
+        /**
+         * 本地模式下任务执行的超时时间（一次执行），单位：ms，不设置默认为 Long.MAX_VALUE，即不重试
+         */
+        private long protectedTimeout = Long.MAX_VALUE;
+
+        /**
+         * 本地模式下任务超时重试次数，默认3次
+         */
+        private int retryTimes = 3;
+
+        /**
+         * 默认的任务处理器
+         */
+        private TaskHandler defaultTaskHandler;
+
         /**
          * 创建Builder对象
          * <p>
@@ -245,6 +513,47 @@ public class KMQueueManager extends KMQueueAdapter {
             this.REDIS_CONN_MODE = this.REDIS_CONN_SENTINEL;
         }
 
+        /**
+         * 创建Builder对象
+         * <p>
+         * 采用Redis Cluster的方式，每个节点创建一个连接池，连接池的设置对每个节点生效；
+         * 每个任务队列的所有key带有相同的hash tag（{@link KMQueueAdapter#getQueueKey(String)}），不同的任务队列分布在各个节点上
+         *
+         * @param clusterNodes 集群节点，至少一个，其它节点自动发现
+         * @param queues       所要创建的队列名称，可以传多个
+         */
+        public Builder(Set<HostAndPort> clusterNodes, String... queues) {
+            Assert.isTrue(clusterNodes != null && !clusterNodes.isEmpty(), "Param clusterNodes can't empty");
+
+            this.aliveTimeout = Long.MAX_VALUE;
+            this.clusterNodes = new HashSet<>(clusterNodes);
+            this.queues = Arrays.asList(queues);
+            this.REDIS_CONN_MODE = this.REDIS_CONN_CLUSTER;
+        }
+
+        /**
+         * 创建本地模式的Builder对象
+         * <p>
+         * 不使用redis，任务队列保存在进程内（{@link LocalTaskQueue}），安全队列共用一个进程内的备份队列，
+         * 执行超时的任务由队列管理器重试（{@link #setProtectedTimeout(long)}）；
+         * 用于单机部署，以及不依赖redis的单元测试、基准测试。
+         * <p>
+         * 注意，进程退出时未完成的任务会丢失；不支持优先级、分片以及多队列消费
+         *
+         * @param queues 所要创建的队列名称，可以传多个
+         * @return 返回Builder
+         */
+        public static Builder local(String... queues) {
+            Assert.notEmpty(queues, "Param queues can't empty");
+            return new Builder(Arrays.asList(queues));
+        }
+
+        private Builder(List<String> queues) {
+            this.aliveTimeout = Long.MAX_VALUE;
+            this.queues = queues;
+            this.REDIS_CONN_MODE = this.REDIS_CONN_LOCAL;
+        }
+
         /**
          * 设置redis连接池最大分配的连接数
          * <p>
@@ -302,8 +611,189 @@ public class KMQueueManager extends KMQueueAdapter {
             return this;
         }
 
+        /**
+         * 设置备份队列索引的分区数，默认1，即不分区
+         * <p>
+         * 正在执行的任务按任务id散列到各个分区，备份队列监控可以并发地处理各个分区；
+         * 备份队列监控需要设置相同的分区数。
+         * <p>
+         * 注意，修改分区数之前需要保证安全队列中没有正在执行的任务
+         * <p>
+         * 该值只针对安全队列起作用
+         *
+         * @param backupPartitions 备份队列索引的分区数
+         * @return 返回Builder
+         */
+        public Builder setBackupPartitions(int backupPartitions) {
+            Assert.greaterThanEquals(backupPartitions, 1, "Param backupPartitions must be greater than 0");
+            this.backupPartitions = backupPartitions;
+            return this;
+        }
+
+        /**
+         * 设置任务编解码器，默认为{@link BinaryTaskCodec}
+         * <p>
+         * 两种内置的编解码器都可以解码对方编码的任务；
+         * 如果还有旧版本的消费者（只能解码JSON格式），需要先设置为{@link JsonTaskCodec}，所有消费者升级之后再切换
+         * <p>
+         * 安全队列在Lua脚本中读取任务id，自定义的编解码器需要以{@link BinaryTaskCodec}的头部开头，或者编码为包含id字段的JSON对象，
+         * 否则抛出异常
+         *
+         * @param taskCodec 任务编解码器
+         * @return 返回Builder
+         */
+        public Builder setTaskCodec(TaskCodec taskCodec) {
+            Assert.notNull(taskCodec, "Param taskCodec can't null");
+            Task probe = new Task("probe_queue", "probe_id", false, "", "", new Task.TaskStatus());
+            Assert.isTrue("probe_id".equals(KMQUtils.readTaskId(taskCodec.encode(probe))),
+                    "Param taskCodec must write the task id in the binary or JSON header");
+            this.taskCodec = taskCodec;
+            return this;
+        }
+
+        /**
+         * 设置任务队列的优先级，0为最高优先级，未设置的任务队列不区分优先级
+         * <p>
+         * 获取任务时按权重轮流优先获取各个优先级的任务，例如权重为 6, 3, 1 时，
+         * 三个优先级都有积压的情况下大约按 6:3:1 的比例获取，低优先级的任务不会饿死；
+         * 没有设置优先级的任务（{@link Task#setPriority(int)}）使用默认优先级，默认优先级的任务保存在任务队列本身，
+         * 因此可以为已有的任务队列设置优先级。
+         * <p>
+         * 备份队列监控需要设置相同的优先级
+         *
+         * @param queue           任务队列名称
+         * @param defaultPriority 默认优先级
+         * @param weights         各个优先级的权重，下标即优先级，权重必须大于0
+         * @return 返回Builder
+         */
+        public Builder setPriorities(String queue, int defaultPriority, int... weights) {
+            Assert.notNull(queue, "Param queue can't null");
+            this.taskPriorities.put(queue, new TaskPriorities(defaultPriority, weights));
+            return this;
+        }
+
+        /**
+         * 设置任务队列在多队列消费（{@link KMQueueManager#getMultiTaskQueue(String...)}）时的权重，默认为1
+         * <p>
+         * 多个任务队列都有积压时，大约按权重的比例获取各个任务队列的任务
+         *
+         * @param queue  任务队列名称
+         * @param weight 权重，必须大于0
+         * @return 返回Builder
+         */
+        public Builder setQueueWeight(String queue, int weight) {
+            Assert.notNull(queue, "Param queue can't null");
+            Assert.greaterThanEquals(weight, 1, "Param weight must be greater than 0");
+            this.queueWeights.put(queue, weight);
+            return this;
+        }
+
+        /**
+         * 设置任务队列的分片数，默认为1，即不分片
+         * <p>
+         * 分片数大于1时，创建名称为 任务队列名称 + {@link Constant#SHARD_SUFFIX} + 分片序号 的多个任务队列，
+         * {@link KMQueueManager#getTaskQueue(String)}通过任务队列名称返回组合这些分片的{@link ShardedTaskQueue}，
+         * 生产者、消费者不需要修改；集群模式下各个分片分布在不同的节点上，每个分片有单独的备份队列。
+         * <p>
+         * 注意，分片队列不支持优先级，同时设置分片数与优先级时{@link #build()}抛出异常；修改分片数之前需要保证各个分片中没有任务
+         *
+         * @param queue  任务队列名称
+         * @param shards 分片数，必须大于0
+         * @return 返回Builder
+         */
+        public Builder setShards(String queue, int shards) {
+            Assert.notNull(queue, "Param queue can't null");
+            Assert.greaterThanEquals(shards, 1, "Param shards must be greater than 0");
+            this.queueShards.put(queue, shards);
+            return this;
+        }
+
+        /**
+         * 设置本地模式下每个任务队列的容量，向上取整为2的幂，默认为{@link LocalTaskQueue#DEFAULT_CAPACITY}
+         * <p>
+         * 只对使用{@link #local(String...)}创建的Builder起作用
+         *
+         * @param localCapacity 任务队列的容量
+         * @return 返回Builder
+         */
+        public Builder setLocalCapacity(int localCapacity) {
+            Assert.greaterThanEquals(localCapacity, 1, "Param localCapacity must be greater than 0");
+            this.localCapacity = localCapacity;
+            return this;
+        }
+
+        /**
+         * 设置本地模式下任务执行的超时时间（一次执行），单位：ms，传0 则采用默认值： Long.MAX_VALUE，即不重试
+         * <p>
+         * 执行超时的任务由队列管理器重新放入任务队列的队首，与备份队列监控的处理方式一致；
+         * 使用redis时执行超时的任务由备份队列监控处理，该值不起作用
+         * <p>
+         * 该值只针对安全队列起作用
+         *
+         * @param protectedTimeout 任务执行的超时时间
+         * @return 返回Builder
+         */
+        public Builder setProtectedTimeout(long protectedTimeout) {
+            Assert.greaterThanEquals(protectedTimeout, 0, "Param protectedTimeout is negative");
+            if (protectedTimeout == 0) {
+                protectedTimeout = Long.MAX_VALUE;
+            }
+            this.protectedTimeout = protectedTimeout;
+            return this;
+        }
+
+        /**
+         * 设置本地模式下任务超时重试次数，默认3次
+         * <p>
+         * 使用redis时由备份队列监控设置，该值不起作用
+         *
+         * @param retryTimes 任务超时重试次数
+         * @return 返回Builder
+         */
+        public Builder setRetryTimes(int retryTimes) {
+            Assert.greaterThanEquals(retryTimes, 0, "Param retryTimes is negative");
+            this.retryTimes = retryTimes;
+            return this;
+        }
+
+        /**
+         * 注册任务类型对应的任务处理器
+         * <p>
+         * 任务处理器是长期存在的单例，会被多个线程同时调用，需要保证线程安全，
+         * 可以在其中保存连接、缓存等状态；通过{@link Task#dispatch(KMQueueManager, Object...)}执行任务
+         *
+         * @param type        任务类型
+         * @param taskHandler 任务处理器
+         * @return 返回Builder
+         */
+        public Builder registerTaskHandler(String type, TaskHandler taskHandler) {
+            Assert.notNull(type, "Param type can't null");
+            Assert.notNull(taskHandler, "Param taskHandler can't null");
+            this.taskHandlers.put(type, taskHandler);
+            return this;
+        }
+
+        /**
+         * 设置默认的任务处理器，任务类型没有注册任务处理器时使用
+         *
+         * @param taskHandler 默认的任务处理器
+         * @return 返回Builder
+         */
+        public Builder setDefaultTaskHandler(TaskHandler taskHandler) {
+            Assert.notNull(taskHandler, "Param taskHandler can't null");
+            this.defaultTaskHandler = taskHandler;
+            return this;
+        }
+
         public KMQueueManager build() {
 
+            // 分片队列不支持优先级
+            for (Map.Entry<String, Integer> entry : this.queueShards.entrySet()) {
+                if (entry.getValue() > 1 && this.taskPriorities.containsKey(entry.getKey())) {
+                    throw new NestedException("The shards and priorities can't be set at the same time, the queue name：" + entry.getKey());
+                }
+            }
+
             KMQueueManager queueManager = new KMQueueManager();
 
             JedisPoolConfig jedisPoolConfig = null;
@@ -324,10 +814,30 @@ public class KMQueueManager extends KMQueueAdapter {
                     jedisPoolConfig.setMaxWaitMillis(this.poolMaxWaitMillis);
                     this.pool = new JedisSentinelPool("master", sentinels, jedisPoolConfig);
                     break;
+                case REDIS_CONN_CLUSTER:
+                    jedisPoolConfig = new JedisPoolConfig();
+                    jedisPoolConfig.setMaxTotal(this.poolMaxTotal);
+                    jedisPoolConfig.setMaxIdle(this.poolMaxIdle);
+                    jedisPoolConfig.setMaxWaitMillis(this.poolMaxWaitMillis);
+                    queueManager.cluster = new KMJedisCluster(clusterNodes, jedisPoolConfig);
+                    break;
+                case REDIS_CONN_LOCAL:
+                    queueManager.local = true;
+                    break;
             }
             queueManager.pool = this.pool;
             queueManager.queues = this.queues;
             queueManager.aliveTimeout = this.aliveTimeout;
+            queueManager.backupPartitions = this.backupPartitions;
+            queueManager.taskCodec = this.taskCodec;
+            queueManager.taskHandlers = new HashMap<>(this.taskHandlers);
+            queueManager.defaultTaskHandler = this.defaultTaskHandler;
+            queueManager.taskPriorities = new HashMap<>(this.taskPriorities);
+            queueManager.queueWeights = new HashMap<>(this.queueWeights);
+            queueManager.queueShards = new HashMap<>(this.queueShards);
+            queueManager.localCapacity = this.localCapacity;
+            queueManager.protectedTimeout = this.protectedTimeout;
+            queueManager.retryTimes = this.retryTimes;
             return queueManager;
         }
     }
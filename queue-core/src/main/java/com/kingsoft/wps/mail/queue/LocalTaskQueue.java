@@ -0,0 +1,442 @@
+package com.kingsoft.wps.mail.queue;
+
+import com.kingsoft.wps.mail.queue.backup.LocalBackupQueue;
+import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.KMQUtils;
+import com.kingsoft.wps.mail.utils.RingBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * 进程内的任务队列，不依赖Redis，用于单机部署以及单元测试、基准测试
+ * <p>
+ * 任务保存在无锁的有界环形缓冲区中（{@link RingBuffer}），生产者、消费者之间不加锁；
+ * 任务以对象的形式保存，不需要编解码。与{@link RedisTaskQueue}的语义一致：
+ * <ul>
+ * <li>安全队列的任务取出时放入备份队列（{@link LocalBackupQueue}）并记录任务执行的时间戳，完成时删除；
+ * 执行超时的任务由队列管理器重新放入队首（{@link KMQueueManager.Builder#setProtectedTimeout(long)}）；</li>
+ * <li>安全队列的唯一性任务在队列中同一时刻只存在一个；</li>
+ * <li>存活时间超时的任务取出后不再放入备份队列；</li>
+ * <li>延时任务保存在按执行时间排序的集合中，获取任务时放入到期的延时任务，不需要{@link com.kingsoft.wps.mail.queue.delayed.DelayedTaskPromoter}；</li>
+ * </ul>
+ * 队列已满时插入任务失败（返回null，批量插入时不出现在返回结果中）；队首插入的任务（重试的任务）保存在单独的双端队列中，优先获取，不受容量限制。
+ * <p>
+ * 队列为空时，消费者登记后挂起（{@link LockSupport#parkNanos(Object, long)}），生产者插入任务后唤醒一个消费者，
+ * 阻塞时间精确到毫秒，消费者线程被中断时立即返回。
+ * <p>
+ * 注意，任务只保存在内存中，进程退出时未完成的任务会丢失；不支持优先级、分片以及多队列消费
+ */
+public class LocalTaskQueue extends TaskQueue {
+
+    private static final Logger logger = Logger.getLogger(LocalTaskQueue.class.getName());
+
+    /**
+     * 默认容量
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * 任务队列名称
+     */
+    private final String name;
+
+    /**
+     * 队列模式：DEFAULT - 简单队列，SAFE - 安全队列
+     */
+    private final String mode;
+
+    /**
+     * 等待执行的任务
+     */
+    private final RingBuffer<Task> tasks;
+
+    /**
+     * 队首插入的任务，先于{@link #tasks}获取
+     */
+    private final ConcurrentLinkedDeque<Task> headerTasks = new ConcurrentLinkedDeque<>();
+
+    /**
+     * 延时任务，(任务的执行时间, 插入序号) -> 任务
+     */
+    private final ConcurrentSkipListMap<Long[], Task> delayedTasks = new ConcurrentSkipListMap<>((a, b) -> {
+        int c = Long.compare(a[0], b[0]);
+        return c != 0 ? c : Long.compare(a[1], b[1]);
+    });
+
+    /**
+     * 延时任务的插入序号，区分执行时间相同的延时任务
+     */
+    private final AtomicLong delayedSequence = new AtomicLong();
+
+    /**
+     * 取出任务的序号，与任务队列名称、任务id组成任务在备份队列中的key，同一任务id的多次执行互不覆盖
+     */
+    private final AtomicLong popSequence = new AtomicLong();
+
+    /**
+     * 队列为空时挂起等待的消费者线程
+     */
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 队列管理器
+     */
+    private final KMQueueAdapter kmQueueAdapter;
+
+    /**
+     * 备份队列
+     */
+    private final LocalBackupQueue backupQueue;
+
+    /**
+     * 构造函数
+     *
+     * @param kmQueueAdapter 队列管理器
+     * @param name           任务队列名称
+     * @param mode           队列模式
+     * @param capacity       容量，向上取整为2的幂
+     * @param backupQueue    备份队列，同一个队列管理器的安全队列共用
+     */
+    public LocalTaskQueue(KMQueueAdapter kmQueueAdapter, String name, String mode, int capacity, LocalBackupQueue backupQueue) {
+        if (mode == null || "".equals(mode)) {
+            mode = KMQueueManager.DEFAULT;
+        }
+        Assert.isTrue(KMQueueManager.DEFAULT.equals(mode) || backupQueue != null, "Param backupQueue can't null");
+        this.kmQueueAdapter = kmQueueAdapter;
+        this.name = name;
+        this.mode = mode;
+        this.tasks = new RingBuffer<>(capacity);
+        this.backupQueue = backupQueue;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getMode() {
+        return this.mode;
+    }
+
+    /**
+     * 向任务队列中插入任务
+     * <p>
+     * 如果插入任务成功，则返回该任务；队列已满，或者唯一性任务在队列中已经存在，则返回null
+     *
+     * @param task 队列任务
+     * @return 插入的任务
+     */
+    @Override
+    public Task pushTask(Task task) {
+        boolean unique = isUnique(task);
+        if (unique && !this.backupQueue.addUnique(this.name, task.getId())) {
+            return null;
+        }
+        if (!this.tasks.offer(task)) {
+            if (unique) {
+                this.backupQueue.removeUnique(this.name, task.getId());
+            }
+            logger.info("The task queue is full：" + this.name);
+            return null;
+        }
+        signal();
+        return task;
+    }
+
+    /**
+     * 向任务队列中批量插入任务
+     * <p>
+     * 返回插入成功的任务，唯一性任务如果在队列中已经存在，或者插入时队列已满，则不会出现在返回结果中
+     *
+     * @param tasks 队列任务
+     * @return 插入成功的任务
+     */
+    @Override
+    public List<Task> pushTasks(List<Task> tasks) {
+        List<Task> accepted = new ArrayList<>();
+        if (tasks == null) {
+            return accepted;
+        }
+        for (Task task : tasks) {
+            if (pushTask(task) != null) {
+                accepted.add(task);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * 添加在指定时间执行的延时任务
+     * <p>
+     * 任务保存在延时任务集合中，获取任务时放入到期的延时任务；对于安全队列的唯一性任务，与{@link #pushTask(Task)}一样做唯一性校验
+     *
+     * @param task    队列任务
+     * @param epochMs 任务的执行时间，单位：ms
+     * @return 添加的任务，唯一性任务已经存在时返回null
+     */
+    @Override
+    public Task pushTaskAt(Task task, long epochMs) {
+        if (isUnique(task) && !this.backupQueue.addUnique(this.name, task.getId())) {
+            return null;
+        }
+
+        // 任务的存活时间从执行时间开始计算
+        Task.TaskStatus status = task.getTaskStatus();
+        status.setGenTimestamp(Math.max(status.getGenTimestamp(), epochMs));
+
+        this.delayedTasks.put(new Long[]{epochMs, this.delayedSequence.incrementAndGet()}, task);
+        signal();// 唤醒的消费者会重新计算挂起时间
+        return task;
+    }
+
+    /**
+     * 将到期的延时任务放入任务队列的队尾，最多max个，队列已满时停止
+     * <p>
+     * 获取任务时会自动调用，一般不需要单独调用
+     *
+     * @param max 最多放入的任务数
+     * @return 放入的任务数
+     */
+    public int promoteDelayedTasks(int max) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+
+        long now = System.currentTimeMillis();
+        int promoted = 0;
+        while (promoted < max) {
+            Map.Entry<Long[], Task> first = this.delayedTasks.firstEntry();
+            if (first == null || first.getKey()[0] > now) {
+                break;
+            }
+            if (this.delayedTasks.remove(first.getKey()) == null) {// 已经被其它消费者放入
+                continue;
+            }
+            if (!this.tasks.offer(first.getValue())) {// 队列已满，放回延时任务集合
+                this.delayedTasks.put(first.getKey(), first.getValue());
+                break;
+            }
+            promoted++;
+        }
+        if (promoted > 1) {// 当前线程只会取走一个，唤醒其它消费者
+            signal(promoted - 1);
+        }
+        return promoted;
+    }
+
+    /**
+     * 往队首添加任务，下一次获取任务时优先取出
+     *
+     * @param task 队列任务
+     */
+    @Override
+    public void pushTaskToHeader(Task task) {
+        this.headerTasks.addFirst(task);
+        signal();
+    }
+
+    /**
+     * 从任务队列里取任务，队列为空时一直阻塞，直到取到任务或者线程被中断
+     * <p>
+     * 任务状态不变，默认值为`normal`
+     *
+     * @return 队列任务，线程被中断时返回null
+     */
+    @Override
+    public Task popTask() {
+        Task task = pollTask();
+        return task != null ? task : waitTask(0);
+    }
+
+    /**
+     * 批量获取任务队列中的任务，最多取max个
+     * <p>
+     * 如果任务队列为空，则挂起等待第一个任务，最多等待timeoutMs毫秒，取到任务后再批量取出剩余的任务
+     * <p>
+     * 任务状态不变，默认值为`normal`
+     *
+     * @param max       最多获取的任务数
+     * @param timeoutMs 队列为空时的最大阻塞时间，单位：ms，小于等于0则不阻塞
+     * @return 队列任务，没有取到任务返回空集合
+     */
+    @Override
+    public List<Task> popTasks(int max, long timeoutMs) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+
+        List<Task> tasks = new ArrayList<>();
+        Task task = pollTask();
+        if (task == null && timeoutMs > 0) {
+            task = waitTask(timeoutMs);
+        }
+        while (task != null) {
+            tasks.add(task);
+            if (tasks.size() >= max) {
+                break;
+            }
+            task = pollTask();
+        }
+        return tasks;
+    }
+
+    /**
+     * 非阻塞地取出一个任务，先取队首插入的任务，对于安全队列，放入备份队列并记录任务执行的时间戳
+     * <p>
+     * 存活时间超时（对应的是大于`aliveTimeout`）的任务不再放入备份队列
+     *
+     * @return 队列任务，队列为空时返回null
+     */
+    private Task pollTask() {
+        Task task = this.headerTasks.pollFirst();
+        if (task == null) {
+            task = this.tasks.poll();
+        }
+        if (task == null && !this.delayedTasks.isEmpty() && promoteDelayedTasks(Integer.MAX_VALUE) > 0) {
+            task = this.tasks.poll();
+        }
+        if (task != null && KMQueueManager.SAFE.equals(getMode())) {
+            task.getTaskStatus().setExcTimestamp(System.currentTimeMillis());// 更新任务的执行时间戳
+            task.setBackupKey(KMQUtils.backupKey(this.name, task.getId(), String.valueOf(this.popSequence.incrementAndGet())));
+            if (isAlive(task)) {// 如果大于存活超时时间，则不再执行
+                this.backupQueue.addTask(task);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * 以阻塞的方式获取任务
+     * <p>
+     * 登记为等待的消费者之后再检查一次任务队列，然后挂起，生产者插入任务后唤醒登记的消费者，因此不会错过任务；
+     * 有延时任务时最多挂起到最早的延时任务到期
+     *
+     * @param timeoutMs 最大阻塞时间，单位：ms，0 则一直阻塞
+     * @return 队列任务，超时或者线程被中断时返回null
+     */
+    private Task waitTask(long timeoutMs) {
+        Thread current = Thread.currentThread();
+        long deadline = timeoutMs == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            this.waiters.add(current);
+            Task task = pollTask();
+            if (task != null) {
+                if (!this.waiters.remove(current)) {// 唤醒信号已经被当前线程消耗，转交给其它消费者
+                    signal();
+                }
+                return task;
+            }
+
+            long now = System.currentTimeMillis();
+            long parkMillis = deadline - now;
+            Map.Entry<Long[], Task> first = this.delayedTasks.firstEntry();
+            if (first != null) {
+                parkMillis = Math.min(parkMillis, first.getKey()[0] - now);
+            }
+            if (deadline <= now || current.isInterrupted()) {
+                this.waiters.remove(current);
+                return null;
+            }
+            // 延时任务已经到期但队列已满时，至少挂起1ms，避免空转
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, parkMillis)));
+            this.waiters.remove(current);
+        }
+    }
+
+    /**
+     * 唤醒一个等待的消费者
+     */
+    private void signal() {
+        signal(1);
+    }
+
+    /**
+     * 唤醒最多n个等待的消费者
+     *
+     * @param n 唤醒的消费者个数
+     */
+    private void signal(int n) {
+        for (int i = 0; i < n; i++) {
+            Thread waiter = this.waiters.poll();
+            if (waiter == null) {
+                return;
+            }
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * 获取任务队列中等待执行的任务数，不包括延时任务和正在执行的任务
+     *
+     * @return 等待执行的任务数
+     */
+    public long size() {
+        return this.tasks.size() + this.headerTasks.size();
+    }
+
+    /**
+     * 获取任务队列的容量，不包括队首插入的任务
+     *
+     * @return 容量
+     */
+    public int getCapacity() {
+        return this.tasks.capacity();
+    }
+
+    /**
+     * 是否需要做唯一性校验，只有安全队列的唯一性任务需要
+     *
+     * @param task 队列任务
+     * @return 需要做唯一性校验返回true
+     */
+    private boolean isUnique(Task task) {
+        return KMQueueManager.SAFE.equals(getMode()) && task.isUnique();
+    }
+
+    /**
+     * 判断任务存活时间是否超时（对应的是大于`aliveTimeout`），未超时返回true
+     *
+     * @param task 队列任务
+     * @return 任务存活时间未超时返回true
+     */
+    private boolean isAlive(Task task) {
+        long taskGenTimeMillis = task.getTaskStatus().getGenTimestamp();// 任务生成的时间戳
+        long intervalTimeMillis = System.currentTimeMillis() - taskGenTimeMillis;// 任务的存活时间
+        return intervalTimeMillis <= kmQueueAdapter.getAliveTimeout();
+    }
+
+    /**
+     * 队列任务完成
+     * <p>
+     * 对于安全队列，删除备份队列中的该任务，并删除该任务的存在标记
+     *
+     * @param task 队列任务
+     */
+    @Override
+    public void finishTask(Task task) {
+        if (KMQueueManager.SAFE.equals(getMode())) {
+            // 安全队列
+            this.backupQueue.finishTask(task);
+        }
+    }
+
+    /**
+     * 批量完成队列任务
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        if (KMQueueManager.SAFE.equals(getMode()) && tasks != null && !tasks.isEmpty()) {
+            // 安全队列
+            this.backupQueue.finishTasks(tasks);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.kingsoft.wps.mail.queue;
+
+import com.kingsoft.wps.mail.exception.NestedException;
+import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.WeightedRoundRobin;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * 多个任务队列的组合，通过{@link KMQueueManager#getMultiTaskQueue(String...)}创建
+ * <p>
+ * 一个消费者同时消费多个任务队列时，每次获取任务只占用一个Redis连接：
+ * <ul>
+ * <li>非阻塞获取：按各个任务队列的权重（{@link KMQueueManager.Builder#setQueueWeight(String, int)}）轮流选择优先获取的任务队列，
+ * 选中的任务队列为空时再依次获取其它任务队列，通过一次脚本调用完成，繁忙的任务队列不会使其它任务队列饿死；</li>
+ * <li>阻塞等待：全部为简单队列时使用一条brpop同时等待所有任务队列；包含安全队列时，brpoplpush只能等待一个列表，
+ * 每次在按权重选中的安全队列上阻塞1秒，超时后再通过脚本检查其它任务队列，即空闲时其它任务队列的任务最多延迟1秒被获取；</li>
+ * </ul>
+ * 插入、完成任务时根据任务所属的任务队列（{@link Task#getQueue()}）转发给对应的任务队列。
+ * 可以直接作为{@link com.kingsoft.wps.mail.queue.consumer.TaskConsumer}等消费者的任务队列，线程安全
+ * <p>
+ * 集群模式下，组合的任务队列需要在名称中指定相同的hash tag（例如"{mail}_high"、"{mail}_low"），位于同一个节点并共用备份队列
+ */
+public class MultiTaskQueue extends TaskQueue {
+
+    private static final Logger logger = Logger.getLogger(MultiTaskQueue.class.getName());
+
+    private static final int REDIS_DB_IDX = 0;
+
+    /**
+     * 队列管理器
+     */
+    private final KMQueueAdapter kmQueueAdapter;
+
+    /**
+     * 组合的任务队列
+     */
+    private final List<RedisTaskQueue> queues;
+
+    /**
+     * 任务队列名称 -> 任务队列
+     */
+    private final Map<String, RedisTaskQueue> queueMap = new LinkedHashMap<>();
+
+    /**
+     * 按权重选择优先获取的任务队列
+     */
+    private final WeightedRoundRobin roundRobin;
+
+    /**
+     * 组合的名称，各个任务队列的名称以逗号分隔
+     */
+    private final String name;
+
+    /**
+     * 队列模式：包含安全队列时为SAFE，否则为DEFAULT
+     */
+    private final String mode;
+
+    /**
+     * 构造函数
+     *
+     * @param kmQueueAdapter 队列管理器
+     * @param queues         组合的任务队列
+     * @param weights        各个任务队列的权重
+     */
+    MultiTaskQueue(KMQueueAdapter kmQueueAdapter, List<RedisTaskQueue> queues, int[] weights) {
+        Assert.isTrue(queues != null && !queues.isEmpty(), "Param queues can't empty");
+        this.kmQueueAdapter = kmQueueAdapter;
+        this.queues = new ArrayList<>(queues);
+        this.roundRobin = new WeightedRoundRobin(weights);
+
+        List<String> names = new ArrayList<>(queues.size());
+        String mode = KMQueueAdapter.DEFAULT;
+        String backUpQueueName = kmQueueAdapter.getBackUpQueueName(queues.get(0).getName());
+        for (RedisTaskQueue queue : queues) {
+            Assert.isTrue(backUpQueueName.equals(kmQueueAdapter.getBackUpQueueName(queue.getName())),
+                    "The task queues must share a hash tag in cluster mode：" + queue.getName());
+            this.queueMap.put(queue.getName(), queue);
+            names.add(queue.getName());
+            if (KMQueueAdapter.SAFE.equals(queue.getMode())) {
+                mode = KMQueueAdapter.SAFE;
+            }
+        }
+        this.name = String.join(",", names);
+        this.mode = mode;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getMode() {
+        return this.mode;
+    }
+
+    @Override
+    public Task pushTask(Task task) {
+        return getTaskQueue(task).pushTask(task);
+    }
+
+    /**
+     * 批量插入任务，按任务所属的任务队列分组，每个任务队列一次网络往返
+     *
+     * @param tasks 队列任务
+     * @return 插入成功的任务
+     */
+    @Override
+    public List<Task> pushTasks(List<Task> tasks) {
+        List<Task> accepted = new ArrayList<>();
+        if (tasks == null || tasks.isEmpty()) {
+            return accepted;
+        }
+        for (Map.Entry<RedisTaskQueue, List<Task>> entry : groupByQueue(tasks).entrySet()) {
+            accepted.addAll(entry.getKey().pushTasks(entry.getValue()));
+        }
+        return accepted;
+    }
+
+    @Override
+    public Task pushTaskAt(Task task, long epochMs) {
+        return getTaskQueue(task).pushTaskAt(task, epochMs);
+    }
+
+    @Override
+    public void pushTaskToHeader(Task task) {
+        getTaskQueue(task).pushTaskToHeader(task);
+    }
+
+    /**
+     * 按权重获取各个任务队列中的任务，所有任务队列都为空时一直阻塞
+     *
+     * @return 队列任务
+     */
+    @Override
+    public Task popTask() {
+        Jedis jedis = null;
+        Task task = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, queues.get(0).getKey());
+            List<Task> tasks = popTasksByScript(jedis, 1);
+            if (!tasks.isEmpty()) {
+                task = tasks.get(0);
+            } else {
+                task = waitTask(jedis, 0);
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * 按权重批量获取各个任务队列中的任务，最多取max个
+     * <p>
+     * 每次调用选择一个优先获取的任务队列，该任务队列的任务不足max个时再依次获取其它任务队列；
+     * 所有任务队列都为空时最多阻塞等待timeoutMs毫秒，会向上取整到秒
+     *
+     * @param max       最多获取的任务数
+     * @param timeoutMs 所有任务队列都为空时的最大阻塞时间，单位：ms，小于等于0则不阻塞
+     * @return 队列任务，没有取到任务返回空集合
+     */
+    @Override
+    public List<Task> popTasks(int max, long timeoutMs) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+
+        List<Task> tasks = new ArrayList<>();
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, queues.get(0).getKey());
+
+            // 1.非阻塞地批量取出任务
+            tasks.addAll(popTasksByScript(jedis, max));
+
+            // 2.所有任务队列都为空，阻塞等待第一个任务
+            if (tasks.isEmpty() && timeoutMs > 0) {
+                int timeout = (int) Math.min(Integer.MAX_VALUE, (timeoutMs + 999) / 1000);
+                Task task = waitTask(jedis, timeout);
+                if (task != null) {
+                    tasks.add(task);
+                    if (max > 1) {
+                        tasks.addAll(popTasksByScript(jedis, max - 1));
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return tasks;
+    }
+
+    @Override
+    public void finishTask(Task task) {
+        getTaskQueue(task).finishTask(task);
+    }
+
+    /**
+     * 批量完成队列任务
+     * <p>
+     * 组合的安全队列共用备份队列，各个安全队列的任务通过一次脚本调用完成
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        if (tasks == null || tasks.isEmpty()) {
+            return;
+        }
+        RedisTaskQueue safeQueue = null;
+        List<Task> safeTasks = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            RedisTaskQueue taskQueue = getTaskQueue(task);
+            if (KMQueueAdapter.SAFE.equals(taskQueue.getMode())) {
+                safeQueue = taskQueue;
+                safeTasks.add(task);
+            }
+        }
+        if (safeQueue != null) {
+            safeQueue.finishTasks(safeTasks);
+        }
+    }
+
+    /**
+     * 通过一次脚本调用按本次的顺序从各个任务队列批量取出任务
+     * <p>
+     * 各个任务队列共用同一个队列管理器和备份队列，由第一个任务队列执行脚本
+     *
+     * @param jedis Jedis对象
+     * @param max   最多获取的任务数
+     * @return 队列任务
+     */
+    private List<Task> popTasksByScript(Jedis jedis, int max) {
+        List<byte[]> sources = new ArrayList<>();
+        List<String> safeQueues = new ArrayList<>();
+        for (int index : roundRobin.nextOrder()) {
+            RedisTaskQueue queue = queues.get(index);
+            for (byte[] source : queue.getSources()) {
+                sources.add(source);
+                safeQueues.add(KMQueueAdapter.SAFE.equals(queue.getMode()) ? queue.getName() : null);
+            }
+        }
+        return queues.get(0).popTasksByScript(jedis, max, sources.toArray(new byte[0][]), safeQueues.toArray(new String[0]));
+    }
+
+    /**
+     * 以阻塞的方式等待各个任务队列中的任务，只占用一个Redis连接
+     *
+     * @param jedis   Jedis对象
+     * @param timeout 最大阻塞时间，单位：s，0 则一直阻塞
+     * @return 队列任务，超时返回null
+     */
+    private Task waitTask(Jedis jedis, int timeout) {
+        if (KMQueueAdapter.DEFAULT.equals(this.mode)) {// 全部为简单队列，同时等待所有任务队列
+            List<byte[]> sources = new ArrayList<>();
+            for (int index : roundRobin.nextOrder()) {
+                for (byte[] source : queues.get(index).getSources()) {
+                    sources.add(source);
+                }
+            }
+            List<byte[]> result = jedis.brpop(timeout, sources.toArray(new byte[0][]));
+            if (result == null || result.size() != 2) {
+                return null;
+            }
+            return kmQueueAdapter.getTaskCodec().decode(result.get(1));
+        }
+
+        // 包含安全队列，每次在按权重选中的安全队列上阻塞1秒，再检查其它任务队列
+        for (int waited = 0; timeout == 0 || waited < timeout; waited++) {
+            RedisTaskQueue safeQueue = null;
+            for (int index : roundRobin.nextOrder()) {
+                if (KMQueueAdapter.SAFE.equals(queues.get(index).getMode())) {
+                    safeQueue = queues.get(index);
+                    break;
+                }
+            }
+            Task task = safeQueue.waitTask(jedis, safeQueue.getSources()[0], 1);
+            if (task != null) {
+                return task;
+            }
+            List<Task> tasks = popTasksByScript(jedis, 1);
+            if (!tasks.isEmpty()) {
+                return tasks.get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 获取任务所属的任务队列
+     *
+     * @param task 队列任务
+     * @return 任务队列
+     */
+    private RedisTaskQueue getTaskQueue(Task task) {
+        RedisTaskQueue taskQueue = this.queueMap.get(task.getQueue());
+        if (taskQueue == null) {
+            throw new NestedException("The task queue is not part of the multi task queue：" + task.getQueue());
+        }
+        return taskQueue;
+    }
+
+    /**
+     * 按所属的任务队列对任务分组
+     *
+     * @param tasks 队列任务
+     * @return 任务队列 -> 任务
+     */
+    private Map<RedisTaskQueue, List<Task>> groupByQueue(List<Task> tasks) {
+        Map<RedisTaskQueue, List<Task>> groups = new LinkedHashMap<>();
+        for (Task task : tasks) {
+            groups.computeIfAbsent(getTaskQueue(task), k -> new ArrayList<>()).add(task);
+        }
+        return groups;
+    }
+}
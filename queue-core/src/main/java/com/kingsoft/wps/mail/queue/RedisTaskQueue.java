@@ -1,10 +1,18 @@
 package com.kingsoft.wps.mail.queue;
 
-import com.alibaba.fastjson.JSON;
-import com.kingsoft.wps.mail.distributed.lock.DistributedLock;
+import com.kingsoft.wps.mail.queue.backup.RedisBackupQueue;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
 import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.KMQUtils;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -19,6 +27,137 @@ public class RedisTaskQueue extends TaskQueue {
 
     private static final int REDIS_DB_IDX = 0;
 
+    /**
+     * 批量插入任务的脚本，保证唯一性校验(sadd)与插入(lpush)在一次网络往返内完成
+     * <p>
+     * KEYS[1] 唯一性标记集合，KEYS[2...] 任务队列各个优先级的列表，不区分优先级时只有任务队列本身；
+     * ARGV 依次为 (任务所属列表在KEYS中的序号, 任务id, 编码后的任务)，任务id为空字符串表示该任务不需要做唯一性校验。
+     * <p>
+     * 返回每个任务是否插入成功，1 - 成功，0 - 任务已存在
+     */
+    private static final byte[] PUSH_TASKS_SCRIPT = SafeEncoder.encode(
+            "local accepted = {} " +
+            "for i = 1, #ARGV, 3 do " +
+            "  if ARGV[i + 1] == '' or redis.call('SADD', KEYS[1], ARGV[i + 1]) == 1 then " +
+            "    redis.call('LPUSH', KEYS[tonumber(ARGV[i])], ARGV[i + 2]) " +
+            "    accepted[#accepted + 1] = 1 " +
+            "  else " +
+            "    accepted[#accepted + 1] = 0 " +
+            "  end " +
+            "end " +
+            "return accepted");
+
+    /**
+     * 插入延时任务的脚本，保证唯一性校验(sadd)与插入(zadd)在一次网络往返内完成
+     * <p>
+     * KEYS[1] 延时任务集合，KEYS[2] 唯一性标记集合；ARGV[1] 任务id，为空字符串表示不需要做唯一性校验，
+     * ARGV[2] 任务的执行时间，ARGV[3] 编码后的任务
+     * <p>
+     * 返回1 - 成功，0 - 任务已存在
+     */
+    private static final byte[] PUSH_DELAYED_TASK_SCRIPT = SafeEncoder.encode(
+            "if ARGV[1] ~= '' and redis.call('SADD', KEYS[2], ARGV[1]) == 0 then " +
+            "  return 0 " +
+            "end " +
+            "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[3]) " +
+            "return 1");
+
+    /**
+     * 将到期的延时任务放入任务队列的脚本
+     * <p>
+     * KEYS[1] 任务队列，KEYS[2] 延时任务集合；ARGV[1] 当前时间，ARGV[2] 最多放入的任务数
+     * <p>
+     * 按执行时间从早到晚放入任务队列的队尾(lpush)，与到期时调用pushTask一致；返回放入的任务数
+     */
+    private static final byte[] PROMOTE_DELAYED_TASKS_SCRIPT = SafeEncoder.encode(
+            "local tasks = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) " +
+            "if #tasks > 0 then " +
+            "  redis.call('ZREM', KEYS[2], unpack(tasks)) " +
+            "  redis.call('LPUSH', KEYS[1], unpack(tasks)) " +
+            "end " +
+            "return #tasks");
+
+    /**
+     * 批量取任务的脚本，从队尾最多取出ARGV[1]个任务
+     * <p>
+     * KEYS[1...ARGV[3]] 依次获取任务的列表，前一个列表为空时才从后一个列表获取，不区分优先级时只有任务队列本身；
+     * 包含安全队列的列表时还需依次传入各个分区的备份队列索引(hash)，以及各个分区的备份队列索引(sorted set)；
+     * ARGV[1] 最多取出的任务数，ARGV[2] 任务执行的时间戳，ARGV[3] 获取任务的列表个数，ARGV[4] 本次取出任务的标识，
+     * ARGV[5...] 各个列表所属的安全队列名称，简单队列为空字符串
+     * <p>
+     * 对于安全队列，取出的任务在同一脚本内放入所属分区的备份队列索引，并记录任务执行的时间戳，
+     * 索引中的key为"任务队列名称:任务id:本次取出任务的标识-序号"（{@link KMQUtils#backupKey(String, String, String)}），
+     * 分区按任务id计算，与{@link KMQUtils#partition(String, int)}一致。
+     * 任务id从编码后的任务中读取：首字节为{@link BinaryTaskCodec#MAGIC}时从二进制头部读取，首字节为'{'时按JSON解析。
+     * 安全队列的任务先通过LINDEX读取，读取到任务id之后才从列表中取出，因此无法读取任务id的任务保留在列表中，不会丢失：
+     * 该任务是本次的第一个任务时返回错误，否则返回已经取出的任务
+     * <p>
+     * 返回 {取出的任务, 各个任务所在列表在KEYS中的序号, 各个任务在备份队列索引中的key（简单队列为空字符串）}
+     */
+    private static final byte[] POP_TASKS_SCRIPT = SafeEncoder.encode(
+            "local l = tonumber(ARGV[3]) " +
+            "local n = (#KEYS - l) / 2 " +
+            "local tasks = {} " +
+            "local from = {} " +
+            "local keys = {} " +
+            "local k = 1 " +
+            "for i = 1, tonumber(ARGV[1]) do " +
+            "  local task = nil " +
+            "  while k <= l do " +
+            "    task = redis.call('LINDEX', KEYS[k], -1) " +
+            "    if task then break end " +
+            "    k = k + 1 " +
+            "  end " +
+            "  if not task then break end " +
+            "  local id = nil " +
+            "  if n > 0 and ARGV[4 + k] ~= '' then " +
+            "    local b = string.byte(task, 1) " +
+            "    if b == 177 then " +
+            "      id = string.sub(task, 4, 3 + string.byte(task, 2) * 256 + string.byte(task, 3)) " +
+            "    elseif b == 123 then " +
+            "      local ok, t = pcall(cjson.decode, task) " +
+            "      if ok and type(t) == 'table' and type(t.id) == 'string' then id = t.id end " +
+            "    end " +
+            "    if not id then " +
+            "      if #tasks == 0 then " +
+            "        return redis.error_reply('Can not read the task id of the safe queue ' .. ARGV[4 + k] .. ', the task codec must write the binary or JSON header') " +
+            "      end " +
+            "      break " +
+            "    end " +
+            "  end " +
+            "  redis.call('RPOP', KEYS[k]) " +
+            "  local key = '' " +
+            "  if id then " +
+            "    local p = 0 " +
+            "    if n > 1 then " +
+            "      local h = 0 " +
+            "      for j = 1, #id do h = (h * 31 + string.byte(id, j)) % 2147483648 end " +
+            "      p = h % n " +
+            "    end " +
+            "    key = ARGV[4 + k] .. ':' .. id .. ':' .. ARGV[4] .. '-' .. i " +
+            "    redis.call('HSET', KEYS[l + 1 + p], key, task) " +
+            "    redis.call('ZADD', KEYS[l + 1 + n + p], ARGV[2], key) " +
+            "  end " +
+            "  tasks[#tasks + 1] = task " +
+            "  from[#from + 1] = k " +
+            "  keys[#keys + 1] = key " +
+            "end " +
+            "return {tasks, from, keys}");
+
+    /**
+     * 为备份队列中的任务建立索引的脚本，用于brpoplpush之后记录任务执行的时间戳
+     * <p>
+     * KEYS[1] 备份队列，KEYS[2] 任务所属分区的备份队列索引(hash)，KEYS[3] 任务所属分区的备份队列索引(sorted set)；
+     * ARGV[1] brpoplpush移入备份队列的任务（编码后），ARGV[2] 任务在备份队列索引中的key，ARGV[3] 任务执行的时间戳，为空字符串则只删除该任务
+     */
+    private static final byte[] INDEX_BACKUP_TASK_SCRIPT = SafeEncoder.encode(
+            "redis.call('LREM', KEYS[1], 1, ARGV[1]) " +
+            "if ARGV[3] ~= '' then " +
+            "  redis.call('HSET', KEYS[2], ARGV[2], ARGV[1]) " +
+            "  redis.call('ZADD', KEYS[3], ARGV[3], ARGV[2]) " +
+            "end " +
+            "return 1");
+
     /**
      * 任务队列名称
      */
@@ -29,11 +168,41 @@ public class RedisTaskQueue extends TaskQueue {
      */
     private final String mode;
 
+    /**
+     * 任务队列在Redis中的key，集群模式下带有hash tag（{@link KMQueueAdapter#getQueueKey(String)}），其它key均以此为前缀
+     */
+    private final String key;
+
+    /**
+     * 任务队列的key的字节形式，用于二进制命令
+     */
+    private final byte[] nameBytes;
+
+    /**
+     * 任务队列的优先级设置，不区分优先级时为null
+     */
+    private final TaskPriorities priorities;
+
+    /**
+     * 各个优先级的列表名称（字节形式），下标即优先级；不区分优先级时只有任务队列本身
+     */
+    private final byte[][] listNames;
+
+    /**
+     * 各个优先级的延时任务集合名称（字节形式），下标即优先级
+     */
+    private final byte[][] delayedNames;
+
     /**
      * 队列管理器
      */
     private KMQueueAdapter kmQueueAdapter;
 
+    /**
+     * 备份队列
+     */
+    private RedisBackupQueue backupQueue;
+
     /**
      * 构造函数
      *
@@ -48,6 +217,18 @@ public class RedisTaskQueue extends TaskQueue {
         }
         this.name = name;
         this.mode = mode;
+        this.key = kmQueueAdapter.getQueueKey(name);
+        this.nameBytes = SafeEncoder.encode(this.key);
+        this.priorities = kmQueueAdapter.getTaskPriorities(name);
+        int levels = this.priorities == null ? 1 : this.priorities.getLevels();
+        this.listNames = new byte[levels][];
+        this.delayedNames = new byte[levels][];
+        for (int i = 0; i < levels; i++) {
+            String listName = this.priorities == null ? this.key : this.priorities.getListName(this.key, i);
+            this.listNames[i] = SafeEncoder.encode(listName);
+            this.delayedNames[i] = SafeEncoder.encode(listName + Constant.DELAYED_SUFFIX);
+        }
+        this.backupQueue = new RedisBackupQueue(kmQueueAdapter, kmQueueAdapter.getBackUpQueueName(name));
     }
 
     @Override
@@ -60,12 +241,23 @@ public class RedisTaskQueue extends TaskQueue {
         return this.mode;
     }
 
+    /**
+     * 获取任务队列在Redis中的key
+     *
+     * @return 任务队列的key，非集群模式下即为任务队列名称
+     */
+    String getKey() {
+        return this.key;
+    }
+
     /**
      * 向任务队列中插入任务
      * <p>
      * 如果插入任务成功，则返回该任务，失败，则返回null
      * <p>
      * 特别的，对于唯一性任务，如果该任务在队列已经存在，则返回null
+     * <p>
+     * 对于区分优先级的任务队列，任务插入其优先级对应的列表
      *
      * @param task 队列任务
      * @return 插入的任务
@@ -74,20 +266,19 @@ public class RedisTaskQueue extends TaskQueue {
     public Task pushTask(Task task) {
         Jedis jedis = null;
         try {
-            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
 
             // 队列任务唯一性校验
             if (this.getMode().equals(KMQueueAdapter.SAFE) && task.isUnique()) {// 唯一性任务
 
                 // Integer reply, specifically: 1 if the new element was added 0 if the element was already a member of the set
-                Long isExist = jedis.sadd(this.name + Constant.UNIQUE_SUFFIX, task.getId());
+                Long isExist = jedis.sadd(this.key + Constant.UNIQUE_SUFFIX, task.getId());
                 if (isExist == 0) {
                     return null;
                 }
             }
 
-            String taskJson = JSON.toJSONString(task);
-            jedis.lpush(this.name, taskJson);
+            jedis.lpush(this.listNames[getPriority(task)], getTaskCodec().encode(task));
             return task;
         } catch (Throwable e) {
             logger.info(e.getMessage());
@@ -100,14 +291,173 @@ public class RedisTaskQueue extends TaskQueue {
         return null;
     }
 
+    /**
+     * 向任务队列中批量插入任务
+     * <p>
+     * 整批任务在一次网络往返内提交：对于简单队列，或者不包含唯一性任务的安全队列，使用一条多值的lpush；
+     * 否则通过脚本在服务端完成唯一性校验和插入。对于区分优先级的任务队列，各个优先级的任务通过管道一次提交。
+     * <p>
+     * 返回插入成功的任务，唯一性任务如果在队列中已经存在，则不会出现在返回结果中；
+     * 插入失败时返回空集合
+     *
+     * @param tasks 队列任务
+     * @return 插入成功的任务
+     */
+    @Override
+    public List<Task> pushTasks(List<Task> tasks) {
+        List<Task> accepted = new ArrayList<>();
+        if (tasks == null || tasks.isEmpty()) {
+            return accepted;
+        }
+
+        boolean checkUnique = false;
+        if (this.getMode().equals(KMQueueAdapter.SAFE)) {
+            for (Task task : tasks) {
+                if (task.isUnique()) {
+                    checkUnique = true;
+                    break;
+                }
+            }
+        }
+
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+
+            if (checkUnique) {// 存在唯一性任务
+                List<byte[]> keys = new ArrayList<>(this.listNames.length + 1);
+                keys.add(SafeEncoder.encode(this.key + Constant.UNIQUE_SUFFIX));
+                keys.addAll(Arrays.asList(this.listNames));
+                List<byte[]> args = new ArrayList<>(tasks.size() * 3);
+                for (Task task : tasks) {
+                    args.add(SafeEncoder.encode(String.valueOf(getPriority(task) + 2)));
+                    args.add(SafeEncoder.encode(task.isUnique() ? task.getId() : ""));
+                    args.add(getTaskCodec().encode(task));
+                }
+
+                List<?> results = (List<?>) jedis.eval(PUSH_TASKS_SCRIPT, keys, args);
+                for (int i = 0; i < tasks.size(); i++) {
+                    if (((Long) results.get(i)) == 1) {
+                        accepted.add(tasks.get(i));
+                    }
+                }
+            } else if (this.priorities == null) {
+                byte[][] taskBytes = new byte[tasks.size()][];
+                for (int i = 0; i < tasks.size(); i++) {
+                    taskBytes[i] = getTaskCodec().encode(tasks.get(i));
+                }
+                jedis.lpush(this.nameBytes, taskBytes);
+                accepted.addAll(tasks);
+            } else {// 区分优先级，按优先级分组插入
+                List<List<byte[]>> taskBytes = new ArrayList<>(this.listNames.length);
+                for (int i = 0; i < this.listNames.length; i++) {
+                    taskBytes.add(new ArrayList<>());
+                }
+                for (Task task : tasks) {
+                    taskBytes.get(getPriority(task)).add(getTaskCodec().encode(task));
+                }
+                Pipeline pipeline = jedis.pipelined();
+                for (int i = 0; i < this.listNames.length; i++) {
+                    if (!taskBytes.get(i).isEmpty()) {
+                        pipeline.lpush(this.listNames[i], taskBytes.get(i).toArray(new byte[0][]));
+                    }
+                }
+                pipeline.sync();
+                accepted.addAll(tasks);
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * 添加在指定时间执行的延时任务
+     * <p>
+     * 任务保存在延时任务集合(sorted set)中，以执行时间排序；对于安全队列的唯一性任务，与{@link #pushTask(Task)}一样做唯一性校验。
+     * 对于区分优先级的任务队列，每个优先级有单独的延时任务集合，到期后放入其优先级对应的列表
+     *
+     * @param task    队列任务
+     * @param epochMs 任务的执行时间，单位：ms
+     * @return 添加的任务，添加失败或者唯一性任务已经存在时返回null
+     */
+    @Override
+    public Task pushTaskAt(Task task, long epochMs) {
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+
+            // 任务的存活时间从执行时间开始计算
+            Task.TaskStatus status = task.getTaskStatus();
+            status.setGenTimestamp(Math.max(status.getGenTimestamp(), epochMs));
+
+            boolean checkUnique = this.getMode().equals(KMQueueAdapter.SAFE) && task.isUnique();
+            Object result = jedis.eval(PUSH_DELAYED_TASK_SCRIPT,
+                    Arrays.asList(this.delayedNames[getPriority(task)], SafeEncoder.encode(this.key + Constant.UNIQUE_SUFFIX)),
+                    Arrays.asList(SafeEncoder.encode(checkUnique ? task.getId() : ""), SafeEncoder.encode(String.valueOf(epochMs)),
+                            getTaskCodec().encode(task)));
+            if (((Long) result) == 1) {
+                return task;
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将到期的延时任务放入任务队列，最多max个
+     * <p>
+     * 取出与放入在同一脚本内完成，多个进程同时调用时，每个任务只会被放入一次；
+     * 对于区分优先级的任务队列，从高优先级到低优先级依次处理各个延时任务集合
+     *
+     * @param max 最多放入的任务数，不能超过1000（Lua脚本unpack的参数个数限制）
+     * @return 放入的任务数
+     */
+    public int promoteDelayedTasks(int max) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+        Assert.isTrue(max <= 1000, "Param max must be less than or equal to 1000");
+
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+            byte[] now = SafeEncoder.encode(String.valueOf(System.currentTimeMillis()));
+            int promoted = 0;
+            for (int i = 0; i < this.listNames.length && promoted < max; i++) {
+                Object result = jedis.eval(PROMOTE_DELAYED_TASKS_SCRIPT,
+                        Arrays.asList(this.listNames[i], this.delayedNames[i]),
+                        Arrays.asList(now, SafeEncoder.encode(String.valueOf(max - promoted))));
+                promoted += ((Long) result).intValue();
+            }
+            return promoted;
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return 0;
+    }
+
     @Override
     public void pushTaskToHeader(Task task) {
 
         Jedis jedis = null;
         try {
-            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
-            String taskJson = JSON.toJSONString(task);
-            jedis.rpush(this.name, taskJson);
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+            jedis.rpush(this.listNames[getPriority(task)], getTaskCodec().encode(task));
         } catch (Throwable e) {
             logger.info(e.getMessage());
             e.printStackTrace();
@@ -120,41 +470,87 @@ public class RedisTaskQueue extends TaskQueue {
     }
 
     /**
-     * 1.采用阻塞队列，以阻塞的方式(brpop)获取任务队列中的任务；<br>
-     * 2.判断任务存活时间是否超时（对应的是大于`aliveTimeout`）；<br>
-     * 3.更新任务的执行时间戳，放入备份队列的队首；<br>
+     * 1.通过脚本从队尾取出任务，对于安全队列，同一脚本内放入备份队列索引，并记录任务执行的时间戳；<br>
+     * 2.如果任务队列为空，则采用阻塞队列，以阻塞的方式获取任务队列中的任务，对于安全队列，
+     * 使用brpoplpush将任务原子地移入备份队列，再为该任务建立索引；<br>
+     * 3.判断任务存活时间是否超时（对应的是大于`aliveTimeout`），超时的任务从备份队列中删除；<br>
+     * <p>
+     * 安全队列的任务从任务队列移入备份队列是一个原子操作，消费者在任意时刻宕机都不会丢失任务
+     * <p>
+     * 对于区分优先级的任务队列，按各个优先级的权重选择优先获取的列表（{@link TaskPriorities}）
      * <p>
      * 任务状态不变，默认值为`normal`
      *
-     * @return
+     * @return 队列任务
      */
     @Override
     public Task popTask() {
         Jedis jedis = null;
         Task task = null;
         try {
-            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
 
             // 判断队列模式
-            if (KMQueueManager.SAFE.equals(getMode())) {// 安全队列
-                // 1.采用阻塞队列，获取任务队列中的任务(brpop)；
-                List<String> result = jedis.brpop(0, getName());
-                task = JSON.parseObject(result.get(1), Task.class);
-
-                // 2.判断任务存活时间是否超时（对应的是大于`aliveTimeout`）；
-                Task.TaskStatus status = task.getTaskStatus();// 获取任务状态
-                long taskGenTimeMillis = status.getGenTimestamp();// 任务生成的时间戳
-                long currentTimeMillis = System.currentTimeMillis();// 当前时间戳
-                long intervalTimeMillis = currentTimeMillis - taskGenTimeMillis;// 任务的存活时间
-                if (intervalTimeMillis <= kmQueueAdapter.getAliveTimeout()) {// 如果大于存活超时时间，则不再执行
-                    // 3.更新任务的执行时间戳，放入备份队列的队首；
-                    task.getTaskStatus().setExcTimestamp(System.currentTimeMillis());// 更新任务的执行时间戳
-                    jedis.lpush(kmQueueAdapter.getBackUpQueueName(), JSON.toJSONString(task));
+            if (KMQueueManager.SAFE.equals(getMode()) || this.priorities != null) {// 安全队列，或者区分优先级的队列
+                List<Task> tasks = popTasksByScript(jedis, 1);
+                if (!tasks.isEmpty()) {
+                    task = tasks.get(0);
+                } else {
+                    task = waitTask(jedis, 0);
                 }
             } else if (KMQueueManager.DEFAULT.equals(getMode())) {// 简单队列
-                List<String> result = jedis.brpop(0, getName());
-                String taskJson = result.get(1);
-                task = JSON.parseObject(taskJson, Task.class);
+                task = waitTask(jedis, 0);
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * 批量获取任务队列中的任务，最多取max个
+     * <p>
+     * 1.通过脚本非阻塞地从队尾批量取出任务，对于安全队列，同一脚本内放入备份队列索引，并记录任务执行的时间戳；<br>
+     * 2.如果任务队列为空，则以阻塞的方式等待第一个任务，最多等待timeoutMs毫秒，取到任务后再批量取出剩余的任务；<br>
+     * 3.存活时间超时（对应的是大于`aliveTimeout`）的任务从备份队列中删除；<br>
+     * <p>
+     * 注意，redis的阻塞超时时间以秒为单位，timeoutMs会向上取整到秒
+     * <p>
+     * 对于区分优先级的任务队列，每次调用按各个优先级的权重选择优先获取的列表，该列表为空时再按优先级从高到低获取
+     * <p>
+     * 任务状态不变，默认值为`normal`
+     *
+     * @param max       最多获取的任务数
+     * @param timeoutMs 队列为空时的最大阻塞时间，单位：ms，小于等于0则不阻塞
+     * @return 队列任务，没有取到任务返回空集合
+     */
+    @Override
+    public List<Task> popTasks(int max, long timeoutMs) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+
+        List<Task> tasks = new ArrayList<>();
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+
+            // 1.非阻塞地批量取出任务
+            tasks.addAll(popTasksByScript(jedis, max));
+
+            // 2.任务队列为空，阻塞等待第一个任务
+            if (tasks.isEmpty() && timeoutMs > 0) {
+                int timeout = (int) Math.min(Integer.MAX_VALUE, (timeoutMs + 999) / 1000);
+                Task task = waitTask(jedis, timeout);
+                if (task != null) {
+                    tasks.add(task);
+                    if (max > 1) {
+                        tasks.addAll(popTasksByScript(jedis, max - 1));
+                    }
+                }
             }
         } catch (Throwable e) {
             logger.info(e.getMessage());
@@ -164,31 +560,270 @@ public class RedisTaskQueue extends TaskQueue {
                 kmQueueAdapter.returnResource(jedis);
             }
         }
+        return tasks;
+    }
+
+    /**
+     * 通过脚本非阻塞地从队尾批量取出任务，对于安全队列，同一脚本内放入备份队列索引，并记录任务执行的时间戳
+     * <p>
+     * 存活时间超时（对应的是大于`aliveTimeout`）的任务从备份队列中删除
+     *
+     * @param jedis Jedis对象
+     * @param max   最多获取的任务数
+     * @return 队列任务
+     */
+    private List<Task> popTasksByScript(Jedis jedis, int max) {
+        byte[][] sources = getSources();
+        String[] safeQueues = new String[sources.length];
+        if (KMQueueManager.SAFE.equals(getMode())) {
+            Arrays.fill(safeQueues, this.name);
+        }
+        return popTasksByScript(jedis, max, sources, safeQueues);
+    }
+
+    /**
+     * 通过脚本非阻塞地从多个列表依次批量取出任务，前一个列表为空时才从后一个列表获取
+     * <p>
+     * 同一个队列管理器的安全队列共用备份队列（集群模式下为相同hash tag的安全队列），因此各个任务队列的列表可以在同一脚本内获取（{@link MultiTaskQueue}）；
+     * 安全队列的任务在同一脚本内放入备份队列索引，并记录任务执行的时间戳，存活时间超时的任务从备份队列中删除
+     *
+     * @param jedis      Jedis对象
+     * @param max        最多获取的任务数
+     * @param sources    依次获取任务的列表
+     * @param safeQueues 各个列表所属的安全队列名称，简单队列为null
+     * @return 队列任务
+     */
+    @SuppressWarnings("unchecked")
+    List<Task> popTasksByScript(Jedis jedis, int max, byte[][] sources, String[] safeQueues) {
+        boolean hasSafe = false;
+        List<byte[]> args = new ArrayList<>(4 + sources.length);
+        long excTimestamp = System.currentTimeMillis();// 任务执行的时间戳
+        args.add(SafeEncoder.encode(String.valueOf(max)));
+        args.add(SafeEncoder.encode(String.valueOf(excTimestamp)));
+        args.add(SafeEncoder.encode(String.valueOf(sources.length)));
+        args.add(SafeEncoder.encode(KMQUtils.genBackupToken()));
+        for (String safeQueue : safeQueues) {
+            args.add(SafeEncoder.encode(safeQueue != null ? safeQueue : ""));
+            hasSafe |= safeQueue != null;
+        }
+        List<byte[]> keys = new ArrayList<>(Arrays.asList(sources));
+        if (hasSafe) {
+            for (int i = 0; i < backupQueue.getPartitions(); i++) {
+                keys.add(SafeEncoder.encode(backupQueue.getTasksKey(i)));
+            }
+            for (int i = 0; i < backupQueue.getPartitions(); i++) {
+                keys.add(SafeEncoder.encode(backupQueue.getIndexKey(i)));
+            }
+        }
+        List<Object> result = (List<Object>) jedis.eval(POP_TASKS_SCRIPT, keys, args);
+        List<byte[]> taskBytes = (List<byte[]>) result.get(0);
+        List<Long> from = (List<Long>) result.get(1);
+        List<byte[]> backupKeys = (List<byte[]>) result.get(2);
+
+        List<Task> tasks = new ArrayList<>(taskBytes.size());
+        Pipeline pipeline = null;
+        for (int i = 0; i < taskBytes.size(); i++) {
+            Task task = getTaskCodec().decode(taskBytes.get(i));
+            if (safeQueues[from.get(i).intValue() - 1] != null) {
+                task.getTaskStatus().setExcTimestamp(excTimestamp);// 更新任务的执行时间戳
+                task.setBackupKey(SafeEncoder.encode(backupKeys.get(i)));
+                if (!isAlive(task)) {// 如果大于存活超时时间，则不再执行
+                    if (pipeline == null) {
+                        pipeline = jedis.pipelined();
+                    }
+                    int partition = backupQueue.getPartition(task.getId());
+                    pipeline.zrem(backupQueue.getIndexKey(partition), task.getBackupKey());
+                    pipeline.hdel(backupQueue.getTasksKey(partition), task.getBackupKey());
+                }
+            }
+            tasks.add(task);
+        }
+        if (pipeline != null) {
+            pipeline.sync();
+        }
+        return tasks;
+    }
+
+    /**
+     * 以阻塞的方式获取任务队列中的任务
+     * <p>
+     * 对于安全队列，使用brpoplpush将任务原子地移入备份队列的队首，再通过脚本为该任务建立索引，并记录任务执行的时间戳，
+     * 存活时间超时（对应的是大于`aliveTimeout`）的任务直接从备份队列中删除。
+     * 如果建立索引之前消费者宕机，任务会保留在备份队列中，由备份队列监控迁移到索引中并重试
+     * <p>
+     * 对于区分优先级的任务队列：简单队列使用brpop同时等待各个优先级的列表；
+     * 安全队列的brpoplpush只能等待一个列表，因此每次在最高优先级的列表上阻塞1秒，超时后再通过脚本检查其它优先级的列表，
+     * 即队列空闲时，非最高优先级的任务最多延迟1秒被获取
+     *
+     * @param jedis   Jedis对象
+     * @param timeout 最大阻塞时间，单位：s，0 则一直阻塞
+     * @return 队列任务，超时返回null
+     */
+    private Task waitTask(Jedis jedis, int timeout) {
+        if (KMQueueManager.SAFE.equals(getMode())) {// 安全队列
+            if (this.priorities == null) {
+                return waitTask(jedis, this.nameBytes, timeout);
+            }
+            for (int waited = 0; timeout == 0 || waited < timeout; waited++) {
+                Task task = waitTask(jedis, this.listNames[0], 1);
+                if (task != null) {
+                    return task;
+                }
+                List<Task> tasks = popTasksByScript(jedis, 1);
+                if (!tasks.isEmpty()) {
+                    return tasks.get(0);
+                }
+            }
+            return null;
+        } else {// 简单队列
+            List<byte[]> result = jedis.brpop(timeout, getSources());
+            if (result == null || result.size() != 2) {
+                return null;
+            }
+            return getTaskCodec().decode(result.get(1));
+        }
+    }
+
+    /**
+     * 以阻塞的方式获取安全队列中指定列表的任务，使用brpoplpush将任务原子地移入备份队列的队首，再通过脚本为该任务建立索引
+     *
+     * @param jedis   Jedis对象
+     * @param source  任务所在的列表，必须属于安全队列
+     * @param timeout 最大阻塞时间，单位：s，0 则一直阻塞
+     * @return 队列任务，超时返回null
+     */
+    Task waitTask(Jedis jedis, byte[] source, int timeout) {
+        byte[] backUpQueueName = SafeEncoder.encode(backupQueue.getName());
+        byte[] bytes = jedis.brpoplpush(source, backUpQueueName, timeout);
+        if (bytes == null) {
+            return null;
+        }
+        Task task = getTaskCodec().decode(bytes);
+
+        String excTimestamp = "";
+        if (isAlive(task)) {// 如果大于存活超时时间，则不再执行
+            task.getTaskStatus().setExcTimestamp(System.currentTimeMillis());// 更新任务的执行时间戳
+            excTimestamp = String.valueOf(task.getTaskStatus().getExcTimestamp());
+        }
+        task.setBackupKey(KMQUtils.backupKey(this.name, task.getId(), KMQUtils.genBackupToken()));
+        int partition = backupQueue.getPartition(task.getId());
+        jedis.eval(INDEX_BACKUP_TASK_SCRIPT,
+                Arrays.asList(backUpQueueName, SafeEncoder.encode(backupQueue.getTasksKey(partition)), SafeEncoder.encode(backupQueue.getIndexKey(partition))),
+                Arrays.asList(bytes, SafeEncoder.encode(task.getBackupKey()), SafeEncoder.encode(excTimestamp)));
         return task;
     }
 
+    /**
+     * 获取任务队列中等待执行的任务数，即各个优先级列表的长度之和，不包括延时任务和正在执行的任务
+     *
+     * @return 等待执行的任务数，获取失败时返回-1
+     */
+    public long size() {
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+            if (this.listNames.length == 1) {
+                return jedis.llen(this.nameBytes);
+            }
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> lengths = new ArrayList<>(this.listNames.length);
+            for (byte[] listName : this.listNames) {
+                lengths.add(pipeline.llen(listName));
+            }
+            pipeline.sync();
+            long size = 0;
+            for (Response<Long> length : lengths) {
+                size += length.get();
+            }
+            return size;
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 获取本次依次获取任务的列表
+     * <p>
+     * 不区分优先级时只有任务队列本身；否则按权重选中的优先级在前，其余按优先级从高到低
+     *
+     * @return 依次获取任务的列表
+     */
+    byte[][] getSources() {
+        if (this.priorities == null) {
+            return this.listNames;
+        }
+        int[] order = this.priorities.nextOrder();
+        byte[][] sources = new byte[order.length][];
+        for (int i = 0; i < order.length; i++) {
+            sources[i] = this.listNames[order[i]];
+        }
+        return sources;
+    }
+
+    /**
+     * 获取任务的优先级，不区分优先级时返回0
+     *
+     * @param task 队列任务
+     * @return 任务的优先级
+     */
+    private int getPriority(Task task) {
+        return this.priorities == null ? 0 : this.priorities.getPriority(task);
+    }
+
+    /**
+     * 获取任务编解码器
+     *
+     * @return 任务编解码器
+     */
+    private TaskCodec getTaskCodec() {
+        return kmQueueAdapter.getTaskCodec();
+    }
+
+    /**
+     * 判断任务存活时间是否超时（对应的是大于`aliveTimeout`），未超时返回true
+     *
+     * @param task 队列任务
+     * @return 任务存活时间未超时返回true
+     */
+    private boolean isAlive(Task task) {
+        long taskGenTimeMillis = task.getTaskStatus().getGenTimestamp();// 任务生成的时间戳
+        long intervalTimeMillis = System.currentTimeMillis() - taskGenTimeMillis;// 任务的存活时间
+        return intervalTimeMillis <= kmQueueAdapter.getAliveTimeout();
+    }
+
+    /**
+     * 队列任务完成
+     * <p>
+     * 对于安全队列，根据任务id删除备份队列索引中的该任务，并删除该任务的存在标记
+     *
+     * @param task 队列任务
+     */
     @Override
     public void finishTask(Task task) {
         if (KMQueueManager.SAFE.equals(getMode())) {
             // 安全队列
-            Jedis jedis = null;
-            try {
-                jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
-                String taskJson = JSON.toJSONString(task);
-
-                // 删除备份队列中的任务
-                jedis.lrem(kmQueueAdapter.getBackUpQueueName(), 0, taskJson);
-
-                // 删除该任务的存在标记
-                jedis.srem(this.name + Constant.UNIQUE_SUFFIX, task.getId());
-            } catch (Throwable e) {
-                logger.info(e.getMessage());
-                e.printStackTrace();
-            } finally {
-                if (jedis != null) {
-                    kmQueueAdapter.returnResource(jedis);
-                }
-            }
+            backupQueue.finishTask(task);
+        }
+    }
+
+    /**
+     * 批量完成队列任务
+     * <p>
+     * 对于安全队列，通过一次脚本调用删除备份队列索引中的这些任务，并删除这些任务的存在标记
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        if (KMQueueManager.SAFE.equals(getMode()) && tasks != null && !tasks.isEmpty()) {
+            // 安全队列
+            backupQueue.finishTasks(tasks);
         }
     }
 
@@ -0,0 +1,340 @@
+package com.kingsoft.wps.mail.queue;
+
+import com.kingsoft.wps.mail.exception.NestedException;
+import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.KMQUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分片队列，将一个逻辑上的任务队列分散到多个分片（物理的任务队列）上，
+ * 通过{@link KMQueueManager.Builder#setShards(String, int)}设置，或者组合多个队列管理器（Redis连接池）中的任务队列：
+ * <ul>
+ * <li>插入任务：从两个随机的分片中选择任务数较少的分片（power of two choices），各个分片的任务数在本地缓存，
+ * 每个分片最多每{@link #SIZE_REFRESH_MILLIS}毫秒查询一次，插入时累加；
+ * 安全队列的唯一性任务按任务id散列到固定的分片，保证唯一性校验在同一个分片内完成；</li>
+ * <li>获取任务：每次调用轮流选择起始分片，先从各个分片平均获取，不足时再依次补足，各个分片都有积压时均匀消费；
+ * 所有分片都为空时，每次在一个分片上阻塞1秒，再检查其它分片，即空闲时其它分片的任务最多延迟1秒被获取；</li>
+ * </ul>
+ * 任务插入后所属的任务队列（{@link Task#getQueue()}）为其分片的名称，完成任务、备份队列监控重试时直接使用该分片；
+ * 延时任务需要在{@link com.kingsoft.wps.mail.queue.delayed.DelayedTaskPromoter}中设置分片队列的名称（会处理所有分片）。
+ * 线程安全
+ */
+public class ShardedTaskQueue extends TaskQueue {
+
+    /**
+     * 各个分片任务数的缓存时间，单位：ms
+     */
+    public static final long SIZE_REFRESH_MILLIS = 100;
+
+    /**
+     * 所有分片都为空时，每次在一个分片上阻塞等待的时间，单位：ms
+     */
+    private static final long WAIT_SLICE_MILLIS = 1000;
+
+    /**
+     * 分片队列的名称
+     */
+    private final String name;
+
+    /**
+     * 队列模式，与各个分片相同
+     */
+    private final String mode;
+
+    /**
+     * 各个分片
+     */
+    private final List<RedisTaskQueue> shards;
+
+    /**
+     * 分片名称 -> 分片
+     */
+    private final Map<String, RedisTaskQueue> shardMap = new LinkedHashMap<>();
+
+    /**
+     * 各个分片任务数的本地缓存
+     */
+    private final AtomicLongArray sizes;
+
+    /**
+     * 各个分片任务数的查询时间戳
+     */
+    private final AtomicLongArray sizeTimestamps;
+
+    /**
+     * 下一次获取任务的起始分片
+     */
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * 构造函数
+     *
+     * @param name   分片队列的名称
+     * @param shards 各个分片，队列模式必须相同，可以属于不同的队列管理器
+     */
+    public ShardedTaskQueue(String name, List<RedisTaskQueue> shards) {
+        Assert.notNull(name, "Param name can't null");
+        Assert.isTrue(shards != null && !shards.isEmpty(), "Param shards can't empty");
+        this.name = name;
+        this.mode = shards.get(0).getMode();
+        this.shards = new ArrayList<>(shards);
+        for (RedisTaskQueue shard : shards) {
+            Assert.isTrue(this.mode.equals(shard.getMode()), "The shards must have the same mode：" + shard.getName());
+            Assert.isTrue(this.shardMap.put(shard.getName(), shard) == null, "The shard is duplicated：" + shard.getName());
+        }
+        this.sizes = new AtomicLongArray(shards.size());
+        this.sizeTimestamps = new AtomicLongArray(shards.size());
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getMode() {
+        return this.mode;
+    }
+
+    /**
+     * 获取各个分片
+     *
+     * @return 各个分片
+     */
+    public List<RedisTaskQueue> getShards() {
+        return Collections.unmodifiableList(this.shards);
+    }
+
+    /**
+     * 向任务数较少的分片插入任务，唯一性任务插入其任务id对应的分片
+     *
+     * @param task 队列任务
+     * @return 插入的任务，失败或者唯一性任务已存在时返回null
+     */
+    @Override
+    public Task pushTask(Task task) {
+        RedisTaskQueue shard = this.shards.get(selectShard(task));
+        task.setQueue(shard.getName());
+        return shard.pushTask(task);
+    }
+
+    /**
+     * 批量插入任务，逐个选择分片后按分片分组，每个分片一次网络往返
+     *
+     * @param tasks 队列任务
+     * @return 插入成功的任务
+     */
+    @Override
+    public List<Task> pushTasks(List<Task> tasks) {
+        List<Task> accepted = new ArrayList<>();
+        if (tasks == null || tasks.isEmpty()) {
+            return accepted;
+        }
+        Map<RedisTaskQueue, List<Task>> groups = new LinkedHashMap<>();
+        for (Task task : tasks) {
+            RedisTaskQueue shard = this.shards.get(selectShard(task));
+            task.setQueue(shard.getName());
+            groups.computeIfAbsent(shard, k -> new ArrayList<>()).add(task);
+        }
+        for (Map.Entry<RedisTaskQueue, List<Task>> entry : groups.entrySet()) {
+            accepted.addAll(entry.getKey().pushTasks(entry.getValue()));
+        }
+        return accepted;
+    }
+
+    @Override
+    public Task pushTaskAt(Task task, long epochMs) {
+        RedisTaskQueue shard = this.shards.get(selectShard(task));
+        task.setQueue(shard.getName());
+        return shard.pushTaskAt(task, epochMs);
+    }
+
+    /**
+     * 将任务放回其所属分片的队首，不属于任何分片的任务按插入任务的方式选择分片
+     *
+     * @param task 队列任务
+     */
+    @Override
+    public void pushTaskToHeader(Task task) {
+        RedisTaskQueue shard = this.shardMap.get(task.getQueue());
+        if (shard == null) {
+            shard = this.shards.get(selectShard(task));
+            task.setQueue(shard.getName());
+        }
+        shard.pushTaskToHeader(task);
+    }
+
+    /**
+     * 获取任务，所有分片都为空时一直阻塞
+     *
+     * @return 队列任务
+     */
+    @Override
+    public Task popTask() {
+        List<Task> tasks = popTasks(1, Long.MAX_VALUE);
+        return tasks.isEmpty() ? null : tasks.get(0);
+    }
+
+    /**
+     * 批量获取各个分片中的任务，最多取max个
+     * <p>
+     * 从本次的起始分片开始，先从每个分片最多获取 max / 分片数（向上取整）个任务，不足max个时再依次补足；
+     * 所有分片都为空时最多阻塞等待timeoutMs毫秒，每次在一个分片上阻塞1秒，轮流等待各个分片
+     *
+     * @param max       最多获取的任务数
+     * @param timeoutMs 所有分片都为空时的最大阻塞时间，单位：ms，小于等于0则不阻塞
+     * @return 队列任务，没有取到任务返回空集合
+     */
+    @Override
+    public List<Task> popTasks(int max, long timeoutMs) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+
+        int start = Math.floorMod(this.nextShard.getAndIncrement(), this.shards.size());
+        List<Task> tasks = pollShards(start, max);
+        if (!tasks.isEmpty() || timeoutMs <= 0) {
+            return tasks;
+        }
+
+        // 所有分片都为空，轮流在各个分片上阻塞等待
+        long now = System.currentTimeMillis();
+        long deadline = timeoutMs > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMs;
+        for (int i = start; now < deadline; i++) {
+            int index = Math.floorMod(i, this.shards.size());
+            tasks = this.shards.get(index).popTasks(max, Math.min(deadline - now, WAIT_SLICE_MILLIS));
+            if (!tasks.isEmpty()) {
+                if (tasks.size() < max) {
+                    tasks.addAll(pollShards(index + 1, max - tasks.size()));
+                }
+                return tasks;
+            }
+            tasks = pollShards(index + 1, max);
+            if (!tasks.isEmpty()) {
+                return tasks;
+            }
+            now = System.currentTimeMillis();
+        }
+        return tasks;
+    }
+
+    @Override
+    public void finishTask(Task task) {
+        getShard(task).finishTask(task);
+    }
+
+    /**
+     * 批量完成队列任务，按所属的分片分组，每个分片一次网络往返
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        if (tasks == null || tasks.isEmpty()) {
+            return;
+        }
+        Map<RedisTaskQueue, List<Task>> groups = new LinkedHashMap<>();
+        for (Task task : tasks) {
+            groups.computeIfAbsent(getShard(task), k -> new ArrayList<>()).add(task);
+        }
+        for (Map.Entry<RedisTaskQueue, List<Task>> entry : groups.entrySet()) {
+            entry.getKey().finishTasks(entry.getValue());
+        }
+    }
+
+    /**
+     * 非阻塞地从各个分片获取任务，从start开始先平均获取，不足时再依次补足
+     *
+     * @param start 起始分片
+     * @param max   最多获取的任务数
+     * @return 队列任务
+     */
+    private List<Task> pollShards(int start, int max) {
+        int n = this.shards.size();
+        int quota = (max + n - 1) / n;
+        List<Task> tasks = new ArrayList<>();
+        boolean[] drained = new boolean[n];
+        for (int i = 0; i < n && tasks.size() < max; i++) {
+            int index = Math.floorMod(start + i, n);
+            int limit = Math.min(quota, max - tasks.size());
+            List<Task> polled = this.shards.get(index).popTasks(limit, 0);
+            drained[index] = polled.size() < limit;
+            tasks.addAll(polled);
+            this.sizes.getAndUpdate(index, s -> s == Long.MAX_VALUE ? s : Math.max(0, s - polled.size()));
+        }
+        for (int i = 0; i < n && tasks.size() < max; i++) {
+            int index = Math.floorMod(start + i, n);
+            if (!drained[index]) {
+                List<Task> polled = this.shards.get(index).popTasks(max - tasks.size(), 0);
+                tasks.addAll(polled);
+                this.sizes.getAndUpdate(index, s -> s == Long.MAX_VALUE ? s : Math.max(0, s - polled.size()));
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * 选择插入任务的分片
+     * <p>
+     * 安全队列的唯一性任务按任务id散列（{@link KMQUtils#partition(String, int)}）；
+     * 其它任务从两个随机的分片中选择任务数较少的分片，并累加该分片任务数的缓存
+     *
+     * @param task 队列任务
+     * @return 分片序号
+     */
+    private int selectShard(Task task) {
+        int n = this.shards.size();
+        int index;
+        if (KMQueueAdapter.SAFE.equals(this.mode) && task.isUnique()) {
+            index = KMQUtils.partition(task.getId(), n);
+        } else if (n == 1) {
+            index = 0;
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(n);
+            int b = random.nextInt(n - 1);
+            if (b >= a) {
+                b++;
+            }
+            index = getSize(a) <= getSize(b) ? a : b;
+        }
+        this.sizes.getAndUpdate(index, s -> s == Long.MAX_VALUE ? s : s + 1);
+        return index;
+    }
+
+    /**
+     * 获取分片的任务数，缓存超过{@link #SIZE_REFRESH_MILLIS}毫秒时重新查询；查询失败的分片视为任务数最多
+     *
+     * @param index 分片序号
+     * @return 分片的任务数
+     */
+    private long getSize(int index) {
+        long now = System.currentTimeMillis();
+        long timestamp = this.sizeTimestamps.get(index);
+        if (now - timestamp >= SIZE_REFRESH_MILLIS && this.sizeTimestamps.compareAndSet(index, timestamp, now)) {
+            long size = this.shards.get(index).size();
+            this.sizes.set(index, size < 0 ? Long.MAX_VALUE : size);
+        }
+        return this.sizes.get(index);
+    }
+
+    /**
+     * 获取任务所属的分片
+     *
+     * @param task 队列任务
+     * @return 分片
+     */
+    private RedisTaskQueue getShard(Task task) {
+        RedisTaskQueue shard = this.shardMap.get(task.getQueue());
+        if (shard == null) {
+            throw new NestedException("The task queue is not a shard of the sharded task queue：" + task.getQueue());
+        }
+        return shard;
+    }
+}
@@ -1,15 +1,28 @@
 package com.kingsoft.wps.mail.queue;
 
+import com.alibaba.fastjson.annotation.JSONField;
+import com.kingsoft.wps.mail.exception.NestedException;
 import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.utils.KMQUtils;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Created by 刘春龙 on 2018/1/18.
  */
 public class Task implements Serializable {
 
+    private static final Logger logger = Logger.getLogger(Task.class.getName());
+
+    /**
+     * 未设置优先级，使用任务队列的默认优先级
+     */
+    public static final int NO_PRIORITY = -1;
+
     /**
      * 任务队列名称
      */
@@ -32,6 +45,11 @@ public class Task implements Serializable {
      */
     private String data;
 
+    /**
+     * 压缩后的任务数据，由编解码器设置，第一次获取任务数据时才解压
+     */
+    private volatile byte[] compressedData;
+
     /**
      * 队列中任务是否可以存在多个相同任务，以id作为同一任务的标识
      */
@@ -42,6 +60,27 @@ public class Task implements Serializable {
      */
     private TaskStatus status;
 
+    /**
+     * 任务的优先级，0为最高优先级，只有设置了优先级的任务队列才生效（{@link TaskPriorities}）
+     */
+    private int priority = NO_PRIORITY;
+
+    /**
+     * 任务在Redis Stream中的消息id，由{@link com.kingsoft.wps.mail.queue.stream.StreamTaskQueue}取出任务时设置，用于确认任务，不会被编码
+     */
+    private transient String entryId;
+
+    /**
+     * 任务的消息是否位于队首任务的Stream中（{@link com.kingsoft.wps.mail.queue.stream.StreamTaskQueue#pushTaskToHeader(Task)}），
+     * 与{@link #entryId}一同设置，用于确认任务，不会被编码
+     */
+    private transient boolean headerEntry;
+
+    /**
+     * 任务在备份队列索引中的key，由安全队列取出任务时设置（任务队列名称、任务id与本次取出的标识），用于完成任务，不会被编码
+     */
+    private transient String backupKey;
+
     private Task() {
     }
 
@@ -133,12 +172,126 @@ public class Task implements Serializable {
         this.type = type;
     }
 
+    /**
+     * 获取任务数据
+     * <p>
+     * 如果任务数据是压缩的，第一次调用时解压
+     *
+     * @return 任务数据
+     */
     public String getData() {
+        byte[] compressed = this.compressedData;
+        if (compressed != null) {
+            this.data = new String(KMQUtils.decompress(compressed), StandardCharsets.UTF_8);
+            this.compressedData = null;
+        }
         return data;
     }
 
     public void setData(String data) {
         this.data = data;
+        this.compressedData = null;
+    }
+
+    /**
+     * 获取压缩后的任务数据，任务数据未压缩或已经解压时返回null
+     * <p>
+     * 由编解码器调用，重新编码未解压的任务时不需要再次压缩
+     *
+     * @return 压缩后的任务数据
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public byte[] getCompressedData() {
+        return compressedData;
+    }
+
+    /**
+     * 设置压缩后的任务数据，由编解码器调用
+     *
+     * @param compressedData 压缩后的任务数据，UTF-8编码后使用{@link KMQUtils#compress(byte[])}压缩
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public void setCompressedData(byte[] compressedData) {
+        this.data = null;
+        this.compressedData = compressedData;
+    }
+
+    /**
+     * 获取任务的优先级
+     *
+     * @return 任务的优先级，未设置时返回{@link #NO_PRIORITY}
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 设置任务的优先级，0为最高优先级，不能超过任务队列的优先级个数
+     *
+     * @param priority 任务的优先级，{@link #NO_PRIORITY}表示使用任务队列的默认优先级
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 获取任务在Redis Stream中的消息id
+     *
+     * @return 消息id，不是从{@link com.kingsoft.wps.mail.queue.stream.StreamTaskQueue}取出的任务返回null
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public String getEntryId() {
+        return entryId;
+    }
+
+    /**
+     * 设置任务在Redis Stream中的消息id，由{@link com.kingsoft.wps.mail.queue.stream.StreamTaskQueue}调用
+     *
+     * @param entryId 消息id
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public void setEntryId(String entryId) {
+        this.entryId = entryId;
+    }
+
+    /**
+     * 任务的消息是否位于队首任务的Stream中
+     *
+     * @return true - 通过{@link com.kingsoft.wps.mail.queue.stream.StreamTaskQueue#pushTaskToHeader(Task)}插入的任务
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public boolean isHeaderEntry() {
+        return headerEntry;
+    }
+
+    /**
+     * 设置任务的消息是否位于队首任务的Stream中，由{@link com.kingsoft.wps.mail.queue.stream.StreamTaskQueue}调用
+     *
+     * @param headerEntry 是否位于队首任务的Stream中
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public void setHeaderEntry(boolean headerEntry) {
+        this.headerEntry = headerEntry;
+    }
+
+    /**
+     * 获取任务在备份队列索引中的key
+     *
+     * @return 备份队列索引中的key，为null时按任务id完成任务（升级之前放入备份队列索引的任务）
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public String getBackupKey() {
+        return backupKey;
+    }
+
+    /**
+     * 设置任务在备份队列索引中的key，由安全队列取出任务以及备份队列获取执行超时的任务时调用
+     *
+     * @param backupKey 备份队列索引中的key
+     */
+    @JSONField(serialize = false, deserialize = false)
+    public void setBackupKey(String backupKey) {
+        this.backupKey = backupKey;
     }
 
     public TaskStatus getTaskStatus() {
@@ -246,6 +399,41 @@ public class Task implements Serializable {
         }
     }
 
+    /**
+     * 通过队列管理器中注册的任务处理器执行任务
+     * <p>
+     * 根据任务类型获取任务处理器（{@link KMQueueManager.Builder#registerTaskHandler(String, TaskHandler)}），
+     * 不会通过反射创建任务处理器。对于安全队列，任务处理器正常返回时完成任务；
+     * 抛出异常时记录日志，不会完成任务，由备份队列监控在执行超时后重试（与{@link #doTask(KMQueueManager, Class, Object...)}不同）；
+     * 任务类型没有对应的任务处理器时抛出异常，不会完成任务
+     * <p>
+     * 任务状态state不变
+     *
+     * @param kmQueueManager 队列管理器
+     * @param params         业务参数
+     */
+    public void dispatch(KMQueueManager kmQueueManager, Object... params) {
+        TaskHandler handler = kmQueueManager.getTaskHandler(this.type);
+        if (handler == null) {
+            throw new NestedException("No task handler registered for the task type：" + this.type);
+        }
+
+        // 获取任务所属队列
+        TaskQueue taskQueue = kmQueueManager.getTaskQueue(this.getQueue());
+        if (KMQueueManager.SAFE.equals(taskQueue.getMode())) {// 安全队列
+            try {
+                handler.handle(getData(), params);
+            } catch (Throwable e) {// 处理失败，不完成任务，由备份队列监控在执行超时后重试
+                logger.log(Level.WARNING, "Failed to handle the task：" + this.id + "，it will be retried after the protected timeout", e);
+                return;
+            }
+            // 任务执行完成，删除备份队列的相应任务
+            taskQueue.finishTask(this);
+        } else {// 普通队列
+            handler.handle(getData(), params);
+        }
+    }
+
     /**
      * 执行任务
      *
@@ -254,7 +442,7 @@ public class Task implements Serializable {
     private void handleTask(Class clazz, Object... params) {
         try {
             TaskHandler handler = (TaskHandler) clazz.newInstance();
-            handler.handle(this.data, params);
+            handler.handle(getData(), params);
         } catch (InstantiationException | IllegalAccessException e) {
             e.printStackTrace();
         }
@@ -2,6 +2,13 @@ package com.kingsoft.wps.mail.queue;
 
 /**
  * Created by 刘春龙 on 2017/3/6.
+ * <p>
+ * 通过任务消费者（{@link com.kingsoft.wps.mail.queue.consumer.TaskConsumer}、queue-virtual-thread模块的VirtualThreadTaskConsumer）消费安全队列时，
+ * handle正常返回视为处理成功，任务被完成；抛出异常视为处理失败，任务不会被完成，由备份队列监控在执行超时后重试，
+ * 超过重试次数后不再执行。与{@link BatchTaskHandler}中处理失败的任务相同。
+ * <p>
+ * 通过{@link Task#dispatch(KMQueueManager, Object...)}执行任务时与之相同；
+ * 通过{@link Task#doTask(KMQueueManager, Class, Object...)}执行任务时，抛出异常同样会完成任务，不会重试
  */
 public interface TaskHandler {
 
@@ -0,0 +1,99 @@
+package com.kingsoft.wps.mail.queue;
+
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.WeightedRoundRobin;
+
+/**
+ * 任务队列的优先级设置
+ * <p>
+ * 优先级从0开始，0为最高优先级；每个优先级的任务保存在单独的列表中，默认优先级的列表即任务队列本身，
+ * 其它优先级的列表名称为 任务队列名称 + {@link Constant#PRIORITY_SUFFIX} + 优先级。
+ * <p>
+ * 获取任务时按权重轮流选择优先获取的优先级（平滑加权轮询），选中的优先级没有任务时再按优先级从高到低获取，
+ * 低优先级的任务按权重比例获得处理机会，不会因为高优先级的任务积压而饿死
+ */
+public class TaskPriorities {
+
+    /**
+     * 各个优先级的权重
+     */
+    private final int[] weights;
+
+    /**
+     * 未设置优先级的任务使用的优先级
+     */
+    private final int defaultPriority;
+
+    /**
+     * 按权重选择优先获取的优先级
+     */
+    private final WeightedRoundRobin roundRobin;
+
+    /**
+     * 构造方法
+     *
+     * @param defaultPriority 未设置优先级的任务使用的优先级
+     * @param weights         各个优先级的权重，下标即优先级，0为最高优先级
+     */
+    public TaskPriorities(int defaultPriority, int... weights) {
+        Assert.isTrue(weights != null && weights.length >= 1, "Param weights can't empty");
+        Assert.isTrue(defaultPriority >= 0 && defaultPriority < weights.length, "Param defaultPriority out of range");
+        this.weights = weights.clone();
+        this.defaultPriority = defaultPriority;
+        this.roundRobin = new WeightedRoundRobin(weights);
+    }
+
+    /**
+     * 获取优先级的个数
+     *
+     * @return 优先级的个数
+     */
+    public int getLevels() {
+        return weights.length;
+    }
+
+    /**
+     * 获取未设置优先级的任务使用的优先级
+     *
+     * @return 默认优先级
+     */
+    public int getDefaultPriority() {
+        return defaultPriority;
+    }
+
+    /**
+     * 获取任务的优先级，未设置时返回默认优先级
+     *
+     * @param task 队列任务
+     * @return 任务的优先级
+     */
+    public int getPriority(Task task) {
+        int priority = task.getPriority();
+        if (priority == Task.NO_PRIORITY) {
+            return defaultPriority;
+        }
+        Assert.isTrue(priority < weights.length, "The task priority out of range, max " + (weights.length - 1) + "：" + priority);
+        return priority;
+    }
+
+    /**
+     * 获取指定优先级的列表名称
+     *
+     * @param queue    任务队列名称
+     * @param priority 优先级
+     * @return 列表名称
+     */
+    public String getListName(String queue, int priority) {
+        return priority == defaultPriority ? queue : queue + Constant.PRIORITY_SUFFIX + priority;
+    }
+
+    /**
+     * 按平滑加权轮询选择本次优先获取的优先级，返回获取任务时各个优先级的顺序：选中的优先级在前，其余按优先级从高到低
+     *
+     * @return 各个优先级的顺序
+     */
+    public int[] nextOrder() {
+        return roundRobin.nextOrder();
+    }
+}
@@ -1,5 +1,7 @@
 package com.kingsoft.wps.mail.queue;
 
+import java.util.List;
+
 /**
  * Created by 刘春龙 on 2017/3/3.
  */
@@ -26,6 +28,40 @@ public abstract class TaskQueue {
      */
     public abstract Task pushTask(Task task);
 
+    /**
+     * 往队列中批量添加任务
+     * <p>
+     * 整批任务在一次网络往返内提交
+     *
+     * @param tasks 队列任务
+     * @return 添加成功的任务
+     */
+    public abstract List<Task> pushTasks(List<Task> tasks);
+
+    /**
+     * 添加在指定时间执行的延时任务
+     * <p>
+     * 到达执行时间之前任务保存在延时任务集合中，到期后由{@link com.kingsoft.wps.mail.queue.delayed.DelayedTaskPromoter}
+     * 放入任务队列；任务生成的时间戳会被设置为执行时间，任务的存活时间从执行时间开始计算
+     *
+     * @param task    队列任务
+     * @param epochMs 任务的执行时间，单位：ms
+     * @return 添加的任务，添加失败或者唯一性任务已经存在时返回null
+     */
+    public abstract Task pushTaskAt(Task task, long epochMs);
+
+    /**
+     * 添加延迟指定时间后执行的延时任务
+     *
+     * @param task    队列任务
+     * @param delayMs 延迟时间，单位：ms
+     * @return 添加的任务，添加失败或者唯一性任务已经存在时返回null
+     * @see #pushTaskAt(Task, long)
+     */
+    public Task pushTaskDelayed(Task task, long delayMs) {
+        return pushTaskAt(task, System.currentTimeMillis() + delayMs);
+    }
+
     /**
      * 往队首添加任务
      *
@@ -42,10 +78,32 @@ public abstract class TaskQueue {
      */
     public abstract Task popTask();
 
+    /**
+     * 从任务队列里批量取任务，最多取max个
+     * <p>
+     * 队列为空时，最多阻塞等待timeoutMs毫秒，小于等于0则不阻塞；没有取到任务返回空集合
+     * <p>
+     * 任务状态state不变，默认值为`normal`
+     *
+     * @param max       最多获取的任务数
+     * @param timeoutMs 队列为空时的最大阻塞时间，单位：ms
+     * @return 队列任务
+     */
+    public abstract List<Task> popTasks(int max, long timeoutMs);
+
     /**
      * 队列任务完成
      *
      * @param task 队列任务
      */
     public abstract void finishTask(Task task);
+
+    /**
+     * 批量完成队列任务
+     * <p>
+     * 整批任务在一次网络往返内完成
+     *
+     * @param tasks 队列任务
+     */
+    public abstract void finishTasks(List<Task> tasks);
 }
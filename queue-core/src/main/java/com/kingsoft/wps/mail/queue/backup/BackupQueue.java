@@ -2,10 +2,16 @@ package com.kingsoft.wps.mail.queue.backup;
 
 import com.kingsoft.wps.mail.queue.Task;
 
+import java.util.List;
+
 /**
  * Created by 刘春龙 on 2017/3/5.
  * <p>
  * 安全队列对应的备份队列
+ * <p>
+ * 正在执行的任务保存在备份队列索引中，以备份key（{@link Task#getBackupKey()}）为key，记录任务数据以及任务执行的时间戳，并按照任务执行的时间戳排序
+ * <p>
+ * 备份队列索引可以按任务id散列为多个分区，各个分区可以被并发地处理
  */
 public abstract class BackupQueue {
 
@@ -21,6 +27,13 @@ public abstract class BackupQueue {
      */
     public abstract String getName();
 
+    /**
+     * 获取备份队列索引的分区数
+     *
+     * @return 分区数
+     */
+    public abstract int getPartitions();
+
     /**
      * 从队尾取一个任务，然后再将其放入队首
      *
@@ -28,10 +41,38 @@ public abstract class BackupQueue {
      */
     public abstract Task popTask();
 
+    /**
+     * 将备份队列中还没有建立索引的任务迁移到备份队列索引中
+     * <p>
+     * 这些任务是消费者移入备份队列后，还没来得及更新执行时间戳就宕机的任务，或者是升级之前放入备份队列的任务
+     */
+    public abstract void migrateTasks();
+
+    /**
+     * 获取指定分区中执行超时的任务，即执行的时间戳小于等于maxExcTimestamp的任务，按执行的时间戳升序排列
+     * <p>
+     * 任务的执行时间戳(excTimestamp)为索引中记录的时间戳；
+     * 只会读取执行超时的任务，耗时与正在执行的任务数无关
+     *
+     * @param partition       分区序号，从0开始
+     * @param maxExcTimestamp 任务执行的时间戳上限
+     * @param offset          跳过的任务数
+     * @param count           最多获取的任务数
+     * @return 执行超时的任务
+     */
+    public abstract List<Task> getExpiredTasks(int partition, long maxExcTimestamp, int offset, int count);
+
     /**
      * 备份队列的任务完成，删除备份队列中的该任务
      *
      * @param task 超时任务
      */
     public abstract void finishTask(Task task);
+
+    /**
+     * 备份队列的任务批量完成，删除备份队列中的这些任务
+     *
+     * @param tasks 队列任务
+     */
+    public abstract void finishTasks(List<Task> tasks);
 }
@@ -0,0 +1,222 @@
+package com.kingsoft.wps.mail.queue.backup;
+
+import com.kingsoft.wps.mail.queue.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 进程内的备份队列，与{@link com.kingsoft.wps.mail.queue.LocalTaskQueue}配合使用
+ * <p>
+ * 与{@link RedisBackupQueue}一致，正在执行的任务以备份key（{@link Task#getBackupKey()}）记录任务执行的时间戳，并按照任务执行的时间戳排序：
+ * <ul>
+ * <li>备份key -> 任务执行的时间戳（{@link ConcurrentHashMap}）</li>
+ * <li>(任务执行的时间戳, 备份key) -> 任务（{@link ConcurrentSkipListMap}）</li>
+ * </ul>
+ * 两者只在备份key所在的散列桶内同步更新，不同任务之间不会相互阻塞；同时保存各个任务队列唯一性任务的存在标记。
+ * <p>
+ * 任务在取出时直接建立索引，因此没有需要迁移的任务，也不需要分区，分区数固定为1；
+ * 执行超时的任务由队列管理器重试（{@link com.kingsoft.wps.mail.queue.KMQueueManager.Builder#setProtectedTimeout(long)}）
+ */
+public class LocalBackupQueue extends BackupQueue {
+
+    /**
+     * 备份队列名称
+     */
+    private final String name;
+
+    /**
+     * 正在执行的任务，备份key -> 任务执行的时间戳
+     */
+    private final Map<String, Long> excTimestamps = new ConcurrentHashMap<>();
+
+    /**
+     * 正在执行的任务，按任务执行的时间戳排序
+     */
+    private final ConcurrentSkipListMap<IndexKey, Task> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * 各个任务队列唯一性任务的存在标记，任务队列名称 -> 任务id集合
+     */
+    private final Map<String, Set<String>> uniqueIds = new ConcurrentHashMap<>();
+
+    /**
+     * 构造函数
+     *
+     * @param name 备份队列名称
+     */
+    public LocalBackupQueue(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 进程内的备份队列不需要初始化
+     */
+    @Override
+    public void initQueue() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * 进程内的备份队列不分区
+     *
+     * @return 1
+     */
+    @Override
+    public int getPartitions() {
+        return 1;
+    }
+
+    /**
+     * 获取执行时间最早的任务，任务仍保留在备份队列中
+     *
+     * @return 任务，没有正在执行的任务时返回null
+     */
+    @Override
+    public Task popTask() {
+        Map.Entry<IndexKey, Task> first = this.index.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    /**
+     * 任务在取出时直接建立索引，没有需要迁移的任务
+     */
+    @Override
+    public void migrateTasks() {
+    }
+
+    @Override
+    public List<Task> getExpiredTasks(int partition, long maxExcTimestamp, int offset, int count) {
+        List<Task> tasks = new ArrayList<>();
+        int skipped = 0;
+        for (Task task : this.index.headMap(new IndexKey(maxExcTimestamp, null), true).values()) {
+            if (skipped++ < offset) {
+                continue;
+            }
+            if (tasks.size() >= count) {
+                break;
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * 记录正在执行的任务，以任务执行的时间戳建立索引
+     * <p>
+     * 同一备份key已经在执行时，替换为本次执行
+     *
+     * @param task 队列任务，已经设置了任务执行的时间戳和备份key
+     */
+    public void addTask(Task task) {
+        long excTimestamp = task.getTaskStatus().getExcTimestamp();
+        this.excTimestamps.compute(task.getBackupKey(), (key, prev) -> {
+            if (prev != null) {
+                this.index.remove(new IndexKey(prev, key));
+            }
+            this.index.put(new IndexKey(excTimestamp, key), task);
+            return excTimestamp;
+        });
+    }
+
+    /**
+     * 获取正在执行的任务数
+     *
+     * @return 正在执行的任务数
+     */
+    public int size() {
+        return this.excTimestamps.size();
+    }
+
+    /**
+     * 添加唯一性任务的存在标记
+     *
+     * @param queue 任务队列名称
+     * @param id    任务id
+     * @return 添加成功返回true，任务已经存在返回false
+     */
+    public boolean addUnique(String queue, String id) {
+        return this.uniqueIds.computeIfAbsent(queue, q -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    /**
+     * 删除唯一性任务的存在标记
+     *
+     * @param queue 任务队列名称
+     * @param id    任务id
+     */
+    public void removeUnique(String queue, String id) {
+        Set<String> ids = this.uniqueIds.get(queue);
+        if (ids != null) {
+            ids.remove(id);
+        }
+    }
+
+    @Override
+    public void finishTask(Task task) {
+        finishTasks(Collections.singletonList(task));
+    }
+
+    /**
+     * 备份队列的任务批量完成
+     * <p>
+     * 与{@link RedisBackupQueue#finishTasks(List)}一致，只有记录的执行时间戳与任务的执行时间戳一致时才删除，
+     * 防止任务超时重试后，之前的执行者完成任务时删除了重试任务的记录；唯一性任务的存在标记总是删除
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        for (Task task : tasks) {
+            long excTimestamp = task.getTaskStatus().getExcTimestamp();
+            String backupKey = task.getBackupKey() != null ? task.getBackupKey() : task.getId();
+            this.excTimestamps.computeIfPresent(backupKey, (key, exc) -> {
+                if (exc != excTimestamp) {
+                    return exc;
+                }
+                this.index.remove(new IndexKey(exc, key));
+                return null;
+            });
+            removeUnique(task.getQueue(), task.getId());
+        }
+    }
+
+    /**
+     * 索引的key，按任务执行的时间戳、备份key排序
+     */
+    private static class IndexKey implements Comparable<IndexKey> {
+
+        private final long excTimestamp;
+
+        /**
+         * 备份key，为null时排在相同时间戳的所有任务之后，用于范围查询
+         */
+        private final String key;
+
+        IndexKey(long excTimestamp, String key) {
+            this.excTimestamp = excTimestamp;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(IndexKey o) {
+            int c = Long.compare(this.excTimestamp, o.excTimestamp);
+            if (c != 0) {
+                return c;
+            }
+            if (this.key == null || o.key == null) {
+                return this.key == null ? (o.key == null ? 0 : 1) : -1;
+            }
+            return this.key.compareTo(o.key);
+        }
+    }
+}
@@ -1,19 +1,44 @@
 package com.kingsoft.wps.mail.queue.backup;
 
-import com.alibaba.fastjson.JSON;
 import com.kingsoft.wps.mail.queue.KMQueueAdapter;
 import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
 import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.utils.KMQUtils;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
  * Created by 刘春龙 on 2017/3/5.
  * <p>
  * 备份队列
+ * <p>
+ * 正在执行的任务保存在备份队列索引中：
+ * <ul>
+ * <li>hash（备份队列名称 + {@link Constant#BACKUP_TASKS_SUFFIX}），备份key -> 编码后的任务</li>
+ * <li>sorted set（备份队列名称 + {@link Constant#BACKUP_INDEX_SUFFIX}），备份key -> 任务执行的时间戳</li>
+ * </ul>
+ * 备份key由任务队列名称、任务id与取出任务的标识组成（{@link KMQUtils#backupKey(String, String, String)}，保存在{@link Task#getBackupKey()}），
+ * 同一任务id的多次执行（例如调用方指定id的非唯一性任务）互不覆盖；升级之前建立的索引以任务id为key。
+ * 任务完成时根据备份key删除，时间复杂度与正在执行的任务数无关；
+ * 备份队列监控通过执行时间戳的范围查询只读取执行超时的任务。
+ * <p>
+ * 分区数大于1时，任务按任务id（{@link KMQUtils#partition(String, int)}）散列到各个分区，
+ * 每个分区的索引名称为上述名称加上"_分区序号"；分区数为1时不加后缀。
+ * <p>
+ * 备份队列本身（列表）只用于消费者以阻塞的方式(brpoplpush)获取任务时的原子移入，
+ * 随后由消费者建立索引并从列表中删除；以及保存升级之前放入备份队列的任务，由{@link #migrateTasks()}迁移到索引中
+ * <p>
+ * 集群模式下备份队列的名称带有hash tag（{@link KMQueueAdapter#getBackUpQueueName(String)}），备份队列、备份队列索引与所属的任务队列位于同一个槽位
  */
 public class RedisBackupQueue extends BackupQueue {
 
@@ -22,19 +47,77 @@ public class RedisBackupQueue extends BackupQueue {
     private static final int REDIS_DB_IDX = 0;
     public static final String MARKER = "marker";
 
+    /**
+     * 任务完成的脚本，可以一次完成多个任务
+     * <p>
+     * 每个任务依次传入 KEYS: 任务所属分区的备份队列索引(hash)、备份队列索引(sorted set)、唯一性标记集合；
+     * ARGV: 任务在备份队列索引中的key、任务执行的时间戳、任务id
+     * <p>
+     * 只有索引中记录的执行时间戳与任务的执行时间戳一致时才删除，
+     * 防止任务超时重试后，之前的执行者完成任务时删除了重试任务的索引
+     */
+    private static final String FINISH_TASKS_SCRIPT =
+            "for i = 1, #ARGV / 3 do " +
+            "  local key = ARGV[3 * i - 2] " +
+            "  local exc = redis.call('ZSCORE', KEYS[3 * i - 1], key) " +
+            "  if exc and tonumber(exc) == tonumber(ARGV[3 * i - 1]) then " +
+            "    redis.call('ZREM', KEYS[3 * i - 1], key) " +
+            "    redis.call('HDEL', KEYS[3 * i - 2], key) " +
+            "  end " +
+            "  redis.call('SREM', KEYS[3 * i], ARGV[3 * i]) " +
+            "end " +
+            "return 1";
+
+    /**
+     * 迁移任务的脚本，将备份队列中的任务迁移到备份队列索引中
+     * <p>
+     * KEYS[1] 备份队列，KEYS[2] 备份队列索引(hash)，KEYS[3] 备份队列索引(sorted set)；
+     * ARGV[1] 编码后的任务，ARGV[2] 任务在备份队列索引中的key，ARGV[3] 任务执行的时间戳
+     * <p>
+     * 如果任务已经不在备份队列中（消费者已经建立了索引），则不再迁移
+     */
+    private static final byte[] MIGRATE_TASK_SCRIPT = SafeEncoder.encode(
+            "if redis.call('LREM', KEYS[1], 1, ARGV[1]) == 1 then " +
+            "  redis.call('HSET', KEYS[2], ARGV[2], ARGV[1]) " +
+            "  redis.call('ZADD', KEYS[3], ARGV[3], ARGV[2]) " +
+            "end " +
+            "return 1");
+
     /**
      * 备份队列的名称
      */
     private final String name;
 
+    /**
+     * 备份队列名称的字节形式，用于二进制命令
+     */
+    private final byte[] nameBytes;
+
+    /**
+     * 备份队列索引的分区数
+     */
+    private final int partitions;
+
     /**
      * 队列管理器
      */
     private KMQueueAdapter kmQueueAdapter;
 
     public RedisBackupQueue(KMQueueAdapter kmQueueAdapter) {
+        this(kmQueueAdapter, kmQueueAdapter.getBackUpQueueName());
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param kmQueueAdapter  队列管理器
+     * @param backUpQueueName 备份队列的名称
+     */
+    public RedisBackupQueue(KMQueueAdapter kmQueueAdapter, String backUpQueueName) {
         this.kmQueueAdapter = kmQueueAdapter;
-        this.name = kmQueueAdapter.getBackUpQueueName();
+        this.name = backUpQueueName;
+        this.nameBytes = SafeEncoder.encode(this.name);
+        this.partitions = kmQueueAdapter.getBackupPartitions();
     }
 
     /**
@@ -44,29 +127,29 @@ public class RedisBackupQueue extends BackupQueue {
     public void initQueue() {
         Jedis jedis = null;
         try {
-            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.name);
 
             // 创建备份队列循环标记
             Task.TaskStatus state = new Task.TaskStatus();
             Task task = new Task(this.name, null, RedisBackupQueue.MARKER, null, state);
 
-            String taskJson = JSON.toJSONString(task);
+            byte[] taskBytes = getTaskCodec().encode(task);
 
             // 注意分布式问题，防止备份队列添加多个循环标记
             // 这里使用redis的事务&乐观锁
             jedis.watch(this.name);// 监视当前队列
             boolean isExists = jedis.exists(this.name);// 查询当前队列是否存在
 
-            List<String> backQueueData = jedis.lrange(this.name, 0, -1);
+            List<byte[]> backQueueData = jedis.lrange(this.nameBytes, 0, -1);
             logger.info("========================================");
             logger.info("Backup queue already exists! Queue name：" + this.name);
             logger.info("Backup queue[" + this.name + "]data:");
-            backQueueData.forEach(logger::info);
+            backQueueData.forEach(bytes -> logger.info(String.valueOf(getTaskCodec().decode(bytes))));
             logger.info("========================================");
 
             Transaction multi = jedis.multi();// 开启事务
             if (!isExists) {// 只有当前队列不存在，才执行lpush
-                multi.lpush(this.name, taskJson);
+                multi.lpush(this.nameBytes, taskBytes);
                 List<Object> results = multi.exec();
                 logger.info("Thread[" + Thread.currentThread().getName() + "] - (Add backup queue loop tag) Transaction execution result：" + ((results != null && results.size() > 0) ? results.get(0) : "Fail"));
             }
@@ -85,18 +168,63 @@ public class RedisBackupQueue extends BackupQueue {
         return name;
     }
 
+    @Override
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * 获取任务所属的分区
+     *
+     * @param id 任务id
+     * @return 分区序号，从0开始
+     */
+    public int getPartition(String id) {
+        return KMQUtils.partition(id, this.partitions);
+    }
+
+    /**
+     * 获取指定分区的备份队列索引(hash)名称
+     *
+     * @param partition 分区序号
+     * @return 备份队列索引(hash)名称
+     */
+    public String getTasksKey(int partition) {
+        return getPartitionKey(this.name + Constant.BACKUP_TASKS_SUFFIX, partition);
+    }
+
+    /**
+     * 获取指定分区的备份队列索引(sorted set)名称
+     *
+     * @param partition 分区序号
+     * @return 备份队列索引(sorted set)名称
+     */
+    public String getIndexKey(int partition) {
+        return getPartitionKey(this.name + Constant.BACKUP_INDEX_SUFFIX, partition);
+    }
+
+    private String getPartitionKey(String key, int partition) {
+        return this.partitions > 1 ? key + "_" + partition : key;
+    }
+
+    private TaskCodec getTaskCodec() {
+        return kmQueueAdapter.getTaskCodec();
+    }
+
     @Override
     public Task popTask() {
         Jedis jedis = null;
         Task task = null;
         try {
-            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.name);
 
             /**
              * 循环取出备份队列的一个元素：从队尾取出元素，并将其放置队首
              */
-            String taskValue = jedis.rpoplpush(this.name, this.name);
-            task = JSON.parseObject(taskValue, Task.class);
+            byte[] taskBytes = jedis.rpoplpush(this.nameBytes, this.nameBytes);
+            if (taskBytes != null) {
+                task = getTaskCodec().decode(taskBytes);
+            }
         } catch (Throwable e) {
             logger.info(e.getMessage());
             e.printStackTrace();
@@ -108,18 +236,134 @@ public class RedisBackupQueue extends BackupQueue {
         return task;
     }
 
+    /**
+     * 将备份队列中还没有建立索引的任务迁移到备份队列索引中
+     * <p>
+     * 循环遍历一遍备份队列，跳过循环标记；任务执行的时间戳采用任务中的excTimestamp
+     */
     @Override
-    public void finishTask(Task task) {
+    public void migrateTasks() {
         Jedis jedis = null;
         try {
-            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX);
-            String taskJson = JSON.toJSONString(task);
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.name);
 
-            // 删除备份队列中的任务
-            jedis.lrem(this.name, 0, taskJson);
+            long len = jedis.llen(this.name);
+            for (long i = 0; i < len; i++) {
+                // 循环取出备份队列的一个元素：从队尾取出元素，并将其放置队首
+                byte[] taskBytes = jedis.rpoplpush(this.nameBytes, this.nameBytes);
+                if (taskBytes == null) {
+                    break;
+                }
+                Task task = getTaskCodec().decode(taskBytes);
+                if (this.name.equals(task.getQueue()) || RedisBackupQueue.MARKER.equals(task.getType())) {// 循环标记
+                    continue;
+                }
+                int partition = getPartition(task.getId());
+                String backupKey = KMQUtils.backupKey(task.getQueue(), task.getId(), KMQUtils.genBackupToken());
+                jedis.eval(MIGRATE_TASK_SCRIPT,
+                        Arrays.asList(this.nameBytes, SafeEncoder.encode(getTasksKey(partition)), SafeEncoder.encode(getIndexKey(partition))),
+                        Arrays.asList(taskBytes, SafeEncoder.encode(backupKey),
+                                SafeEncoder.encode(String.valueOf(task.getTaskStatus().getExcTimestamp()))));
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+    }
 
-            // 删除该任务的存在标记
-            jedis.srem(task.getQueue() + Constant.UNIQUE_SUFFIX, task.getId());
+    /**
+     * 获取指定分区中执行超时的任务，通过备份队列索引(sorted set)按执行的时间戳范围查询
+     * <p>
+     * 索引中已经没有任务数据的备份key（任务已完成）会被删除；返回的任务带有备份key，用于完成任务
+     *
+     * @param partition       分区序号，从0开始
+     * @param maxExcTimestamp 任务执行的时间戳上限
+     * @param offset          跳过的任务数
+     * @param count           最多获取的任务数
+     * @return 执行超时的任务
+     */
+    @Override
+    public List<Task> getExpiredTasks(int partition, long maxExcTimestamp, int offset, int count) {
+        List<Task> tasks = new ArrayList<>();
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.name);
+
+            String indexKey = getIndexKey(partition);
+            Set<Tuple> tuples = jedis.zrangeByScoreWithScores(indexKey,
+                    "-inf", String.valueOf(maxExcTimestamp), offset, count);
+            if (!tuples.isEmpty()) {
+                List<Tuple> expired = new ArrayList<>(tuples);
+                byte[][] backupKeys = new byte[expired.size()][];
+                for (int i = 0; i < expired.size(); i++) {
+                    backupKeys[i] = expired.get(i).getBinaryElement();
+                }
+                List<byte[]> taskBytes = jedis.hmget(SafeEncoder.encode(getTasksKey(partition)), backupKeys);
+                for (int i = 0; i < backupKeys.length; i++) {
+                    byte[] bytes = taskBytes.get(i);
+                    if (bytes == null) {// 任务已完成
+                        jedis.zrem(indexKey, expired.get(i).getElement());
+                        continue;
+                    }
+                    Task task = getTaskCodec().decode(bytes);
+                    task.getTaskStatus().setExcTimestamp((long) expired.get(i).getScore());
+                    task.setBackupKey(expired.get(i).getElement());
+                    tasks.add(task);
+                }
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * 备份队列的任务完成，根据备份key（没有备份key时为任务id）删除备份队列索引中的该任务，并删除该任务的存在标记
+     * <p>
+     * 只有备份队列索引中记录的执行时间戳与任务的执行时间戳(excTimestamp)一致时才删除
+     *
+     * @param task 队列任务
+     */
+    @Override
+    public void finishTask(Task task) {
+        finishTasks(Collections.singletonList(task));
+    }
+
+    /**
+     * 备份队列的任务批量完成，通过一次脚本调用删除备份队列索引中的这些任务，并删除这些任务的存在标记
+     * <p>
+     * 只有备份队列索引中记录的执行时间戳与任务的执行时间戳(excTimestamp)一致时才删除
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.name);
+
+            // 删除备份队列中的任务，删除任务的存在标记
+            List<String> keys = new ArrayList<>(tasks.size() * 3);
+            List<String> args = new ArrayList<>(tasks.size() * 3);
+            for (Task task : tasks) {
+                int partition = getPartition(task.getId());
+                keys.add(getTasksKey(partition));
+                keys.add(getIndexKey(partition));
+                keys.add(kmQueueAdapter.getQueueKey(task.getQueue()) + Constant.UNIQUE_SUFFIX);
+                args.add(task.getBackupKey() != null ? task.getBackupKey() : task.getId());
+                args.add(String.valueOf(task.getTaskStatus().getExcTimestamp()));
+                args.add(task.getId());
+            }
+            jedis.eval(FINISH_TASKS_SCRIPT, keys, args);
         } catch (Throwable e) {
             logger.info(e.getMessage());
             e.printStackTrace();
@@ -0,0 +1,191 @@
+package com.kingsoft.wps.mail.queue.cluster;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Redis Cluster客户端，在{@link JedisCluster}的基础上按key获取所在节点的连接
+ * <p>
+ * 任务队列的脚本、阻塞命令（brpop、brpoplpush）以及事务需要直接使用节点的连接，
+ * 脚本涉及的所有key必须在同一个槽位，由队列管理器通过hash tag保证（{@link com.kingsoft.wps.mail.queue.KMQueueAdapter#getQueueKey(String)}）
+ * <p>
+ * 槽位到节点连接池的映射保存在本地的槽位表中，获取连接时不加锁；
+ * 槽位表由后台线程每{@link #SLOT_CACHE_REFRESH_MILLIS}毫秒通过CLUSTER SLOTS刷新，查询节点时不持有任何锁，不会阻塞获取连接的线程。
+ * 获取连接失败（节点宕机、故障转移）时立即刷新槽位表并重试一次。
+ * <p>
+ * 直接使用节点的连接时没有MOVED重定向，槽位迁移之后，访问迁移槽位的命令最多在{@link #SLOT_CACHE_REFRESH_MILLIS}毫秒内失败
+ */
+public class KMJedisCluster extends JedisCluster {
+
+    private static final Logger logger = Logger.getLogger(KMJedisCluster.class.getName());
+
+    /**
+     * 槽位表的刷新间隔，单位：ms
+     */
+    public static final long SLOT_CACHE_REFRESH_MILLIS = 1000;
+
+    /**
+     * 槽位表，下标为槽位，元素为槽位所在节点的连接池，还没有获取到槽位信息时为null
+     */
+    private volatile JedisPool[] slotPools = new JedisPool[HASHSLOTS];
+
+    /**
+     * 刷新槽位表的锁，同一时刻只有一个线程刷新
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    /**
+     * 定时刷新槽位表的后台线程
+     */
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * 创建Redis Cluster客户端
+     *
+     * @param nodes      集群节点，至少一个，其它节点自动发现
+     * @param poolConfig 每个节点的连接池配置
+     */
+    public KMJedisCluster(Set<HostAndPort> nodes, GenericObjectPoolConfig poolConfig) {
+        super(nodes, poolConfig);
+        refreshSlots();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kmq-cluster-slots-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refresher.scheduleWithFixedDelay(this::refreshSlots, SLOT_CACHE_REFRESH_MILLIS, SLOT_CACHE_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取key所在节点的连接
+     * <p>
+     * 获取连接失败时刷新槽位表并重试一次；使用完成后，必须调用{@link Jedis#close()}归还到所在节点的连接池中
+     *
+     * @param key redis key
+     * @return Jedis对象
+     */
+    public Jedis getConnection(String key) {
+        int slot = JedisClusterCRC16.getSlot(key);
+        try {
+            return getConnectionFromSlot(slot);
+        } catch (JedisConnectionException e) {// 节点不可用，可能发生了故障转移
+            logger.info("Get the connection of slot " + slot + " failed, renew the slot cache：" + e.getMessage());
+            refreshSlots();
+            return getConnectionFromSlot(slot);
+        }
+    }
+
+    private Jedis getConnectionFromSlot(int slot) {
+        JedisPool pool = this.slotPools[slot];
+        if (pool == null) {
+            return ((JedisSlotBasedConnectionHandler) this.connectionHandler).getConnectionFromSlot(slot);
+        }
+        return pool.getResource();
+    }
+
+    /**
+     * 通过CLUSTER SLOTS刷新槽位表
+     * <p>
+     * 依次查询各个节点，直到一个节点返回成功；新的槽位表构建完成后整体替换，查询期间获取连接的线程仍使用原来的槽位表。
+     * 其它线程正在刷新时，等待其刷新完成后直接返回
+     */
+    public void refreshSlots() {
+        if (!this.refreshLock.tryLock()) {
+            this.refreshLock.lock();
+            this.refreshLock.unlock();
+            return;
+        }
+        try {
+            List<JedisPool> pools = new ArrayList<>(this.connectionHandler.getNodes().values());
+            Collections.shuffle(pools);
+            for (JedisPool pool : pools) {
+                Jedis jedis = null;
+                try {
+                    jedis = pool.getResource();
+                    this.slotPools = buildSlotPools(jedis.getClient().getHost(), jedis.clusterSlots());
+                    return;
+                } catch (Throwable e) {
+                    logger.info(e.getMessage());
+                } finally {
+                    if (jedis != null) {
+                        jedis.close();
+                    }
+                }
+            }
+        } finally {
+            this.refreshLock.unlock();
+        }
+    }
+
+    /**
+     * 根据CLUSTER SLOTS的结果构建槽位表，新的节点会在{@link JedisCluster}中创建连接池
+     *
+     * @param defaultHost 查询的节点地址，节点地址为空时使用
+     * @param slots       CLUSTER SLOTS的结果
+     * @return 槽位表
+     */
+    @SuppressWarnings("unchecked")
+    private JedisPool[] buildSlotPools(String defaultHost, List<Object> slots) {
+        JedisPool[] newSlotPools = new JedisPool[HASHSLOTS];
+        Map<String, JedisPool> nodes = this.connectionHandler.getNodes();
+        for (Object slot : slots) {
+            List<Object> info = (List<Object>) slot;
+            List<Object> master = (List<Object>) info.get(2);
+            String host = SafeEncoder.encode((byte[]) master.get(0));
+            if (host.isEmpty()) {
+                host = defaultHost;
+            }
+            int port = ((Long) master.get(1)).intValue();
+            JedisPool pool = nodes.get(host + ":" + port);
+            if (pool == null) {// 新的节点，创建连接池
+                this.connectionHandler.getConnectionFromNode(new HostAndPort(host, port)).close();
+                nodes = this.connectionHandler.getNodes();
+                pool = nodes.get(host + ":" + port);
+            }
+            for (int i = ((Long) info.get(0)).intValue(); i <= ((Long) info.get(1)).intValue(); i++) {
+                newSlotPools[i] = pool;
+            }
+        }
+        return newSlotPools;
+    }
+
+    /**
+     * 停止刷新槽位表的后台线程，并关闭各个节点的连接池
+     *
+     * @throws IOException 关闭异常
+     */
+    @Override
+    public void close() throws IOException {
+        this.refresher.shutdownNow();
+        super.close();
+    }
+
+    /**
+     * 计算key所在的槽位
+     *
+     * @param key redis key
+     * @return 槽位
+     */
+    public static int getSlot(String key) {
+        return JedisClusterCRC16.getSlot(key);
+    }
+}
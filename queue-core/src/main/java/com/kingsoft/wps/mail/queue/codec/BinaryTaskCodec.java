@@ -0,0 +1,369 @@
+package com.kingsoft.wps.mail.queue.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.kingsoft.wps.mail.exception.NestedException;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.utils.Assert;
+import com.kingsoft.wps.mail.utils.KMQUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 二进制编解码器，默认的编解码器
+ * <p>
+ * 不保存字段名，整数采用变长编码，存储格式如下：
+ * <pre>
+ * 魔数(1字节，{@link #MAGIC}) | 任务id长度(2字节，大端) | 任务id(UTF-8)
+ * | 标记(1字节，bit0 - 是否是唯一性任务，bit1 - 任务数据是否压缩) | 任务状态(1字节，0 - normal，1 - retry，2 - 其它，后接字符串)
+ * | 任务队列 | 任务类型 | 任务数据 | 任务生成的时间戳 | 任务执行的时间戳 | 重试次数 | [优先级 + 1]
+ * </pre>
+ * 字符串为 变长整数(UTF-8字节数 + 1，0表示null) + UTF-8字节；时间戳、重试次数为变长整数；没有设置优先级时不写入优先级。
+ * <p>
+ * 任务id位于固定位置，Lua脚本可以直接读取；解码时同样可以识别JSON格式的任务，兼容之前版本放入队列的任务
+ * <p>
+ * 可以通过{@link Builder}按队列设置压缩阈值：任务数据(UTF-8)超过阈值时使用Deflate压缩，并在标记中记录。
+ * 解码时不解压，消费者第一次调用{@link Task#getData()}时才解压；未解压的任务再次编码时直接使用压缩后的数据。
+ * 是否压缩记录在每个任务中，任何BinaryTaskCodec都可以解码
+ */
+public class BinaryTaskCodec implements TaskCodec {
+
+    /**
+     * 魔数，区别于JSON对象的首字节'{'
+     */
+    public static final byte MAGIC = (byte) 0xB1;
+
+    private static final int FLAG_UNIQUE = 1;
+    private static final int FLAG_COMPRESSED = 1 << 1;
+
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_RETRY = 1;
+    private static final int STATE_OTHER = 2;
+
+    /**
+     * 不压缩
+     */
+    public static final int NO_COMPRESSION = -1;
+
+    /**
+     * 默认的压缩阈值，单位：字节
+     */
+    private int compressThreshold = NO_COMPRESSION;
+
+    /**
+     * 各个队列的压缩阈值，单位：字节
+     */
+    private Map<String, Integer> queueCompressThresholds = new HashMap<>();
+
+    /**
+     * 创建不压缩任务数据的编解码器
+     */
+    public BinaryTaskCodec() {
+    }
+
+    @Override
+    public byte[] encode(Task task) {
+        Task.TaskStatus status = task.getTaskStatus();
+        byte[] id = task.getId().getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xFFFF) {
+            throw new NestedException("The task id is too long, max 65535 bytes：" + task.getId());
+        }
+        byte[] queue = toBytes(task.getQueue());
+        byte[] type = toBytes(task.getType());
+
+        int flags = task.isUnique() ? FLAG_UNIQUE : 0;
+        byte[] data = task.getCompressedData();
+        if (data != null) {// 未解压的任务，直接使用压缩后的数据
+            flags |= FLAG_COMPRESSED;
+        } else {
+            data = toBytes(task.getData());
+            int threshold = getCompressThreshold(task.getQueue());
+            if (data != null && threshold != NO_COMPRESSION && data.length > threshold) {
+                byte[] compressed = KMQUtils.compress(data);
+                if (compressed.length < data.length) {// 压缩后没有变小则不压缩
+                    data = compressed;
+                    flags |= FLAG_COMPRESSED;
+                }
+            }
+        }
+
+        Writer writer = new Writer(48 + id.length + length(queue) + length(type) + length(data));
+        writer.writeByte(MAGIC);
+        writer.writeByte(id.length >>> 8);
+        writer.writeByte(id.length);
+        writer.writeBytes(id);
+        writer.writeByte(flags);
+        if (Constant.NORMAL.equals(status.getState())) {
+            writer.writeByte(STATE_NORMAL);
+        } else if (Constant.RETRY.equals(status.getState())) {
+            writer.writeByte(STATE_RETRY);
+        } else {
+            writer.writeByte(STATE_OTHER);
+            writer.writeString(toBytes(status.getState()));
+        }
+        writer.writeString(queue);
+        writer.writeString(type);
+        writer.writeString(data);
+        writer.writeVarLong(status.getGenTimestamp());
+        writer.writeVarLong(status.getExcTimestamp());
+        writer.writeVarLong(status.getRetry());
+        if (task.getPriority() != Task.NO_PRIORITY) {
+            writer.writeVarLong(task.getPriority() + 1L);
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Task decode(byte[] bytes) {
+        if (isBinary(bytes)) {
+            return decodeBinary(bytes);
+        }
+        // 之前版本放入队列的JSON格式的任务
+        return JSON.parseObject(new String(bytes, StandardCharsets.UTF_8), Task.class);
+    }
+
+    /**
+     * 判断是否是二进制编解码器编码的任务
+     *
+     * @param bytes 编码后的任务
+     * @return 是否是二进制格式
+     */
+    static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * 解码二进制格式的任务
+     *
+     * @param bytes 编码后的任务
+     * @return 队列任务
+     */
+    static Task decodeBinary(byte[] bytes) {
+        try {
+            Reader reader = new Reader(bytes);
+            reader.readByte();// 魔数
+            int idLength = (reader.readByte() << 8) | reader.readByte();
+            String id = new String(bytes, reader.pos, idLength, StandardCharsets.UTF_8);
+            reader.pos += idLength;
+            int flags = reader.readByte();
+
+            Task.TaskStatus status = new Task.TaskStatus();
+            int state = reader.readByte();
+            if (state == STATE_NORMAL) {
+                status.setState(Constant.NORMAL);
+            } else if (state == STATE_RETRY) {
+                status.setState(Constant.RETRY);
+            } else {
+                status.setState(reader.readString());
+            }
+            String queue = reader.readString();
+            String type = reader.readString();
+            byte[] compressedData = null;
+            String data = null;
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                compressedData = reader.readBytes();
+            } else {
+                data = reader.readString();
+            }
+            status.setGenTimestamp(reader.readVarLong());
+            status.setExcTimestamp(reader.readVarLong());
+            status.setRetry((int) reader.readVarLong());
+            int priority = Task.NO_PRIORITY;
+            if (reader.pos < bytes.length) {
+                priority = (int) reader.readVarLong() - 1;
+            }
+
+            Task task = new Task(queue, id, (flags & FLAG_UNIQUE) != 0, type, data, status);
+            task.setPriority(priority);
+            if (compressedData != null) {
+                task.setCompressedData(compressedData);
+            }
+            return task;
+        } catch (IndexOutOfBoundsException e) {
+            throw new NestedException("The task data is incomplete", e);
+        }
+    }
+
+    /**
+     * 获取队列的压缩阈值，没有单独设置时使用默认的压缩阈值
+     *
+     * @param queue 任务队列名称
+     * @return 压缩阈值，单位：字节
+     */
+    private int getCompressThreshold(String queue) {
+        if (queue != null) {
+            Integer threshold = queueCompressThresholds.get(queue);
+            if (threshold != null) {
+                return threshold;
+            }
+        }
+        return compressThreshold;
+    }
+
+    private static byte[] toBytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    /**
+     * 写入缓冲区
+     */
+    private static class Writer {
+
+        private byte[] buf;
+
+        private int pos;
+
+        Writer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeString(byte[] value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(value.length + 1L);
+            writeBytes(value);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int length) {
+            if (pos + length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + length));
+            }
+        }
+    }
+
+    /**
+     * 读取缓冲区
+     */
+    private static class Reader {
+
+        private final byte[] buf;
+
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+
+        String readString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            String value = new String(buf, pos, (int) (length - 1), StandardCharsets.UTF_8);
+            pos += (int) (length - 1);
+            return value;
+        }
+
+        byte[] readBytes() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            int n = (int) (length - 1);
+            if (n > buf.length - pos) {
+                throw new IndexOutOfBoundsException();
+            }
+            byte[] value = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new NestedException("The task data is malformed");
+        }
+    }
+
+    /**
+     * 构建器，用于设置压缩阈值
+     */
+    public static class Builder {
+
+        /**
+         * 默认的压缩阈值，默认不压缩
+         */
+        private int compressThreshold = NO_COMPRESSION;
+
+        /**
+         * 各个队列的压缩阈值
+         */
+        private Map<String, Integer> queueCompressThresholds = new HashMap<>();
+
+        /**
+         * 设置默认的压缩阈值，任务数据(UTF-8)超过该字节数时压缩，默认不压缩
+         *
+         * @param compressThreshold 压缩阈值，单位：字节，{@link #NO_COMPRESSION}表示不压缩
+         * @return 返回Builder
+         */
+        public Builder setCompressThreshold(int compressThreshold) {
+            Assert.isTrue(compressThreshold >= 0 || compressThreshold == NO_COMPRESSION, "Param compressThreshold must be greater than or equal to 0");
+            this.compressThreshold = compressThreshold;
+            return this;
+        }
+
+        /**
+         * 设置指定队列的压缩阈值，优先于默认的压缩阈值
+         *
+         * @param queue             任务队列名称
+         * @param compressThreshold 压缩阈值，单位：字节，{@link #NO_COMPRESSION}表示不压缩
+         * @return 返回Builder
+         */
+        public Builder setCompressThreshold(String queue, int compressThreshold) {
+            Assert.notNull(queue, "Param queue can't null");
+            Assert.isTrue(compressThreshold >= 0 || compressThreshold == NO_COMPRESSION, "Param compressThreshold must be greater than or equal to 0");
+            this.queueCompressThresholds.put(queue, compressThreshold);
+            return this;
+        }
+
+        public BinaryTaskCodec build() {
+            BinaryTaskCodec taskCodec = new BinaryTaskCodec();
+            taskCodec.compressThreshold = this.compressThreshold;
+            taskCodec.queueCompressThresholds = new HashMap<>(this.queueCompressThresholds);
+            return taskCodec;
+        }
+    }
+}
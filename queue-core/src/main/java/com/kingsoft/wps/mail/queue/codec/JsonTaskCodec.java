@@ -0,0 +1,27 @@
+package com.kingsoft.wps.mail.queue.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.kingsoft.wps.mail.queue.Task;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码器，与之前版本的存储格式一致
+ * <p>
+ * 解码时同样可以识别{@link BinaryTaskCodec}编码的任务，便于切换编解码器
+ */
+public class JsonTaskCodec implements TaskCodec {
+
+    @Override
+    public byte[] encode(Task task) {
+        return JSON.toJSONString(task).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Task decode(byte[] bytes) {
+        if (BinaryTaskCodec.isBinary(bytes)) {
+            return BinaryTaskCodec.decodeBinary(bytes);
+        }
+        return JSON.parseObject(new String(bytes, StandardCharsets.UTF_8), Task.class);
+    }
+}
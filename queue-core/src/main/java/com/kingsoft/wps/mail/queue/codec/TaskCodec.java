@@ -0,0 +1,28 @@
+package com.kingsoft.wps.mail.queue.codec;
+
+import com.kingsoft.wps.mail.queue.Task;
+
+/**
+ * 任务编解码器，决定任务在Redis中的存储格式
+ * <p>
+ * 安全队列在Lua脚本中读取任务id，编码结果需要是包含id字段的JSON对象（{@link JsonTaskCodec}），
+ * 或者以{@link BinaryTaskCodec}的头部（魔数 + 任务id）开头，否则设置编解码器时抛出异常（{@link com.kingsoft.wps.mail.queue.KMQueueManager.Builder#setTaskCodec(TaskCodec)}）
+ */
+public interface TaskCodec {
+
+    /**
+     * 编码任务
+     *
+     * @param task 队列任务
+     * @return 编码后的任务
+     */
+    byte[] encode(Task task);
+
+    /**
+     * 解码任务
+     *
+     * @param bytes 编码后的任务
+     * @return 队列任务
+     */
+    Task decode(byte[] bytes);
+}
@@ -5,10 +5,36 @@ package com.kingsoft.wps.mail.queue.config;
  */
 public class Constant {
 
-    //    private static final String DISTR_LOCK_SUFFIX = "_lock";
+    // 备份队列监控的分布式锁，redis string key
+    public static final String DISTR_LOCK_SUFFIX = "_lock";
+
     // 用于队列任务唯一性标记，redis set key
     public static final String UNIQUE_SUFFIX = "_unique";
 
+    // 备份队列索引，redis hash key，备份key -> 任务json
+    public static final String BACKUP_TASKS_SUFFIX = "_tasks";
+
+    // 备份队列索引，redis sorted set key，备份key -> 任务执行的时间戳
+    public static final String BACKUP_INDEX_SUFFIX = "_index";
+
+    // 任务队列的优先级列表，redis list key，任务队列名称 + 该后缀 + 优先级
+    public static final String PRIORITY_SUFFIX = "_priority_";
+
+    // 延时任务，redis sorted set key，编码后的任务 -> 任务的执行时间
+    public static final String DELAYED_SUFFIX = "_delayed";
+
+    // 基于Redis Stream的任务队列，redis stream key
+    public static final String STREAM_SUFFIX = "_stream";
+
+    // 基于Redis Stream的任务队列中插入到队首的任务，redis stream key，先于STREAM_SUFFIX中的任务获取
+    public static final String STREAM_HEADER_SUFFIX = "_stream_header";
+
+    // 基于Redis Stream的任务队列的唤醒信号，redis list key，用于消费者阻塞等待新任务
+    public static final String STREAM_SIGNAL_SUFFIX = "_stream_signal";
+
+    // 分片队列的各个分片，任务队列名称 + 该后缀 + 分片序号
+    public static final String SHARD_SUFFIX = "_shard_";
+
     /**
      * 标记任务为正常执行状态
      */
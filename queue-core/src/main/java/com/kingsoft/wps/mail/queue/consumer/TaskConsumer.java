@@ -0,0 +1,475 @@
+package com.kingsoft.wps.mail.queue.consumer;
+
+import com.kingsoft.wps.mail.queue.BatchTaskHandler;
+import com.kingsoft.wps.mail.queue.KMQueueAdapter;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskHandler;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.utils.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * 任务消费者，以指定的并发数持续消费任务队列中的任务
+ * <p>
+ * 1.拉取线程通过{@link TaskQueue#popTasks(int, long)}批量获取任务，放入本地缓冲区；<br>
+ * 2.工作线程从本地缓冲区取出任务，调用任务处理器处理，对于安全队列，处理成功后调用{@link TaskQueue#finishTask(Task)}；<br>
+ * 3.本地缓冲区最多预取prefetch个任务，缓冲区满时拉取线程停止获取任务，直到工作线程取走任务（背压），
+ * 同一时刻从任务队列取出而未完成的任务最多为prefetch + concurrency个；<br>
+ * <p>
+ * 使用批量任务处理器（{@link BatchBuilder}）时，工作线程每次从本地缓冲区取出最多batchSize个任务一起处理，处理成功的任务批量完成。
+ * <p>
+ * 两种任务处理器的失败处理一致：对于安全队列，只完成处理成功的任务，任务处理器抛出异常（批量任务处理器为整批任务）
+ * 或者批量任务处理器返回处理失败的任务不会被完成，由备份队列监控在执行超时后重试（{@link TaskHandler}、{@link BatchTaskHandler}）。
+ * 注意，这与{@link Task#doTask(com.kingsoft.wps.mail.queue.KMQueueManager, Class, Object...)}不同，后者在任务处理器抛出异常时同样会完成任务。
+ * <p>
+ * 注意，任务处理器会被多个工作线程同时调用，需要保证线程安全
+ */
+public class TaskConsumer {
+
+    private static final Logger logger = Logger.getLogger(TaskConsumer.class.getName());
+
+    /**
+     * 拉取线程的最小退避时间，单位：ms
+     */
+    private static final long MIN_BACKOFF_MS = 10;
+
+    /**
+     * 任务队列
+     */
+    private TaskQueue taskQueue;
+
+    /**
+     * 任务处理器
+     */
+    private TaskHandler taskHandler;
+
+    /**
+     * 批量任务处理器
+     */
+    private BatchTaskHandler batchTaskHandler;
+
+    /**
+     * 业务自定义参数
+     */
+    private Object[] params;
+
+    /**
+     * 工作线程数
+     */
+    private int concurrency;
+
+    /**
+     * 本地缓冲区最多预取的任务数
+     */
+    private int prefetch;
+
+    /**
+     * 每次从任务队列中最多获取的任务数，也是批量任务处理器每次最多处理的任务数
+     */
+    private int batchSize;
+
+    /**
+     * 任务队列为空时，拉取线程每次的最大阻塞时间，单位：ms
+     */
+    private long pollTimeoutMs;
+
+    /**
+     * 本地缓冲区
+     */
+    private BlockingQueue<Task> buffer;
+
+    /**
+     * 本地缓冲区的剩余容量
+     */
+    private Semaphore slots;
+
+    /**
+     * 拉取线程
+     */
+    private Thread fetcher;
+
+    /**
+     * 工作线程池
+     */
+    private ExecutorService workers;
+
+    /**
+     * 是否正在运行
+     */
+    private volatile boolean running;
+
+    /**
+     * 构造方法私有化，防止外部调用
+     */
+    private TaskConsumer() {
+    }
+
+    /**
+     * 启动消费者
+     */
+    public synchronized void start() {
+        Assert.isTrue(!running && fetcher == null, "Task consumer already started");
+        running = true;
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "task-consumer-" + taskQueue.getName() + "-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(this::work);
+        }
+
+        fetcher = new Thread(this::fetch, "task-consumer-" + taskQueue.getName() + "-fetcher");
+        fetcher.setDaemon(true);
+        fetcher.start();
+        logger.info("Task consumer[" + taskQueue.getName() + "]started, concurrency: " + concurrency + ", prefetch: " + prefetch);
+    }
+
+    /**
+     * 停止消费者
+     * <p>
+     * 拉取线程不再获取新任务，工作线程处理完本地缓冲区中已预取的任务后退出；
+     * 超时后仍未处理完的任务，对于安全队列，由备份队列监控重试
+     *
+     * @param timeoutMs 最大等待时间，单位：ms
+     * @return 在超时之前所有工作线程退出返回true
+     * @throws InterruptedException 线程中断异常
+     */
+    public synchronized boolean shutdown(long timeoutMs) throws InterruptedException {
+        if (workers == null) {
+            return true;
+        }
+        running = false;
+        workers.shutdown();
+        boolean terminated = workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        if (!terminated) {
+            fetcher.interrupt();
+            workers.shutdownNow();
+        }
+        logger.info("Task consumer[" + taskQueue.getName() + "]stopped, remaining prefetched tasks: " + buffer.size());
+        return terminated;
+    }
+
+    /**
+     * 是否正在运行
+     *
+     * @return 正在运行返回true
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 拉取线程：按本地缓冲区的剩余容量批量获取任务
+     * <p>
+     * 没有取到任务却在pollTimeoutMs之前返回、或者获取任务抛出异常时，任务队列可能不可用
+     * （例如Redis连接失败时{@link TaskQueue#popTasks(int, long)}直接返回空集合），
+     * 拉取线程按指数退避（{@link #MIN_BACKOFF_MS} ~ pollTimeoutMs）后再获取，避免空转；取到任务后恢复
+     */
+    private void fetch() {
+        long backoffMs = 0;
+        while (running) {
+            int count = 0;
+            boolean backoff;
+            try {
+                // 等待本地缓冲区空出位置，再一次性占用所有空位，最多batchSize个
+                if (!slots.tryAcquire(pollTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                count = 1 + slots.drainPermits();
+                if (count > batchSize) {
+                    slots.release(count - batchSize);
+                    count = batchSize;
+                }
+
+                long start = System.currentTimeMillis();
+                List<Task> tasks = taskQueue.popTasks(count, pollTimeoutMs);
+                buffer.addAll(tasks);
+                slots.release(count - tasks.size());
+                backoff = tasks.isEmpty() && System.currentTimeMillis() - start < pollTimeoutMs;
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable e) {
+                slots.release(count);
+                logger.info(e.getMessage());
+                e.printStackTrace();
+                backoff = true;
+            }
+
+            if (!backoff) {
+                backoffMs = 0;
+                continue;
+            }
+            // 任务队列可能不可用，指数退避
+            backoffMs = Math.min(backoffMs == 0 ? MIN_BACKOFF_MS : backoffMs * 2, pollTimeoutMs);
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 工作线程：从本地缓冲区取出任务并处理，停止后处理完缓冲区中的任务再退出
+     */
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = buffer.poll(pollTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (task == null) {
+                if (!running && !fetcher.isAlive()) {
+                    break;
+                }
+                continue;
+            }
+            if (batchTaskHandler != null) {
+                List<Task> tasks = new ArrayList<>(batchSize);
+                tasks.add(task);
+                buffer.drainTo(tasks, batchSize - 1);
+                slots.release(tasks.size());
+                handle(tasks);
+                continue;
+            }
+            slots.release();
+            handle(task);
+        }
+    }
+
+    /**
+     * 调用任务处理器处理任务，对于安全队列，处理成功时完成任务；抛出异常时不完成，由备份队列监控重试
+     *
+     * @param task 队列任务
+     */
+    private void handle(Task task) {
+        try {
+            taskHandler.handle(task.getData(), params);
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        if (KMQueueAdapter.SAFE.equals(taskQueue.getMode())) {
+            // 任务执行完成，删除备份队列的相应任务
+            taskQueue.finishTask(task);
+        }
+    }
+
+    /**
+     * 调用批量任务处理器处理任务，对于安全队列，批量完成处理成功的任务
+     *
+     * @param tasks 队列任务
+     */
+    private void handle(List<Task> tasks) {
+        boolean[] results = null;
+        try {
+            results = batchTaskHandler.handle(tasks, params);
+            if (results == null || results.length != tasks.size()) {
+                logger.info("The results of the batch task handler do not match the tasks, tasks: " + tasks.size()
+                        + ", results: " + (results == null ? null : results.length));
+                results = null;
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        }
+        if (results != null && KMQueueAdapter.SAFE.equals(taskQueue.getMode())) {
+            List<Task> finished = new ArrayList<>(tasks.size());
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    finished.add(tasks.get(i));
+                }
+            }
+            if (!finished.isEmpty()) {
+                // 任务执行完成，批量删除备份队列的相应任务
+                taskQueue.finishTasks(finished);
+            }
+        }
+    }
+
+    /**
+     * 构建器，用于设置初始化参数
+     */
+    public static class Builder {
+
+        /**
+         * 任务队列
+         */
+        private TaskQueue taskQueue;
+
+        /**
+         * 任务处理器
+         */
+        private TaskHandler taskHandler;
+
+        /**
+         * 批量任务处理器
+         */
+        private BatchTaskHandler batchTaskHandler;
+
+        /**
+         * 业务自定义参数
+         */
+        private Object[] params;
+
+        /**
+         * 工作线程数，默认1
+         */
+        private int concurrency;
+
+        /**
+         * 本地缓冲区最多预取的任务数，默认与工作线程数相同，使用批量任务处理器时默认为工作线程数 * batchSize
+         */
+        private int prefetch;
+
+        /**
+         * 每次从任务队列中最多获取的任务数，默认100
+         */
+        private int batchSize;
+
+        /**
+         * 任务队列为空时，拉取线程每次的最大阻塞时间，默认1000ms
+         */
+        private long pollTimeoutMs;
+
+        /**
+         * 创建Builder对象
+         *
+         * @param taskQueue   任务队列
+         * @param taskHandler 任务处理器，会被多个工作线程同时调用
+         * @param params      业务自定义参数
+         */
+        public Builder(TaskQueue taskQueue, TaskHandler taskHandler, Object... params) {
+            Assert.notNull(taskQueue, "Param taskQueue can't null");
+            Assert.notNull(taskHandler, "Param taskHandler can't null");
+
+            this.taskQueue = taskQueue;
+            this.taskHandler = taskHandler;
+            this.params = params;
+            this.concurrency = 1;
+            this.batchSize = 100;
+            this.pollTimeoutMs = 1000;
+        }
+
+        /**
+         * 创建使用批量任务处理器的Builder对象
+         *
+         * @param taskQueue        任务队列
+         * @param batchTaskHandler 批量任务处理器
+         * @param params           业务自定义参数
+         */
+        private Builder(TaskQueue taskQueue, BatchTaskHandler batchTaskHandler, Object... params) {
+            Assert.notNull(taskQueue, "Param taskQueue can't null");
+            Assert.notNull(batchTaskHandler, "Param batchTaskHandler can't null");
+
+            this.taskQueue = taskQueue;
+            this.batchTaskHandler = batchTaskHandler;
+            this.params = params;
+            this.concurrency = 1;
+            this.batchSize = 100;
+            this.pollTimeoutMs = 1000;
+        }
+
+        /**
+         * 设置工作线程数，默认1
+         *
+         * @param concurrency 工作线程数
+         * @return 返回Builder
+         */
+        public Builder setConcurrency(int concurrency) {
+            Assert.greaterThanEquals(concurrency, 1, "Param concurrency must be greater than 0");
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * 设置本地缓冲区最多预取的任务数，默认与工作线程数相同
+         *
+         * @param prefetch 最多预取的任务数
+         * @return 返回Builder
+         */
+        public Builder setPrefetch(int prefetch) {
+            Assert.greaterThanEquals(prefetch, 1, "Param prefetch must be greater than 0");
+            this.prefetch = prefetch;
+            return this;
+        }
+
+        /**
+         * 设置每次从任务队列中最多获取的任务数，默认100；使用批量任务处理器时，也是每次最多处理的任务数
+         *
+         * @param batchSize 每次最多获取的任务数
+         * @return 返回Builder
+         */
+        public Builder setBatchSize(int batchSize) {
+            Assert.greaterThanEquals(batchSize, 1, "Param batchSize must be greater than 0");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * 设置任务队列为空时，拉取线程每次的最大阻塞时间，默认1000ms
+         * <p>
+         * 同时也是停止消费者时，拉取线程退出的最大延迟，以及任务队列不可用时拉取线程的最大退避时间
+         *
+         * @param pollTimeoutMs 最大阻塞时间，单位：ms
+         * @return 返回Builder
+         */
+        public Builder setPollTimeout(long pollTimeoutMs) {
+            Assert.greaterThanEquals(pollTimeoutMs, 1, "Param pollTimeoutMs must be greater than 0");
+            this.pollTimeoutMs = pollTimeoutMs;
+            return this;
+        }
+
+        public TaskConsumer build() {
+            TaskConsumer taskConsumer = new TaskConsumer();
+            taskConsumer.taskQueue = this.taskQueue;
+            taskConsumer.taskHandler = this.taskHandler;
+            taskConsumer.batchTaskHandler = this.batchTaskHandler;
+            taskConsumer.params = this.params;
+            taskConsumer.concurrency = this.concurrency;
+            if (this.prefetch > 0) {
+                taskConsumer.prefetch = this.prefetch;
+            } else {
+                taskConsumer.prefetch = this.batchTaskHandler != null ? this.concurrency * this.batchSize : this.concurrency;
+            }
+            taskConsumer.batchSize = this.batchSize;
+            taskConsumer.pollTimeoutMs = this.pollTimeoutMs;
+            taskConsumer.buffer = new LinkedBlockingQueue<>();
+            taskConsumer.slots = new Semaphore(taskConsumer.prefetch);
+            return taskConsumer;
+        }
+    }
+
+    /**
+     * 使用批量任务处理器的构建器
+     */
+    public static class BatchBuilder extends Builder {
+
+        /**
+         * 创建BatchBuilder对象
+         *
+         * @param taskQueue        任务队列
+         * @param batchTaskHandler 批量任务处理器，会被多个工作线程同时调用
+         * @param params           业务自定义参数
+         */
+        public BatchBuilder(TaskQueue taskQueue, BatchTaskHandler batchTaskHandler, Object... params) {
+            super(taskQueue, batchTaskHandler, params);
+        }
+    }
+}
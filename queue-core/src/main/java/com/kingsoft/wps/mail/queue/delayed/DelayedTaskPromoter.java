@@ -0,0 +1,180 @@
+package com.kingsoft.wps.mail.queue.delayed;
+
+import com.kingsoft.wps.mail.exception.NestedException;
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.RedisTaskQueue;
+import com.kingsoft.wps.mail.queue.ShardedTaskQueue;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.utils.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 延时任务的推送器，定时将到期的延时任务放入任务队列
+ * <p>
+ * 每隔intervalMs，对每个任务队列批量放入到期的延时任务（{@link RedisTaskQueue#promoteDelayedTasks(int)}），
+ * 一批放满时立即放入下一批，直到没有到期的任务；
+ * 取出与放入在同一脚本内完成，可以在多个进程中同时运行，每个任务只会被放入一次。
+ * <p>
+ * 延时任务的实际执行时间最多比执行时间晚intervalMs；到期时间以推送器所在服务器的时钟为准
+ */
+public class DelayedTaskPromoter {
+
+    private static final Logger logger = Logger.getLogger(DelayedTaskPromoter.class.getName());
+
+    /**
+     * 任务队列
+     */
+    private List<RedisTaskQueue> taskQueues;
+
+    /**
+     * 检查到期任务的间隔，单位：ms
+     */
+    private long intervalMs;
+
+    /**
+     * 每批最多放入的任务数
+     */
+    private int batchSize;
+
+    /**
+     * 调度线程池
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 构造方法私有化，防止外部调用
+     */
+    private DelayedTaskPromoter() {
+    }
+
+    /**
+     * 启动推送器
+     */
+    public synchronized void start() {
+        Assert.isTrue(scheduler == null, "Delayed task promoter already started");
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delayed-task-promoter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::promote, 0, intervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Delayed task promoter started, queues: " + taskQueues.size() + ", interval: " + intervalMs + "ms");
+    }
+
+    /**
+     * 停止推送器
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * 将所有任务队列中到期的延时任务放入任务队列
+     *
+     * @return 放入的任务数
+     */
+    public int promote() {
+        int total = 0;
+        for (RedisTaskQueue taskQueue : taskQueues) {
+            try {
+                int promoted;
+                do {
+                    promoted = taskQueue.promoteDelayedTasks(batchSize);
+                    total += promoted;
+                } while (promoted == batchSize);
+            } catch (Throwable e) {
+                logger.info(e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 构建器，用于设置初始化参数
+     */
+    public static class Builder {
+
+        /**
+         * 任务队列
+         */
+        private List<RedisTaskQueue> taskQueues;
+
+        /**
+         * 检查到期任务的间隔，默认1000ms
+         */
+        private long intervalMs;
+
+        /**
+         * 每批最多放入的任务数，默认100
+         */
+        private int batchSize;
+
+        /**
+         * 创建Builder对象
+         *
+         * @param kmQueueManager 已初始化的队列管理器
+         * @param queues         任务队列名称，分片队列会处理其所有分片
+         */
+        public Builder(KMQueueManager kmQueueManager, String... queues) {
+            Assert.notNull(kmQueueManager, "Param kmQueueManager can't null");
+            Assert.notEmpty(queues, "Param queues can't empty");
+
+            this.taskQueues = new ArrayList<>(queues.length);
+            for (String queue : queues) {
+                TaskQueue taskQueue = kmQueueManager.getTaskQueue(queue);
+                if (taskQueue instanceof ShardedTaskQueue) {// 分片队列，处理所有分片
+                    this.taskQueues.addAll(((ShardedTaskQueue) taskQueue).getShards());
+                    continue;
+                }
+                if (!(taskQueue instanceof RedisTaskQueue)) {
+                    throw new NestedException("The task queue does not exist, the queue name：" + queue);
+                }
+                this.taskQueues.add((RedisTaskQueue) taskQueue);
+            }
+            this.intervalMs = 1000;
+            this.batchSize = 100;
+        }
+
+        /**
+         * 设置检查到期任务的间隔，默认1000ms
+         *
+         * @param intervalMs 检查到期任务的间隔，单位：ms
+         * @return 返回Builder
+         */
+        public Builder setInterval(long intervalMs) {
+            Assert.greaterThanEquals(intervalMs, 1, "Param intervalMs must be greater than 0");
+            this.intervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * 设置每批最多放入的任务数，默认100，最大1000
+         *
+         * @param batchSize 每批最多放入的任务数
+         * @return 返回Builder
+         */
+        public Builder setBatchSize(int batchSize) {
+            Assert.greaterThanEquals(batchSize, 1, "Param batchSize must be greater than 0");
+            Assert.isTrue(batchSize <= 1000, "Param batchSize must be less than or equal to 1000");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public DelayedTaskPromoter build() {
+            DelayedTaskPromoter promoter = new DelayedTaskPromoter();
+            promoter.taskQueues = this.taskQueues;
+            promoter.intervalMs = this.intervalMs;
+            promoter.batchSize = this.batchSize;
+            return promoter;
+        }
+    }
+}
@@ -0,0 +1,758 @@
+package com.kingsoft.wps.mail.queue.stream;
+
+import com.kingsoft.wps.mail.exception.NestedException;
+import com.kingsoft.wps.mail.queue.KMQueueAdapter;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.utils.Assert;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * 基于Redis Stream（需要Redis 6.2及以上版本）的任务队列
+ * <p>
+ * 任务以消息的形式保存在Stream（任务队列的key + {@link Constant#STREAM_SUFFIX}）中，通过消费者组获取：
+ * <ul>
+ * <li>安全队列：取出的任务由Redis记录在消费者组的待确认列表（PEL）中，完成任务时确认并删除该消息，不需要备份队列和备份队列监控；
+ * 执行超时（超过protectedTimeout未确认）的任务在获取任务时由当前消费者认领（XCLAIM）并重试，
+ * 超过重试次数或者存活时间超时的任务直接确认并删除，不再执行；</li>
+ * <li>简单队列：以NOACK方式读取，读取后即删除该消息；</li>
+ * </ul>
+ * 当前依赖的Jedis版本不支持Stream命令，所有Stream命令都通过Lua脚本执行；
+ * 脚本中的命令不能阻塞，因此插入任务时同时向唤醒信号列表（任务队列的key + {@link Constant#STREAM_SIGNAL_SUFFIX}）放入信号，
+ * 消费者通过brpop等待信号，再通过脚本获取任务。
+ * <p>
+ * 延时任务（{@link #pushTaskAt(Task, long)}）保存在延时任务集合（任务队列的key + {@link Constant#STREAM_SUFFIX} + {@link Constant#DELAYED_SUFFIX}）中，
+ * 由获取任务的脚本将到期的任务追加到Stream，不需要{@link com.kingsoft.wps.mail.queue.delayed.DelayedTaskPromoter}；
+ * 有延时任务时，消费者等待唤醒信号的时间不超过最早的延时任务到期的时间。
+ * <p>
+ * Stream只能在末尾追加消息，插入到队首的任务（{@link #pushTaskToHeader(Task)}）保存在单独的Stream
+ * （任务队列的key + {@link Constant#STREAM_HEADER_SUFFIX}）中，使用同名的消费者组，获取任务时先于其它任务获取。
+ * <p>
+ * 任务的确认依赖消息id（{@link Task#getEntryId()}），需要通过本队列完成任务（{@link #finishTask(Task)}、{@link #finishTasks(List)}），
+ * 可以直接作为{@link com.kingsoft.wps.mail.queue.consumer.TaskConsumer}等消费者的任务队列；
+ * 本队列不由队列管理器创建，不能使用{@link Task#doTask(com.kingsoft.wps.mail.queue.KMQueueManager, Class, Object...)}、
+ * {@link Task#dispatch(com.kingsoft.wps.mail.queue.KMQueueManager, Object...)}
+ */
+public class StreamTaskQueue extends TaskQueue {
+
+    private static final Logger logger = Logger.getLogger(StreamTaskQueue.class.getName());
+
+    private static final int REDIS_DB_IDX = 0;
+
+    /**
+     * 唤醒信号列表的最大长度
+     */
+    private static final int MAX_SIGNALS = 1000;
+
+    /**
+     * 创建消费者组的脚本，Stream不存在时自动创建，消费者组已经存在时忽略
+     * <p>
+     * KEYS[1...] Stream；ARGV[1] 消费者组名称
+     */
+    private static final byte[] CREATE_GROUP_SCRIPT = SafeEncoder.encode(
+            "for _, key in ipairs(KEYS) do " +
+            "  local ok = redis.pcall('XGROUP', 'CREATE', key, ARGV[1], '0', 'MKSTREAM') " +
+            "  if type(ok) == 'table' and ok.err and not string.find(ok.err, 'BUSYGROUP') then " +
+            "    return redis.error_reply(ok.err) " +
+            "  end " +
+            "end " +
+            "return 1");
+
+    /**
+     * 批量插入任务的脚本，唯一性校验(sadd)、插入(xadd)与放入唤醒信号在一次网络往返内完成
+     * <p>
+     * KEYS[1] Stream，KEYS[2] 唯一性标记集合，KEYS[3] 唤醒信号列表；
+     * ARGV[1] 唤醒信号列表的最大长度，ARGV[2...] 依次为成对的 (任务id, 编码后的任务)，任务id为空字符串表示该任务不需要做唯一性校验。
+     * <p>
+     * 返回每个任务是否插入成功，1 - 成功，0 - 任务已存在
+     */
+    private static final byte[] PUSH_TASKS_SCRIPT = SafeEncoder.encode(
+            "local accepted = {} " +
+            "local signals = {} " +
+            "local max = tonumber(ARGV[1]) " +
+            "for i = 2, #ARGV, 2 do " +
+            "  if ARGV[i] == '' or redis.call('SADD', KEYS[2], ARGV[i]) == 1 then " +
+            "    redis.call('XADD', KEYS[1], '*', 't', ARGV[i + 1]) " +
+            "    accepted[#accepted + 1] = 1 " +
+            "    if #signals < max then signals[#signals + 1] = '1' end " +
+            "  else " +
+            "    accepted[#accepted + 1] = 0 " +
+            "  end " +
+            "end " +
+            "if #signals > 0 then " +
+            "  redis.call('LPUSH', KEYS[3], unpack(signals)) " +
+            "  redis.call('LTRIM', KEYS[3], 0, max - 1) " +
+            "end " +
+            "return accepted");
+
+    /**
+     * 插入延时任务的脚本，唯一性校验(sadd)、插入(zadd)与放入唤醒信号在一次网络往返内完成
+     * <p>
+     * KEYS[1] 延时任务集合，KEYS[2] 唯一性标记集合，KEYS[3] 唤醒信号列表；
+     * ARGV[1] 任务id，为空字符串表示不需要做唯一性校验，ARGV[2] 任务的执行时间，ARGV[3] 编码后的任务，ARGV[4] 唤醒信号列表的最大长度
+     * <p>
+     * 唤醒信号使正在等待的消费者重新计算等待时间；返回1 - 成功，0 - 任务已存在
+     */
+    private static final byte[] PUSH_DELAYED_TASK_SCRIPT = SafeEncoder.encode(
+            "if ARGV[1] ~= '' and redis.call('SADD', KEYS[2], ARGV[1]) == 0 then " +
+            "  return 0 " +
+            "end " +
+            "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[3]) " +
+            "redis.call('LPUSH', KEYS[3], '1') " +
+            "redis.call('LTRIM', KEYS[3], 0, tonumber(ARGV[4]) - 1) " +
+            "return 1");
+
+    /**
+     * 批量取任务的脚本，最多取出ARGV[3]个任务
+     * <p>
+     * KEYS[1] Stream，KEYS[2] 延时任务集合，KEYS[3] 队首任务的Stream；ARGV[1] 消费者组名称，ARGV[2] 消费者名称，ARGV[3] 最多取出的任务数，
+     * ARGV[4] 是否是安全队列，'1' - 安全队列，'0' - 简单队列，ARGV[5] 认领执行超时任务的空闲时间，单位：ms，空字符串表示不认领，
+     * ARGV[6] 当前时间
+     * <p>
+     * 先将最多ARGV[3]个到期的延时任务按执行时间从早到晚追加到Stream；
+     * 安全队列再认领待确认列表中空闲时间超过ARGV[5]的任务（通过XPENDING获取投递次数，用于限制重试次数），不足时再读取新的任务，
+     * 消息已被删除的任务直接确认；简单队列以NOACK方式读取，并删除读取的消息。认领、读取时都先处理队首任务的Stream。
+     * 返回依次为 (消息id, 编码后的任务, 投递次数, 是否位于队首任务的Stream：1 - 是，0 - 否) 的数组
+     */
+    private static final byte[] POP_TASKS_SCRIPT = SafeEncoder.encode(
+            "local result = {} " +
+            "local max = tonumber(ARGV[3]) " +
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[6], 'LIMIT', 0, max) " +
+            "for _, t in ipairs(due) do " +
+            "  redis.call('ZREM', KEYS[2], t) " +
+            "  redis.call('XADD', KEYS[1], '*', 't', t) " +
+            "end " +
+            "local function claim(key, header) " +
+            "  local remaining = max - #result / 4 " +
+            "  if remaining <= 0 then return end " +
+            "  local pending = redis.call('XPENDING', key, ARGV[1], 'IDLE', tonumber(ARGV[5]), '-', '+', remaining) " +
+            "  for _, p in ipairs(pending) do " +
+            "    local claimed = redis.call('XCLAIM', key, ARGV[1], ARGV[2], tonumber(ARGV[5]), p[1]) " +
+            "    local e = claimed[1] " +
+            "    if type(e) == 'table' and type(e[2]) == 'table' then " +
+            "      result[#result + 1] = e[1] " +
+            "      result[#result + 1] = e[2][2] " +
+            "      result[#result + 1] = p[4] + 1 " +
+            "      result[#result + 1] = header " +
+            "    elseif #claimed > 0 then " +
+            "      redis.call('XACK', key, ARGV[1], p[1]) " +
+            "    end " +
+            "  end " +
+            "end " +
+            "local function read(key, header) " +
+            "  local remaining = max - #result / 4 " +
+            "  if remaining <= 0 then return end " +
+            "  local r " +
+            "  if ARGV[4] == '1' then " +
+            "    r = redis.call('XREADGROUP', 'GROUP', ARGV[1], ARGV[2], 'COUNT', remaining, 'STREAMS', key, '>') " +
+            "  else " +
+            "    r = redis.call('XREADGROUP', 'GROUP', ARGV[1], ARGV[2], 'COUNT', remaining, 'NOACK', 'STREAMS', key, '>') " +
+            "  end " +
+            "  if r then " +
+            "    for _, e in ipairs(r[1][2]) do " +
+            "      result[#result + 1] = e[1] " +
+            "      result[#result + 1] = e[2][2] " +
+            "      result[#result + 1] = 1 " +
+            "      result[#result + 1] = header " +
+            "      if ARGV[4] ~= '1' then redis.call('XDEL', key, e[1]) end " +
+            "    end " +
+            "  end " +
+            "end " +
+            "if ARGV[4] == '1' and ARGV[5] ~= '' then " +
+            "  claim(KEYS[3], 1) " +
+            "  claim(KEYS[1], 0) " +
+            "end " +
+            "read(KEYS[3], 1) " +
+            "read(KEYS[1], 0) " +
+            "return result");
+
+    /**
+     * 批量完成任务的脚本，确认并删除消息，同时删除唯一性任务的存在标记
+     * <p>
+     * KEYS[1] Stream，KEYS[2] 唯一性标记集合，KEYS[3] 队首任务的Stream；ARGV[1] 消费者组名称，
+     * ARGV[2...] 依次为 (消息id, 任务id, 是否位于队首任务的Stream：'1' - 是，'0' - 否)，任务id为空字符串表示不是唯一性任务
+     * <p>
+     * 返回确认的消息数
+     */
+    private static final byte[] FINISH_TASKS_SCRIPT = SafeEncoder.encode(
+            "local acked = 0 " +
+            "for i = 2, #ARGV, 3 do " +
+            "  local key = KEYS[1] " +
+            "  if ARGV[i + 2] == '1' then key = KEYS[3] end " +
+            "  acked = acked + redis.call('XACK', key, ARGV[1], ARGV[i]) " +
+            "  redis.call('XDEL', key, ARGV[i]) " +
+            "  if ARGV[i + 1] ~= '' then redis.call('SREM', KEYS[2], ARGV[i + 1]) end " +
+            "end " +
+            "return acked");
+
+    /**
+     * 任务队列名称
+     */
+    private String name;
+
+    /**
+     * 队列模式：DEFAULT - 简单队列，SAFE - 安全队列
+     */
+    private String mode;
+
+    /**
+     * 队列管理器
+     */
+    private KMQueueAdapter kmQueueAdapter;
+
+    /**
+     * 消费者组名称
+     */
+    private String group;
+
+    /**
+     * 消费者名称
+     */
+    private String consumer;
+
+    /**
+     * 任务执行的超时时间（一次执行），超时未确认的任务由其它消费者认领并重试，单位：ms
+     */
+    private long protectedTimeout;
+
+    /**
+     * 任务超时重试次数
+     */
+    private int retryTimes;
+
+    /**
+     * 任务队列在Redis中的key，集群模式下带有hash tag（{@link KMQueueAdapter#getQueueKey(String)}），其它key均以此为前缀
+     */
+    private String key;
+
+    private byte[] streamKey;
+
+    private byte[] headerStreamKey;
+
+    private byte[] uniqueKey;
+
+    private byte[] signalKey;
+
+    private byte[] delayedKey;
+
+    /**
+     * 构造方法私有化，防止外部调用
+     */
+    private StreamTaskQueue() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getMode() {
+        return this.mode;
+    }
+
+    /**
+     * 获取消费者组名称
+     *
+     * @return 消费者组名称
+     */
+    public String getGroup() {
+        return this.group;
+    }
+
+    /**
+     * 获取消费者名称
+     *
+     * @return 消费者名称
+     */
+    public String getConsumer() {
+        return this.consumer;
+    }
+
+    /**
+     * 向任务队列中插入任务
+     * <p>
+     * 对于安全队列的唯一性任务，如果该任务在队列已经存在，则返回null
+     *
+     * @param task 队列任务
+     * @return 插入的任务，插入失败返回null
+     */
+    @Override
+    public Task pushTask(Task task) {
+        List<Task> accepted = pushTasks(Collections.singletonList(task));
+        return accepted.isEmpty() ? null : task;
+    }
+
+    /**
+     * 向任务队列中批量插入任务，整批任务通过一次脚本调用提交
+     *
+     * @param tasks 队列任务
+     * @return 插入成功的任务，唯一性任务如果在队列中已经存在，则不会出现在返回结果中；插入失败时返回空集合
+     */
+    @Override
+    public List<Task> pushTasks(List<Task> tasks) {
+        return pushTasks(this.streamKey, tasks, KMQueueAdapter.SAFE.equals(this.mode));
+    }
+
+    /**
+     * 向指定的Stream中批量插入任务，整批任务通过一次脚本调用提交
+     *
+     * @param stream      Stream
+     * @param tasks       队列任务
+     * @param checkUnique 是否对唯一性任务做唯一性校验
+     * @return 插入成功的任务
+     */
+    private List<Task> pushTasks(byte[] stream, List<Task> tasks, boolean checkUnique) {
+        List<Task> accepted = new ArrayList<>();
+        if (tasks == null || tasks.isEmpty()) {
+            return accepted;
+        }
+
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+
+            List<byte[]> args = new ArrayList<>(tasks.size() * 2 + 1);
+            args.add(SafeEncoder.encode(String.valueOf(MAX_SIGNALS)));
+            for (Task task : tasks) {
+                args.add(SafeEncoder.encode(checkUnique && task.isUnique() ? task.getId() : ""));
+                args.add(kmQueueAdapter.getTaskCodec().encode(task));
+            }
+            List<?> results = (List<?>) jedis.eval(PUSH_TASKS_SCRIPT, Arrays.asList(stream, this.uniqueKey, this.signalKey), args);
+            for (int i = 0; i < tasks.size(); i++) {
+                if (((Long) results.get(i)) == 1) {
+                    accepted.add(tasks.get(i));
+                }
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * 添加在指定时间执行的延时任务
+     * <p>
+     * 任务保存在延时任务集合(sorted set)中，以执行时间排序，到期后由获取任务的脚本追加到Stream；
+     * 对于安全队列的唯一性任务，与{@link #pushTask(Task)}一样做唯一性校验
+     *
+     * @param task    队列任务
+     * @param epochMs 任务的执行时间，单位：ms
+     * @return 添加的任务，添加失败或者唯一性任务已经存在时返回null
+     */
+    @Override
+    public Task pushTaskAt(Task task, long epochMs) {
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+
+            // 任务的存活时间从执行时间开始计算
+            Task.TaskStatus status = task.getTaskStatus();
+            status.setGenTimestamp(Math.max(status.getGenTimestamp(), epochMs));
+
+            boolean checkUnique = KMQueueAdapter.SAFE.equals(this.mode) && task.isUnique();
+            Object result = jedis.eval(PUSH_DELAYED_TASK_SCRIPT, Arrays.asList(this.delayedKey, this.uniqueKey, this.signalKey),
+                    Arrays.asList(SafeEncoder.encode(checkUnique ? task.getId() : ""), SafeEncoder.encode(String.valueOf(epochMs)),
+                            kmQueueAdapter.getTaskCodec().encode(task), SafeEncoder.encode(String.valueOf(MAX_SIGNALS))));
+            if (((Long) result) == 1) {
+                return task;
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将任务插入到队首，先于其它任务获取
+     * <p>
+     * Stream只能在末尾追加消息，任务追加到队首任务的Stream中，获取任务时先读取该Stream；
+     * 与{@link com.kingsoft.wps.mail.queue.RedisTaskQueue#pushTaskToHeader(Task)}一致，不做唯一性校验
+     *
+     * @param task 队列任务
+     */
+    @Override
+    public void pushTaskToHeader(Task task) {
+        pushTasks(this.headerStreamKey, Collections.singletonList(task), false);
+    }
+
+    /**
+     * 获取任务，任务队列为空时一直阻塞
+     *
+     * @return 队列任务
+     */
+    @Override
+    public Task popTask() {
+        List<Task> tasks = popTasks(1, Long.MAX_VALUE);
+        return tasks.isEmpty() ? null : tasks.get(0);
+    }
+
+    /**
+     * 批量获取任务，最多取max个
+     * <p>
+     * 1.通过脚本非阻塞地获取任务，安全队列先认领执行超时的任务，不足时再读取新的任务，插入到队首的任务优先；<br>
+     * 2.没有取到任务时，通过brpop等待唤醒信号，最多等待timeoutMs毫秒，会向上取整到秒；
+     * 安全队列设置了执行超时时间时，每次最多等待1秒，以便及时认领执行超时的任务；
+     * 有延时任务时，最多等待到最早的延时任务到期（至少1秒）；<br>
+     * 3.存活时间超时或者超过重试次数的任务直接确认并删除，不会返回；<br>
+     * <p>
+     * 认领的任务状态设置为`retry`，重试次数为投递次数 - 1
+     *
+     * @param max       最多获取的任务数
+     * @param timeoutMs 任务队列为空时的最大阻塞时间，单位：ms，小于等于0则不阻塞
+     * @return 队列任务，没有取到任务返回空集合
+     */
+    @Override
+    public List<Task> popTasks(int max, long timeoutMs) {
+        Assert.greaterThanEquals(max, 1, "Param max must be greater than 0");
+
+        List<Task> tasks = new ArrayList<>();
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+
+            // 1.非阻塞地批量取出任务
+            tasks.addAll(popTasksByScript(jedis, max));
+
+            // 2.任务队列为空，等待唤醒信号
+            if (tasks.isEmpty() && timeoutMs > 0) {
+                long deadline = timeoutMs == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+                boolean claim = KMQueueAdapter.SAFE.equals(this.mode) && this.protectedTimeout != Long.MAX_VALUE;
+                while (tasks.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    int timeout = claim ? 1 : (deadline == Long.MAX_VALUE ? 0 : (int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000));
+                    long delay = nextDelayedTaskDelay(jedis);
+                    if (delay >= 0) {
+                        int delayTimeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (delay + 999) / 1000));
+                        timeout = timeout == 0 ? delayTimeout : Math.min(timeout, delayTimeout);
+                    }
+                    jedis.brpop(timeout, this.signalKey);
+                    tasks.addAll(popTasksByScript(jedis, max));
+                }
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * 队列任务完成
+     * <p>
+     * 对于安全队列，确认并删除该任务的消息，并删除该任务的存在标记
+     *
+     * @param task 队列任务
+     */
+    @Override
+    public void finishTask(Task task) {
+        finishTasks(Collections.singletonList(task));
+    }
+
+    /**
+     * 批量完成队列任务
+     * <p>
+     * 对于安全队列，通过一次脚本调用确认并删除这些任务的消息，并删除这些任务的存在标记；没有消息id的任务会被忽略
+     *
+     * @param tasks 队列任务
+     */
+    @Override
+    public void finishTasks(List<Task> tasks) {
+        if (!KMQueueAdapter.SAFE.equals(this.mode) || tasks == null || tasks.isEmpty()) {
+            return;
+        }
+
+        Jedis jedis = null;
+        try {
+            jedis = kmQueueAdapter.getResource(REDIS_DB_IDX, this.key);
+            finishTasks(jedis, tasks);
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (jedis != null) {
+                kmQueueAdapter.returnResource(jedis);
+            }
+        }
+    }
+
+    /**
+     * 通过脚本确认并删除任务的消息
+     *
+     * @param jedis Jedis对象
+     * @param tasks 队列任务
+     */
+    private void finishTasks(Jedis jedis, List<Task> tasks) {
+        List<byte[]> args = new ArrayList<>(tasks.size() * 3 + 1);
+        args.add(SafeEncoder.encode(this.group));
+        for (Task task : tasks) {
+            if (task.getEntryId() != null) {
+                args.add(SafeEncoder.encode(task.getEntryId()));
+                args.add(SafeEncoder.encode(task.isUnique() ? task.getId() : ""));
+                args.add(SafeEncoder.encode(task.isHeaderEntry() ? "1" : "0"));
+            }
+        }
+        if (args.size() > 1) {
+            jedis.eval(FINISH_TASKS_SCRIPT, Arrays.asList(this.streamKey, this.uniqueKey, this.headerStreamKey), args);
+        }
+    }
+
+    /**
+     * 获取距离最早的延时任务到期的时间
+     *
+     * @param jedis Jedis对象
+     * @return 距离到期的时间，单位：ms，已经到期时返回0，没有延时任务时返回-1
+     */
+    private long nextDelayedTaskDelay(Jedis jedis) {
+        Set<Tuple> next = jedis.zrangeWithScores(this.delayedKey, 0, 0);
+        if (next == null || next.isEmpty()) {
+            return -1;
+        }
+        long epochMs = (long) next.iterator().next().getScore();
+        return Math.max(0, epochMs - System.currentTimeMillis());
+    }
+
+    /**
+     * 通过脚本非阻塞地批量获取任务
+     * <p>
+     * 先将到期的延时任务追加到Stream，存活时间超时或者超过重试次数的任务直接确认并删除
+     *
+     * @param jedis Jedis对象
+     * @param max   最多获取的任务数
+     * @return 队列任务
+     */
+    @SuppressWarnings("unchecked")
+    private List<Task> popTasksByScript(Jedis jedis, int max) {
+        boolean safe = KMQueueAdapter.SAFE.equals(this.mode);
+        String claimIdle = safe && this.protectedTimeout != Long.MAX_VALUE ? String.valueOf(this.protectedTimeout) : "";
+        List<Object> result = (List<Object>) jedis.eval(POP_TASKS_SCRIPT, Arrays.asList(this.streamKey, this.delayedKey, this.headerStreamKey),
+                Arrays.asList(SafeEncoder.encode(this.group), SafeEncoder.encode(this.consumer), SafeEncoder.encode(String.valueOf(max)),
+                        SafeEncoder.encode(safe ? "1" : "0"), SafeEncoder.encode(claimIdle),
+                        SafeEncoder.encode(String.valueOf(System.currentTimeMillis()))));
+
+        List<Task> tasks = new ArrayList<>(result.size() / 4);
+        List<Task> dropped = null;
+        long excTimestamp = System.currentTimeMillis();// 任务执行的时间戳
+        for (int i = 0; i < result.size(); i += 4) {
+            Task task = kmQueueAdapter.getTaskCodec().decode((byte[]) result.get(i + 1));
+            task.setEntryId(SafeEncoder.encode((byte[]) result.get(i)));
+            task.setHeaderEntry(((Long) result.get(i + 3)) == 1);
+            if (safe) {
+                Task.TaskStatus status = task.getTaskStatus();
+                int retry = ((Long) result.get(i + 2)).intValue() - 1;
+                if (retry > 0) {// 认领的执行超时任务
+                    status.setState(Constant.RETRY);
+                    status.setRetry(retry);
+                }
+                status.setExcTimestamp(excTimestamp);// 更新任务的执行时间戳
+                if (retry > this.retryTimes || excTimestamp - status.getGenTimestamp() > kmQueueAdapter.getAliveTimeout()) {
+                    // 超过重试次数或者存活时间超时，不再执行
+                    if (dropped == null) {
+                        dropped = new ArrayList<>();
+                    }
+                    dropped.add(task);
+                    continue;
+                }
+            }
+            tasks.add(task);
+        }
+        if (dropped != null) {
+            logger.info("Drop " + dropped.size() + " tasks of the stream task queue[" + this.name + "], retry times or alive timeout exceeded");
+            finishTasks(jedis, dropped);
+        }
+        return tasks;
+    }
+
+    /**
+     * 构建器，用于设置初始化参数，创建消费者组
+     */
+    public static class Builder {
+
+        private KMQueueAdapter kmQueueAdapter;
+
+        /**
+         * 任务队列名称
+         */
+        private String name;
+
+        /**
+         * 队列模式，默认为DEFAULT
+         */
+        private String mode;
+
+        /**
+         * 消费者组名称，默认为"kmqueue"
+         */
+        private String group;
+
+        /**
+         * 消费者名称，默认为当前进程的 pid@hostname
+         */
+        private String consumer;
+
+        /**
+         * 任务执行的超时时间，默认Long.MAX_VALUE，即不认领执行超时的任务
+         */
+        private long protectedTimeout;
+
+        /**
+         * 任务超时重试次数，默认3次
+         */
+        private int retryTimes;
+
+        /**
+         * 创建Builder对象
+         *
+         * @param kmQueueAdapter 队列管理器，提供连接池、编解码器以及任务的存活超时时间
+         * @param name           任务队列名称
+         */
+        public Builder(KMQueueAdapter kmQueueAdapter, String name) {
+            Assert.notNull(kmQueueAdapter, "Param kmQueueAdapter can't null");
+            Assert.isTrue(name != null && !"".equals(name.trim()), "Param name can't empty");
+
+            this.kmQueueAdapter = kmQueueAdapter;
+            this.name = name.trim();
+            this.mode = KMQueueAdapter.DEFAULT;
+            this.group = "kmqueue";
+            this.consumer = ManagementFactory.getRuntimeMXBean().getName();
+            this.protectedTimeout = Long.MAX_VALUE;
+            this.retryTimes = 3;
+        }
+
+        /**
+         * 设置队列模式，默认为DEFAULT
+         *
+         * @param mode 队列模式：DEFAULT - 简单队列，SAFE - 安全队列
+         * @return 返回Builder
+         */
+        public Builder setMode(String mode) {
+            if (!KMQueueAdapter.DEFAULT.equals(mode) && !KMQueueAdapter.SAFE.equals(mode)) {
+                throw new NestedException("The current queue mode is invalid, the queue name：" + this.name);
+            }
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * 设置消费者组名称，默认为"kmqueue"
+         * <p>
+         * 同一消费者组的消费者共同消费任务队列，每个任务只会被其中一个消费者获取
+         *
+         * @param group 消费者组名称
+         * @return 返回Builder
+         */
+        public Builder setGroup(String group) {
+            Assert.notNull(group, "Param group can't null");
+            this.group = group;
+            return this;
+        }
+
+        /**
+         * 设置消费者名称，默认为当前进程的 pid@hostname
+         * <p>
+         * 同一消费者组内的消费者名称需要唯一，同一进程内的多个线程可以共用
+         *
+         * @param consumer 消费者名称
+         * @return 返回Builder
+         */
+        public Builder setConsumer(String consumer) {
+            Assert.notNull(consumer, "Param consumer can't null");
+            this.consumer = consumer;
+            return this;
+        }
+
+        /**
+         * 任务执行的超时时间（一次执行）。单位：ms
+         * <p>
+         * 超时未确认的任务在获取任务时被认领并重试；传0 则采用默认值： Long.MAX_VALUE，即不重试
+         * <p>
+         * 该值只针对安全队列起作用
+         *
+         * @param protectedTimeout 任务执行的超时时间
+         * @return 返回Builder
+         */
+        public Builder setProtectedTimeout(long protectedTimeout) {
+            Assert.greaterThanEquals(protectedTimeout, 0, "Param protectedTimeout is negative");
+            if (protectedTimeout == 0) {
+                protectedTimeout = Long.MAX_VALUE;
+            }
+            this.protectedTimeout = protectedTimeout;
+            return this;
+        }
+
+        /**
+         * 任务超时重试次数，默认3次
+         *
+         * @param retryTimes 任务超时重试次数
+         * @return 返回Builder
+         */
+        public Builder setRetryTimes(int retryTimes) {
+            Assert.greaterThanEquals(retryTimes, 0, "Param retryTimes is negative");
+            this.retryTimes = retryTimes;
+            return this;
+        }
+
+        /**
+         * 创建任务队列，Stream（包括队首任务的Stream）或者消费者组不存在时自动创建
+         *
+         * @return 任务队列
+         */
+        public StreamTaskQueue build() {
+            StreamTaskQueue taskQueue = new StreamTaskQueue();
+            taskQueue.kmQueueAdapter = this.kmQueueAdapter;
+            taskQueue.name = this.name;
+            taskQueue.mode = this.mode;
+            taskQueue.group = this.group;
+            taskQueue.consumer = this.consumer;
+            taskQueue.protectedTimeout = this.protectedTimeout;
+            taskQueue.retryTimes = this.retryTimes;
+            taskQueue.key = this.kmQueueAdapter.getQueueKey(this.name);
+            taskQueue.streamKey = SafeEncoder.encode(taskQueue.key + Constant.STREAM_SUFFIX);
+            taskQueue.headerStreamKey = SafeEncoder.encode(taskQueue.key + Constant.STREAM_HEADER_SUFFIX);
+            taskQueue.uniqueKey = SafeEncoder.encode(taskQueue.key + Constant.UNIQUE_SUFFIX);
+            taskQueue.signalKey = SafeEncoder.encode(taskQueue.key + Constant.STREAM_SIGNAL_SUFFIX);
+            taskQueue.delayedKey = SafeEncoder.encode(taskQueue.key + Constant.STREAM_SUFFIX + Constant.DELAYED_SUFFIX);
+
+            Jedis jedis = null;
+            try {
+                jedis = this.kmQueueAdapter.getResource(REDIS_DB_IDX, taskQueue.key);
+                jedis.eval(CREATE_GROUP_SCRIPT, Arrays.asList(taskQueue.streamKey, taskQueue.headerStreamKey),
+                        Collections.singletonList(SafeEncoder.encode(this.group)));
+            } finally {
+                if (jedis != null) {
+                    this.kmQueueAdapter.returnResource(jedis);
+                }
+            }
+            logger.info("Creating a stream task queue：" + this.name + ", group：" + this.group + ", consumer：" + this.consumer);
+            return taskQueue;
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package com.kingsoft.wps.mail.utils;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONException;
+import com.kingsoft.wps.mail.exception.NestedException;
 import com.kingsoft.wps.mail.queue.KMQueueAdapter;
-import sun.misc.BASE64Encoder;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
 
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Created by 刘春龙 on 2018/1/22.
@@ -24,7 +34,7 @@ public class KMQUtils {
         // 生成备份队列名称
         try {
             MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-            BASE64Encoder base64Encoder = new BASE64Encoder();
+            Base64.Encoder base64Encoder = Base64.getEncoder();
 
             // 获取队列名称
             StringBuilder queueNameMulti = new StringBuilder();
@@ -35,7 +45,7 @@ public class KMQUtils {
                             StringBuilder::append,
                             StringBuilder::append);
             try {
-                return KMQueueAdapter.BACK_UP_QUEUE_PREFIX + base64Encoder.encode(md5Digest.digest(queueNameMulti.toString().getBytes("UTF-8")));
+                return KMQueueAdapter.BACK_UP_QUEUE_PREFIX + base64Encoder.encodeToString(md5Digest.digest(queueNameMulti.toString().getBytes("UTF-8")));
             } catch (UnsupportedEncodingException e) {
                 e.printStackTrace();
             }
@@ -46,6 +56,152 @@ public class KMQUtils {
     }
 
     public static String genBackUpQueueName(List<String> queues) {
-        return genBackUpQueueName((String[]) queues.toArray());
+        return genBackUpQueueName(queues.toArray(new String[0]));
+    }
+
+    /**
+     * 获取key的hash tag，即第一个'{'与其后第一个'}'之间的非空内容，与Redis Cluster计算槽位的规则一致
+     *
+     * @param key redis key
+     * @return hash tag，没有hash tag时返回null
+     */
+    public static String hashTag(String key) {
+        int start = key.indexOf('{');
+        if (start >= 0) {
+            int end = key.indexOf('}', start + 1);
+            if (end > start + 1) {
+                return key.substring(start + 1, end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 计算任务所属的备份队列分区
+     * <p>
+     * 对任务id的UTF-8字节做 h = (h * 31 + b) mod 2^31，再对分区数取模；
+     * 该算法与Lua脚本中的计算方式一致，中间结果不会超出Lua数值(double)的精确范围
+     *
+     * @param id         任务id
+     * @param partitions 分区数
+     * @return 分区序号，从0开始
+     */
+    public static int partition(String id, int partitions) {
+        if (partitions <= 1) {
+            return 0;
+        }
+        long h = 0;
+        try {
+            for (byte b : id.getBytes("UTF-8")) {
+                h = (h * 31 + (b & 0xff)) % 2147483648L;
+            }
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return (int) (h % partitions);
+    }
+
+    /**
+     * 从编码后的任务中读取任务id，与取出任务的Lua脚本的读取方式一致：
+     * 首字节为{@link BinaryTaskCodec#MAGIC}时从二进制头部读取，首字节为'{'时按JSON解析
+     *
+     * @param bytes 编码后的任务
+     * @return 任务id，无法读取时返回null
+     */
+    public static String readTaskId(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] == BinaryTaskCodec.MAGIC) {
+            if (bytes.length < 3) {
+                return null;
+            }
+            int len = ((bytes[1] & 0xff) << 8) | (bytes[2] & 0xff);
+            return bytes.length < 3 + len ? null : new String(bytes, 3, len, StandardCharsets.UTF_8);
+        }
+        if (bytes[0] == '{') {
+            try {
+                Object id = JSON.parseObject(new String(bytes, StandardCharsets.UTF_8)).get("id");
+                return id instanceof String ? (String) id : null;
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 生成一次取出任务的标识，用于区分同一任务id的多次执行
+     *
+     * @return 取出任务的标识
+     */
+    public static String genBackupToken() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * 生成任务在备份队列索引中的key
+     * <p>
+     * 同一个队列管理器的安全队列共用备份队列，非唯一性任务的id可以由调用方指定，
+     * 因此key由任务队列名称、任务id与取出任务的标识组成，同一任务id的多次执行互不覆盖；
+     * 该格式与取出任务的Lua脚本中的拼接方式一致
+     *
+     * @param queue 任务队列名称
+     * @param id    任务id
+     * @param token 取出任务的标识
+     * @return 备份队列索引中的key
+     */
+    public static String backupKey(String queue, String id, String token) {
+        return queue + ":" + id + ":" + token;
+    }
+
+    /**
+     * 使用Deflate压缩数据，压缩级别为{@link Deflater#BEST_SPEED}
+     *
+     * @param bytes 原始数据
+     * @return 压缩后的数据
+     */
+    public static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 解压{@link #compress(byte[])}压缩的数据
+     *
+     * @param bytes 压缩后的数据
+     * @return 原始数据
+     */
+    public static byte[] decompress(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new NestedException("The compressed data is incomplete");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new NestedException("The compressed data is malformed", e);
+        } finally {
+            inflater.end();
+        }
     }
 }
@@ -0,0 +1,131 @@
+package com.kingsoft.wps.mail.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 无锁的有界环形缓冲区，支持多个生产者、多个消费者并发地存取，先进先出
+ * <p>
+ * 每个槽位记录一个序号：序号等于写入位置时槽位可写，等于写入位置 + 1 时槽位可读；
+ * 生产者、消费者分别通过CAS推进写入位置、读取位置，认领槽位之后独占地读写该槽位，不需要加锁。
+ * 缓冲区已满时{@link #offer(Object)}直接返回false，为空时{@link #poll()}直接返回null，都不会阻塞
+ *
+ * @param <E> 元素类型
+ */
+public class RingBuffer<E> {
+
+    /**
+     * 容量 - 1，容量为2的幂，下标 = 位置 & mask
+     */
+    private final int mask;
+
+    /**
+     * 各个槽位的元素
+     */
+    private final AtomicReferenceArray<E> elements;
+
+    /**
+     * 各个槽位的序号
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * 下一个写入的位置
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 下一个读取的位置
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 构造方法
+     *
+     * @param capacity 容量，向上取整为2的幂
+     */
+    public RingBuffer(int capacity) {
+        Assert.greaterThanEquals(capacity, 1, "Param capacity must be greater than 0");
+        Assert.isTrue(capacity <= 1 << 30, "Param capacity must be less than or equal to 2^30");
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 写入元素
+     *
+     * @param e 元素，不能为null
+     * @return 写入成功返回true，缓冲区已满返回false
+     */
+    public boolean offer(E e) {
+        Assert.notNull(e, "Param e can't null");
+        long pos = this.tail.get();
+        while (true) {
+            int idx = (int) pos & this.mask;
+            long diff = this.sequences.get(idx) - pos;
+            if (diff == 0) {// 槽位可写，认领该槽位
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    this.elements.lazySet(idx, e);
+                    this.sequences.set(idx, pos + 1);// 发布元素
+                    return true;
+                }
+                pos = this.tail.get();
+            } else if (diff < 0) {// 槽位中的元素还没有被读取，缓冲区已满
+                return false;
+            } else {// 其它生产者已经认领了该槽位
+                pos = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * 读取元素
+     *
+     * @return 最早写入的元素，缓冲区为空时返回null
+     */
+    public E poll() {
+        long pos = this.head.get();
+        while (true) {
+            int idx = (int) pos & this.mask;
+            long diff = this.sequences.get(idx) - (pos + 1);
+            if (diff == 0) {// 槽位可读，认领该槽位
+                if (this.head.compareAndSet(pos, pos + 1)) {
+                    E e = this.elements.get(idx);
+                    this.elements.lazySet(idx, null);
+                    this.sequences.set(idx, pos + this.mask + 1);// 槽位可被下一轮写入
+                    return e;
+                }
+                pos = this.head.get();
+            } else if (diff < 0) {// 槽位还没有写入元素，缓冲区为空
+                return null;
+            } else {// 其它消费者已经认领了该槽位
+                pos = this.head.get();
+            }
+        }
+    }
+
+    /**
+     * 获取缓冲区中的元素个数，并发存取时为近似值
+     *
+     * @return 元素个数
+     */
+    public int size() {
+        long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.mask + 1));
+    }
+
+    /**
+     * 获取缓冲区的容量
+     *
+     * @return 容量
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+}
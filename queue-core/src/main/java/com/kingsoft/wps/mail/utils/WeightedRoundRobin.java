@@ -0,0 +1,81 @@
+package com.kingsoft.wps.mail.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 平滑加权轮询，线程安全
+ * <p>
+ * 预先计算一个周期（长度为权重之和）内依次选择的下标，例如权重为 5, 1, 1 时选择顺序为 0, 0, 1, 0, 2, 0, 0，
+ * 权重大的下标不会连续地占满整个周期
+ */
+public class WeightedRoundRobin {
+
+    /**
+     * 一个轮询周期内依次选择的下标
+     */
+    private final int[] schedule;
+
+    /**
+     * 下标的个数
+     */
+    private final int size;
+
+    /**
+     * 轮询序号
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * 构造方法
+     *
+     * @param weights 各个下标的权重，必须大于0
+     */
+    public WeightedRoundRobin(int... weights) {
+        Assert.isTrue(weights != null && weights.length >= 1, "Param weights can't empty");
+        int total = 0;
+        for (int weight : weights) {
+            Assert.greaterThanEquals(weight, 1, "Param weights must be greater than 0");
+            total += weight;
+        }
+        this.size = weights.length;
+        this.schedule = new int[total];
+        int[] current = new int[weights.length];
+        for (int i = 0; i < total; i++) {
+            int selected = 0;
+            for (int p = 0; p < weights.length; p++) {
+                current[p] += weights[p];
+                if (current[p] > current[selected]) {
+                    selected = p;
+                }
+            }
+            current[selected] -= total;
+            this.schedule[i] = selected;
+        }
+    }
+
+    /**
+     * 选择下一个下标
+     *
+     * @return 选中的下标
+     */
+    public int next() {
+        return schedule[(int) (sequence.getAndIncrement() % schedule.length)];
+    }
+
+    /**
+     * 选择下一个下标，返回本次的访问顺序：选中的下标在前，其余按下标从小到大
+     *
+     * @return 各个下标的访问顺序
+     */
+    public int[] nextOrder() {
+        int selected = next();
+        int[] order = new int[size];
+        order[0] = selected;
+        for (int p = 0, i = 1; p < size; p++) {
+            if (p != selected) {
+                order[i++] = p;
+            }
+        }
+        return order;
+    }
+}
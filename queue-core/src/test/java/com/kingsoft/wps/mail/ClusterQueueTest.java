@@ -0,0 +1,108 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.MultiTaskQueue;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.cluster.KMJedisCluster;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 集群模式测试，需要Redis Cluster，其中一个节点为127.0.0.1:7000
+ */
+public class ClusterQueueTest {
+
+    private KMQueueManager kmQueueManager;
+
+    @Before
+    public void init() {
+        kmQueueManager = new KMQueueManager.Builder(Collections.singleton(new HostAndPort("127.0.0.1", 7000)),
+                "cluster_mail:safe", "cluster_sms:safe", "{cluster}_high:safe", "{cluster}_low")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(50)
+                .setMaxIdle(10)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+    }
+
+    @After
+    public void destroy() throws Exception {
+        kmQueueManager.destroy();
+    }
+
+    @Test
+    public void hashTagTest() {
+        // 任务队列的所有key与备份队列位于同一个槽位
+        Assert.assertEquals("{cluster_mail}", kmQueueManager.getQueueKey("cluster_mail"));
+        Assert.assertEquals(KMJedisCluster.getSlot(kmQueueManager.getQueueKey("cluster_mail")),
+                KMJedisCluster.getSlot(kmQueueManager.getBackUpQueueName("cluster_mail")));
+        // 名称中指定了hash tag的任务队列共用备份队列
+        Assert.assertEquals("{cluster}_high", kmQueueManager.getQueueKey("{cluster}_high"));
+        Assert.assertEquals(kmQueueManager.getBackUpQueueName("{cluster}_high"), kmQueueManager.getBackUpQueueName("{cluster}_low"));
+        Assert.assertNotEquals(kmQueueManager.getBackUpQueueName("cluster_mail"), kmQueueManager.getBackUpQueueName("cluster_sms"));
+    }
+
+    @Test
+    public void popTasksTest() {
+        for (String queue : new String[]{"cluster_mail", "cluster_sms"}) {
+            TaskQueue taskQueue = kmQueueManager.getTaskQueue(queue);
+            List<Task> tasks = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                tasks.add(new Task(queue, queue + "_" + i, true, "", "cluster task " + i, new Task.TaskStatus()));
+            }
+            Assert.assertEquals(10, taskQueue.pushTasks(tasks).size());
+            Assert.assertTrue(taskQueue.pushTasks(tasks).isEmpty());
+
+            List<Task> popped = taskQueue.popTasks(20, 0);
+            Assert.assertEquals(10, popped.size());
+            taskQueue.finishTasks(popped);
+            Assert.assertEquals(10, taskQueue.pushTasks(tasks).size());
+            taskQueue.finishTasks(taskQueue.popTasks(20, 1000));
+        }
+
+        // 相同hash tag的任务队列可以组合消费
+        MultiTaskQueue multiTaskQueue = kmQueueManager.getMultiTaskQueue("{cluster}_high", "{cluster}_low");
+        multiTaskQueue.pushTask(new Task("{cluster}_high", null, "", "high", new Task.TaskStatus()));
+        multiTaskQueue.pushTask(new Task("{cluster}_low", null, "", "low", new Task.TaskStatus()));
+        List<Task> popped = multiTaskQueue.popTasks(10, 1000);
+        Assert.assertEquals(2, popped.size());
+        multiTaskQueue.finishTasks(popped);
+    }
+
+    @Test
+    public void slotTableTest() throws Exception {
+        KMJedisCluster cluster = new KMJedisCluster(Collections.singleton(new HostAndPort("127.0.0.1", 7000)), new JedisPoolConfig());
+        try {
+            // 刷新槽位表前后，按key获取的连接都是key所在节点的连接，不会返回MOVED
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 100; i++) {
+                    String key = "slot_table_" + i;
+                    try (Jedis jedis = cluster.getConnection(key)) {
+                        jedis.set(key, String.valueOf(round));
+                        Assert.assertEquals(String.valueOf(round), jedis.get(key));
+                        jedis.del(key);
+                    }
+                }
+                cluster.refreshSlots();
+            }
+        } finally {
+            cluster.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void crossSlotTest() {
+        kmQueueManager.getMultiTaskQueue("cluster_mail", "cluster_sms");
+    }
+}
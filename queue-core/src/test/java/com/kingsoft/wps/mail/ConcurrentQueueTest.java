@@ -0,0 +1,92 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import org.junit.Assert;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多线程插入、获取任务测试，Redis模式与本地模式（{@link KMQueueManager.Builder#local(String...)}）的行为一致：
+ * 每个任务恰好被取出一次，不丢失也不重复
+ * <p>
+ * 吞吐量对比见queue-benchmarks模块的ConcurrentQueueBenchmark
+ */
+public class ConcurrentQueueTest {
+
+    private static final String QUEUE_NAME = "concurrent_queue";
+
+    private static final int THREADS = 8;
+
+    private static final int TASK_COUNT_PER_THREAD = 500;
+
+    @Test
+    public void redisQueueTest() throws Exception {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME)
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME);
+            pushPopConcurrently(kmQueueManager.getTaskQueue(QUEUE_NAME));
+            Assert.assertEquals(0, jedis.llen(QUEUE_NAME).longValue());
+        } finally {
+            kmQueueManager.returnResource(jedis);
+            kmQueueManager.destroy();
+        }
+    }
+
+    @Test
+    public void localQueueTest() throws Exception {
+        KMQueueManager kmQueueManager = KMQueueManager.Builder.local(QUEUE_NAME).build();
+        // 初始化队列
+        kmQueueManager.init();
+        try {
+            pushPopConcurrently(kmQueueManager.getTaskQueue(QUEUE_NAME));
+        } finally {
+            kmQueueManager.destroy();
+        }
+    }
+
+    /**
+     * 多个线程各自插入一个任务再取出一个任务，校验所有任务都恰好被取出一次
+     */
+    private void pushPopConcurrently(TaskQueue taskQueue) throws InterruptedException {
+        Map<String, AtomicInteger> popped = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+            executor.execute(() -> {
+                try {
+                    for (int j = 0; j < TASK_COUNT_PER_THREAD; j++) {
+                        taskQueue.pushTask(new Task(QUEUE_NAME, thread + "_" + j, "", "concurrent task", new Task.TaskStatus()));
+                        Task task = taskQueue.popTask();
+                        popped.computeIfAbsent(task.getId(), id -> new AtomicInteger()).incrementAndGet();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        Assert.assertEquals(THREADS * TASK_COUNT_PER_THREAD, popped.size());
+        for (AtomicInteger count : popped.values()) {
+            Assert.assertEquals(1, count.get());
+        }
+    }
+}
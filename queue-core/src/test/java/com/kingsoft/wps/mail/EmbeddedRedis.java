@@ -0,0 +1,128 @@
+package com.kingsoft.wps.mail;
+
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.logging.Logger;
+
+/**
+ * 测试使用的Redis，不需要在本机安装Redis
+ * <p>
+ * 由测试依赖embedded-redis启动其自带的redis-server（随机端口，不持久化），测试进程退出时停止；
+ * 任务队列、备份队列以及分布式锁使用的脚本、事务、阻塞命令与生产环境的Redis完全一致。
+ * 可以通过{@link LatencyProxy}为每个请求增加延迟，模拟客户端与Redis之间的网络往返。
+ * <p>
+ * 系统属性：
+ * <ul>
+ * <li>{@value #PORT_PROPERTY}：使用已经启动的Redis（127.0.0.1:端口），不启动内嵌的Redis</li>
+ * <li>{@value #LATENCY_PROPERTY}：{@link #getInstance()}为每个请求增加的延迟，单位：ms，默认0</li>
+ * </ul>
+ * 例如 -Dkmq.redis.latency=1 在模拟1ms网络往返的情况下运行所有测试
+ */
+public class EmbeddedRedis {
+
+    private static final Logger logger = Logger.getLogger(EmbeddedRedis.class.getName());
+
+    public static final String HOST = "127.0.0.1";
+
+    public static final String PORT_PROPERTY = "kmq.redis.port";
+
+    public static final String LATENCY_PROPERTY = "kmq.redis.latency";
+
+    /**
+     * 所有测试共用的Redis
+     */
+    private static EmbeddedRedis instance;
+
+    /**
+     * 内嵌的redis-server，使用已经启动的Redis时为null
+     */
+    private final RedisServer server;
+
+    /**
+     * 增加延迟的代理，不增加延迟时为null
+     */
+    private final LatencyProxy proxy;
+
+    /**
+     * Redis（或者代理）的端口
+     */
+    private final int port;
+
+    private EmbeddedRedis(RedisServer server, int serverPort, long latencyMs) throws IOException {
+        this.server = server;
+        this.proxy = latencyMs > 0 ? new LatencyProxy(HOST, serverPort, latencyMs) : null;
+        this.port = this.proxy != null ? this.proxy.getPort() : serverPort;
+    }
+
+    /**
+     * 获取所有测试共用的Redis，第一次调用时启动
+     *
+     * @return 共用的Redis
+     */
+    public static synchronized EmbeddedRedis getInstance() {
+        if (instance == null) {
+            long latencyMs = Long.getLong(LATENCY_PROPERTY, 0);
+            Integer port = Integer.getInteger(PORT_PROPERTY);
+            try {
+                instance = port != null ? new EmbeddedRedis(null, port, latencyMs) : start(latencyMs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(instance::stop));
+        }
+        return instance;
+    }
+
+    /**
+     * 启动单独的Redis，用于需要不同延迟的测试，使用完成后调用{@link #stop()}
+     *
+     * @param latencyMs 每个请求增加的延迟，单位：ms，0则不增加
+     * @return Redis
+     * @throws IOException 启动失败
+     */
+    public static EmbeddedRedis start(long latencyMs) throws IOException {
+        int serverPort = freePort();
+        RedisServer server = RedisServer.newRedisServer()
+                .port(serverPort)
+                .bind(HOST)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        server.start();
+        logger.info("Embedded redis started on port " + serverPort + ", latency: " + latencyMs + "ms");
+        return new EmbeddedRedis(server, serverPort, latencyMs);
+    }
+
+    public String getHost() {
+        return HOST;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * 停止代理以及内嵌的redis-server
+     */
+    public void stop() {
+        if (this.proxy != null) {
+            this.proxy.stop();
+        }
+        if (this.server != null) {
+            try {
+                this.server.stop();
+            } catch (IOException e) {
+                logger.info(e.getMessage());
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.kingsoft.wps.mail;
+
+import org.junit.Assert;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * 测试使用的Redis，以及增加的网络延迟
+ */
+public class EmbeddedRedisTest {
+
+    @Test
+    public void latencyTest() throws Exception {
+        EmbeddedRedis redis = EmbeddedRedis.start(20);
+        try (Jedis jedis = new Jedis(redis.getHost(), redis.getPort())) {
+            Assert.assertEquals("PONG", jedis.ping());
+
+            // 每个请求增加一次延迟
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 5; i++) {
+                jedis.lpush("latency_list", String.valueOf(i));
+            }
+            long cost = System.currentTimeMillis() - start;
+            Assert.assertTrue("5 requests cost " + cost + "ms", cost >= 100);
+
+            // 管道中的多个命令只增加一次延迟
+            start = System.currentTimeMillis();
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < 100; i++) {
+                pipeline.rpop("latency_list");
+            }
+            pipeline.sync();
+            cost = System.currentTimeMillis() - start;
+            Assert.assertTrue("pipeline cost " + cost + "ms", cost >= 20 && cost < 200);
+
+            // 脚本与真实的Redis一致
+            Assert.assertEquals(3L, jedis.eval("return redis.call('SADD', KEYS[1], unpack(ARGV))", 1, "latency_set", "a", "b", "c"));
+        } finally {
+            redis.stop();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.backup.RedisBackupQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 安全队列任务完成与备份队列索引测试
+ * <p>
+ * 完成任务的耗时对比见queue-benchmarks模块的BackupQueueBenchmark，这里只校验行为：
+ * 完成任务执行的Redis命令与正在执行的任务数无关；消费者在取出任务的过程中宕机，任务不会丢失
+ */
+public class FinishTaskTest {
+
+    private static final String QUEUE_NAME = "finish_queue";
+
+    private static final int FINISH_COUNT = 100;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    private RedisBackupQueue backupQueue;
+
+    @Before
+    public void init() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+        backupQueue = new RedisBackupQueue(kmQueueManager);
+        clear();
+    }
+
+    @After
+    public void destroy() throws Exception {
+        clear();
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 正在执行的任务数相差50倍时，完成相同数量的任务执行的Redis命令完全相同，并且不执行与列表长度相关的命令
+     */
+    @Test
+    public void finishCostTest() {
+        Map<String, Long> small = finishCommands(FINISH_COUNT);
+        Map<String, Long> large = finishCommands(FINISH_COUNT * 50);
+        Assert.assertEquals(small, large);
+        Assert.assertFalse(large.containsKey("lrem"));
+        Assert.assertFalse(large.containsKey("lrange"));
+    }
+
+    /**
+     * 通过脚本取出任务后消费者宕机，任务在备份队列索引中，执行超时后可以被获取并重试
+     */
+    @Test
+    public void consumerDiesAfterPopTest() {
+        pushTasks(FINISH_COUNT);
+        Set<String> popped = new HashSet<>();
+        for (Task task : taskQueue.popTasks(FINISH_COUNT, 0)) {
+            popped.add(task.getId());
+        }
+        Assert.assertEquals(FINISH_COUNT, popped.size());
+
+        // 消费者宕机，不完成任务
+        Set<String> expired = new HashSet<>();
+        for (Task task : backupQueue.getExpiredTasks(0, Long.MAX_VALUE, 0, FINISH_COUNT * 2)) {
+            Assert.assertNotNull(task.getBackupKey());
+            expired.add(task.getId());
+        }
+        Assert.assertEquals(popped, expired);
+    }
+
+    /**
+     * 阻塞地取出任务（brpoplpush）之后、建立索引之前消费者宕机，任务保留在备份队列中，迁移到备份队列索引之后可以被获取并重试
+     */
+    @Test
+    public void consumerDiesBeforeIndexTest() {
+        pushTasks(1);
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            // 只执行阻塞获取的第一步，随后消费者宕机
+            Assert.assertNotNull(jedis.brpoplpush(QUEUE_NAME, backupQueue.getName(), 1));
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        Assert.assertTrue(backupQueue.getExpiredTasks(0, Long.MAX_VALUE, 0, 10).isEmpty());
+
+        backupQueue.migrateTasks();
+        List<Task> expired = backupQueue.getExpiredTasks(0, Long.MAX_VALUE, 0, 10);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertEquals("finish task 0", expired.get(0).getData());
+    }
+
+    /**
+     * 保持inFlight个正在执行的任务，完成其中的{@link #FINISH_COUNT}个，返回完成任务期间执行的各个Redis命令的次数
+     */
+    private Map<String, Long> finishCommands(int inFlight) {
+        clear();
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < inFlight; i += 1000) {
+            int count = Math.min(1000, inFlight - i);
+            pushTasks(count);
+            tasks.addAll(taskQueue.popTasks(count, 0));
+        }
+        Assert.assertEquals(inFlight, tasks.size());
+
+        Map<String, Long> before = commandCalls();
+        for (int i = 0; i < FINISH_COUNT; i++) {
+            taskQueue.finishTask(tasks.get(i));
+        }
+        Map<String, Long> after = commandCalls();
+
+        Map<String, Long> calls = new HashMap<>();
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            long count = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            if (count > 0 && !"info".equals(entry.getKey())) {
+                calls.put(entry.getKey(), count);
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * 通过INFO commandstats获取各个Redis命令的累计执行次数，包括脚本中执行的命令
+     */
+    private Map<String, Long> commandCalls() {
+        Map<String, Long> calls = new HashMap<>();
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            for (String line : jedis.info("commandstats").split("\r\n")) {
+                if (line.startsWith("cmdstat_")) {
+                    String command = line.substring("cmdstat_".length(), line.indexOf(':'));
+                    String stats = line.substring(line.indexOf("calls=") + "calls=".length());
+                    calls.put(command, Long.parseLong(stats.substring(0, stats.indexOf(','))));
+                }
+            }
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        return calls;
+    }
+
+    private void pushTasks(int count) {
+        List<Task> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new Task(QUEUE_NAME, null, "", "finish task " + i, new Task.TaskStatus()));
+        }
+        taskQueue.pushTasks(tasks);
+    }
+
+    /**
+     * 清空任务队列、备份队列以及备份队列索引，并重新添加备份队列循环标记
+     */
+    private void clear() {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME, QUEUE_NAME + Constant.UNIQUE_SUFFIX, backupQueue.getName(),
+                    backupQueue.getTasksKey(0), backupQueue.getIndexKey(0));
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        backupQueue.initQueue();
+    }
+}
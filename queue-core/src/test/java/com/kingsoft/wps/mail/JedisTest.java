@@ -19,7 +19,7 @@ public class JedisTest {
     @Before
     public void init() {
         JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
-        this.pool = new JedisPool(jedisPoolConfig, "127.0.0.1", 6379);
+        this.pool = new JedisPool(jedisPoolConfig, EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort());
     }
 
     @Test
@@ -0,0 +1,192 @@
+package com.kingsoft.wps.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * 进程内的TCP代理，为客户端发往Redis的每个请求增加固定的延迟，模拟客户端与Redis之间的网络往返
+ * <p>
+ * 每次读到的数据记录到达时间，由单独的线程在到达时间 + latency 之后按顺序转发，因此管道中的多个命令只增加一次延迟，
+ * 与真实网络的往返时间一致；Redis的响应直接转发。代理不解析RESP协议，阻塞命令、事务、脚本都可以正常使用
+ */
+public class LatencyProxy {
+
+    private static final Logger logger = Logger.getLogger(LatencyProxy.class.getName());
+
+    /**
+     * 结束转发的标记
+     */
+    private static final Request EOF = new Request(0, null);
+
+    private final ServerSocket serverSocket;
+
+    private final String targetHost;
+
+    private final int targetPort;
+
+    /**
+     * 每个请求增加的延迟，单位：ns
+     */
+    private final long latencyNanos;
+
+    private volatile boolean running = true;
+
+    /**
+     * 启动代理，监听本机的随机端口
+     *
+     * @param targetHost Redis host
+     * @param targetPort Redis port
+     * @param latencyMs  每个请求增加的延迟，单位：ms
+     * @throws IOException 监听端口失败
+     */
+    public LatencyProxy(String targetHost, int targetPort, long latencyMs) throws IOException {
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        daemon(this::accept, "latency-proxy-" + getPort()).start();
+    }
+
+    /**
+     * 获取代理监听的端口
+     *
+     * @return 端口
+     */
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * 停止代理，已经建立的连接随客户端关闭
+     */
+    public void stop() {
+        this.running = false;
+        close(this.serverSocket);
+    }
+
+    private void accept() {
+        while (this.running) {
+            try {
+                Socket client = this.serverSocket.accept();
+                Socket server = new Socket();
+                server.connect(new InetSocketAddress(this.targetHost, this.targetPort));
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+
+                BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+                daemon(() -> read(client, requests), "latency-proxy-read").start();
+                daemon(() -> forward(client, server, requests), "latency-proxy-forward").start();
+                daemon(() -> pipe(server, client), "latency-proxy-reply").start();
+            } catch (IOException e) {
+                if (this.running) {
+                    logger.info(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取客户端的请求，记录到达时间
+     */
+    private void read(Socket client, BlockingQueue<Request> requests) {
+        byte[] buf = new byte[64 * 1024];
+        try {
+            InputStream in = client.getInputStream();
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                requests.add(new Request(System.nanoTime() + this.latencyNanos, Arrays.copyOf(buf, n)));
+            }
+        } catch (IOException ignored) {
+        } finally {
+            requests.add(EOF);
+        }
+    }
+
+    /**
+     * 到达时间 + latency 之后，按顺序将请求转发给Redis
+     */
+    private void forward(Socket client, Socket server, BlockingQueue<Request> requests) {
+        try {
+            OutputStream out = server.getOutputStream();
+            while (true) {
+                Request request = requests.take();
+                if (request == EOF) {
+                    break;
+                }
+                long wait;
+                while ((wait = request.deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                out.write(request.data);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            close(server);
+            close(client);
+        }
+    }
+
+    /**
+     * 直接转发Redis的响应
+     */
+    private void pipe(Socket server, Socket client) {
+        byte[] buf = new byte[64 * 1024];
+        try {
+            InputStream in = server.getInputStream();
+            OutputStream out = client.getOutputStream();
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            close(client);
+            close(server);
+        }
+    }
+
+    /**
+     * 客户端的请求
+     */
+    private static class Request {
+
+        /**
+         * 转发的时间，System.nanoTime()
+         */
+        private final long deadline;
+
+        private final byte[] data;
+
+        Request(long deadline, byte[] data) {
+            this.deadline = deadline;
+            this.data = data;
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.LocalTaskQueue;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 进程内的任务队列测试，不需要Redis
+ */
+public class LocalTaskQueueTest {
+
+    private static final String SAFE_QUEUE = "local_safe_queue";
+
+    private static final String DEFAULT_QUEUE = "local_default_queue";
+
+    private KMQueueManager kmQueueManager;
+
+    @Before
+    public void init() {
+        kmQueueManager = KMQueueManager.Builder.local(SAFE_QUEUE + ":safe", DEFAULT_QUEUE)
+                .setLocalCapacity(1000)
+                .setProtectedTimeout(200)
+                .setRetryTimes(1)
+                .build();
+        kmQueueManager.init();
+    }
+
+    @After
+    public void destroy() throws Exception {
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 先进先出，唯一性任务去重，队列已满时插入失败
+     */
+    @Test
+    public void pushPopTest() {
+        LocalTaskQueue taskQueue = (LocalTaskQueue) kmQueueManager.getTaskQueue(SAFE_QUEUE);
+        Assert.assertEquals(1024, taskQueue.getCapacity());
+
+        Assert.assertNotNull(taskQueue.pushTask(new Task(SAFE_QUEUE, "unique", true, "", "1", new Task.TaskStatus())));
+        Assert.assertNull(taskQueue.pushTask(new Task(SAFE_QUEUE, "unique", true, "", "2", new Task.TaskStatus())));
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 1023; i++) {
+            tasks.add(new Task(SAFE_QUEUE, null, "", "task " + i, new Task.TaskStatus()));
+        }
+        tasks.add(new Task(SAFE_QUEUE, null, "", "overflow", new Task.TaskStatus()));
+        Assert.assertEquals(1023, taskQueue.pushTasks(tasks).size());
+        Assert.assertEquals(1024, taskQueue.size());
+
+        List<Task> popped = taskQueue.popTasks(10, 0);
+        Assert.assertEquals(10, popped.size());
+        Assert.assertEquals("1", popped.get(0).getData());
+        Assert.assertEquals("task 0", popped.get(1).getData());
+        Assert.assertTrue(popped.get(0).getTaskStatus().getExcTimestamp() > 0);
+
+        // 完成之后唯一性任务可以再次插入
+        taskQueue.finishTasks(popped);
+        Assert.assertNotNull(taskQueue.pushTask(new Task(SAFE_QUEUE, "unique", true, "", "3", new Task.TaskStatus())));
+    }
+
+    /**
+     * 队列为空时阻塞等待，插入任务后立即唤醒
+     */
+    @Test
+    public void waitTaskTest() throws Exception {
+        LocalTaskQueue taskQueue = (LocalTaskQueue) kmQueueManager.getTaskQueue(DEFAULT_QUEUE);
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(taskQueue.popTasks(10, 100).isEmpty());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            taskQueue.pushTask(new Task(DEFAULT_QUEUE, null, "", "wake up", new Task.TaskStatus()));
+        });
+        start = System.currentTimeMillis();
+        List<Task> tasks = taskQueue.popTasks(10, 5000);
+        long cost = System.currentTimeMillis() - start;
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertTrue("wake up cost " + cost + "ms", cost < 1000);
+        executor.shutdown();
+
+        // 延时任务到期后被取出
+        taskQueue.pushTaskDelayed(new Task(DEFAULT_QUEUE, null, "", "delayed", new Task.TaskStatus()), 200);
+        Assert.assertTrue(taskQueue.popTasks(1, 0).isEmpty());
+        tasks = taskQueue.popTasks(1, 5000);
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals("delayed", tasks.get(0).getData());
+    }
+
+    /**
+     * 安全队列执行超时的任务重新放入队首，超过重试次数后不再重试
+     */
+    @Test
+    public void retryTest() throws Exception {
+        LocalTaskQueue taskQueue = (LocalTaskQueue) kmQueueManager.getTaskQueue(SAFE_QUEUE);
+        taskQueue.pushTask(new Task(SAFE_QUEUE, "retry", "", "retry me", new Task.TaskStatus()));
+
+        Task task = taskQueue.popTasks(1, 0).get(0);
+        Task retried = taskQueue.popTasks(1, 2000).get(0);
+        Assert.assertEquals("retry", retried.getId());
+        Assert.assertEquals(Constant.RETRY, retried.getTaskStatus().getState());
+        Assert.assertEquals(1, retried.getTaskStatus().getRetry());
+
+        // 之前的执行者完成任务，不影响重试的任务
+        taskQueue.finishTask(task);
+        Assert.assertTrue(taskQueue.popTasks(1, 1000).isEmpty());
+        Assert.assertEquals(0, taskQueue.size());
+    }
+
+    /**
+     * 多个生产者、消费者并发存取，每个任务只被取出一次
+     */
+    @Test
+    public void concurrentTest() throws Exception {
+        LocalTaskQueue taskQueue = (LocalTaskQueue) kmQueueManager.getTaskQueue(SAFE_QUEUE);
+        int producers = 4;
+        int consumers = 4;
+        int count = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicated = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(producers * count);
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            executor.execute(() -> {
+                for (int j = 0; j < count; j++) {
+                    Task task = new Task(SAFE_QUEUE, producer + "_" + j, "", "task", new Task.TaskStatus());
+                    while (taskQueue.pushTask(task) == null) {// 队列已满，等待消费
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < consumers; i++) {
+            executor.execute(() -> {
+                while (latch.getCount() > 0) {
+                    List<Task> tasks = taskQueue.popTasks(16, 100);
+                    for (Task task : tasks) {
+                        if (!received.add(task.getId())) {
+                            duplicated.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }
+                    taskQueue.finishTasks(tasks);
+                }
+            });
+        }
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        executor.shutdownNow();
+        Assert.assertEquals(0, duplicated.get());
+        Assert.assertEquals(producers * count, received.size());
+        Assert.assertEquals(0, taskQueue.size());
+    }
+}
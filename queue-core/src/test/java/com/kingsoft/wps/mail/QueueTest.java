@@ -2,12 +2,24 @@ package com.kingsoft.wps.mail;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.kingsoft.wps.mail.exception.NestedException;
 import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.MultiTaskQueue;
+import com.kingsoft.wps.mail.queue.RedisTaskQueue;
+import com.kingsoft.wps.mail.queue.ShardedTaskQueue;
 import com.kingsoft.wps.mail.queue.Task;
 import com.kingsoft.wps.mail.queue.TaskQueue;
 import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.delayed.DelayedTaskPromoter;
+import org.junit.Assert;
 import org.junit.Test;
+import redis.clients.jedis.Jedis;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -19,7 +31,7 @@ public class QueueTest {
 
     @Test
     public void pushTaskTest() {
-        KMQueueManager kmQueueManager = new KMQueueManager.Builder("127.0.0.1", 6379, "worker1_queue", "worker2_queue:safe")
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue", "worker2_queue:safe")
                 .setMaxWaitMillis(-1L)
                 .setMaxTotal(600)
                 .setMaxIdle(300)
@@ -43,9 +55,32 @@ public class QueueTest {
         logger.info("pushTask result：" + JSON.toJSONString(rs));
     }
 
+    @Test
+    public void pushTasksTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue", "worker2_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.获取队列
+        TaskQueue taskQueue = kmQueueManager.getTaskQueue("worker2_queue");
+        // 2.创建任务，其中前两个任务的uid相同，只有一个能插入成功
+        List<Task> tasks = new ArrayList<>();
+        tasks.add(new Task(taskQueue.getName(), "b509bd99-1071-4de1-9220-a280b0a4f47a", true, "", "mail proxy task 1", new Task.TaskStatus()));
+        tasks.add(new Task(taskQueue.getName(), "b509bd99-1071-4de1-9220-a280b0a4f47a", true, "", "mail proxy task 2", new Task.TaskStatus()));
+        tasks.add(new Task(taskQueue.getName(), null, "", "mail proxy task 3", new Task.TaskStatus()));
+        // 3.将任务批量加入队列
+        List<Task> rs = taskQueue.pushTasks(tasks);
+        logger.info("pushTasks result：" + JSON.toJSONString(rs));
+    }
+
     @Test
     public void popTaskTest() {
-        KMQueueManager kmQueueManager = new KMQueueManager.Builder("127.0.0.1", 6379, "worker1_queue", "worker2_queue:safe")
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue", "worker2_queue:safe")
                 .setMaxWaitMillis(-1L)
                 .setMaxTotal(600)
                 .setMaxIdle(300)
@@ -64,4 +99,421 @@ public class QueueTest {
         }
     }
 
+    @Test
+    public void popTasksTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue", "worker2_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.获取队列
+        TaskQueue taskQueue = kmQueueManager.getTaskQueue("worker2_queue");
+        // 2.批量获取任务，最多取10个，队列为空时最多阻塞等待1秒
+        List<Task> tasks = taskQueue.popTasks(10, 1000);
+        logger.info("popTasks result：" + JSON.toJSONString(tasks));
+        // 业务处理放到TaskConsumersHandler里
+        for (Task task : tasks) {
+            task.doTask(kmQueueManager, MyTaskHandler.class);
+        }
+    }
+
+    @Test
+    public void dispatchTest() {
+        List<String> mails = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue", "worker2_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .registerTaskHandler("mail", (data, params) -> mails.add(data))
+                .setDefaultTaskHandler((data, params) -> others.add(data))
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.获取队列
+        TaskQueue taskQueue = kmQueueManager.getTaskQueue("worker2_queue");
+        // 2.插入不同类型的任务
+        List<Task> tasks = new ArrayList<>();
+        tasks.add(new Task(taskQueue.getName(), null, "mail", "mail task", new Task.TaskStatus()));
+        tasks.add(new Task(taskQueue.getName(), null, "sms", "sms task", new Task.TaskStatus()));
+        taskQueue.pushTasks(tasks);
+        // 3.按任务类型分发给注册的任务处理器
+        for (Task task : taskQueue.popTasks(2, 1000)) {
+            task.dispatch(kmQueueManager);
+        }
+        Assert.assertEquals(Collections.singletonList("mail task"), mails);
+        Assert.assertEquals(Collections.singletonList("sms task"), others);
+    }
+
+    @Test
+    public void dispatchFailureTest() throws Exception {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "dispatch_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .registerTaskHandler("fail", (data, params) -> {
+                    throw new IllegalStateException("handle failed");
+                })
+                .setDefaultTaskHandler((data, params) -> {
+                })
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        String indexKey = kmQueueManager.getBackUpQueueName() + Constant.BACKUP_INDEX_SUFFIX;
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del("dispatch_queue", indexKey, kmQueueManager.getBackUpQueueName() + Constant.BACKUP_TASKS_SUFFIX);
+            TaskQueue taskQueue = kmQueueManager.getTaskQueue("dispatch_queue");
+
+            // 1.任务处理器抛出异常时不完成任务，任务保留在备份队列索引中等待重试
+            taskQueue.pushTask(new Task("dispatch_queue", null, "fail", "failed task", new Task.TaskStatus()));
+            Task failed = taskQueue.popTask();
+            failed.dispatch(kmQueueManager);
+            Assert.assertNotNull(jedis.zscore(indexKey, failed.getBackupKey()));
+
+            // 2.任务处理器正常返回时完成任务
+            taskQueue.pushTask(new Task("dispatch_queue", null, "ok", "ok task", new Task.TaskStatus()));
+            Task ok = taskQueue.popTask();
+            ok.dispatch(kmQueueManager);
+            Assert.assertNull(jedis.zscore(indexKey, ok.getBackupKey()));
+            Assert.assertEquals(Collections.singleton(failed.getBackupKey()), jedis.zrange(indexKey, 0, -1));
+        } finally {
+            jedis.del("dispatch_queue", indexKey, kmQueueManager.getBackUpQueueName() + Constant.BACKUP_TASKS_SUFFIX);
+            kmQueueManager.returnResource(jedis);
+            kmQueueManager.destroy();
+        }
+    }
+
+    @Test
+    public void safePopTaskTest() throws Exception {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "safe_pop_queue:safe", "simple_pop_queue")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        String indexKey = kmQueueManager.getBackUpQueueName() + Constant.BACKUP_INDEX_SUFFIX;
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del("safe_pop_queue", "simple_pop_queue", indexKey, kmQueueManager.getBackUpQueueName() + Constant.BACKUP_TASKS_SUFFIX);
+
+            // 1.安全队列取出任务时，同一次调用内放入备份队列索引，并记录任务执行的时间戳
+            TaskQueue safeQueue = kmQueueManager.getTaskQueue("safe_pop_queue");
+            safeQueue.pushTask(new Task("safe_pop_queue", null, "", "safe task", new Task.TaskStatus()));
+            Task task = safeQueue.popTask();
+            Assert.assertEquals(0, jedis.llen("safe_pop_queue").longValue());
+            Assert.assertEquals(Collections.singleton(task.getBackupKey()), jedis.zrange(indexKey, 0, -1));
+            Assert.assertEquals(task.getTaskStatus().getExcTimestamp(), jedis.zscore(indexKey, task.getBackupKey()).longValue());
+
+            // 2.简单队列取出任务时不放入备份队列索引
+            TaskQueue simpleQueue = kmQueueManager.getTaskQueue("simple_pop_queue");
+            simpleQueue.pushTask(new Task("simple_pop_queue", null, "", "simple task", new Task.TaskStatus()));
+            Assert.assertNull(simpleQueue.popTask().getBackupKey());
+            Assert.assertEquals(1, jedis.zcard(indexKey).longValue());
+
+            // 3.任务完成后从备份队列索引中删除
+            safeQueue.finishTask(task);
+            Assert.assertEquals(0, jedis.zcard(indexKey).longValue());
+        } finally {
+            kmQueueManager.returnResource(jedis);
+            kmQueueManager.destroy();
+        }
+    }
+
+    @Test
+    public void sameIdTaskTest() throws Exception {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "same_id_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        String indexKey = kmQueueManager.getBackUpQueueName() + Constant.BACKUP_INDEX_SUFFIX;
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(indexKey, kmQueueManager.getBackUpQueueName() + Constant.BACKUP_TASKS_SUFFIX);
+
+            // 1.插入三个id相同的非唯一性任务，分别通过脚本批量取出、脚本取出和阻塞取出
+            TaskQueue taskQueue = kmQueueManager.getTaskQueue("same_id_queue");
+            for (int i = 0; i < 2; i++) {
+                taskQueue.pushTask(new Task("same_id_queue", "same_id", false, "", "same id task " + i, new Task.TaskStatus()));
+            }
+            List<Task> popped = new ArrayList<>(taskQueue.popTasks(1, 0));
+            popped.add(taskQueue.popTask());
+            new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                taskQueue.pushTask(new Task("same_id_queue", "same_id", false, "", "same id task 2", new Task.TaskStatus()));
+            }).start();
+            popped.add(taskQueue.popTask());
+            Assert.assertEquals(3, popped.size());
+
+            // 2.三个任务都在备份队列索引中，互不覆盖
+            Assert.assertEquals(3, jedis.zcard(indexKey).longValue());
+
+            // 3.各个任务都可以完成
+            for (Task task : popped) {
+                taskQueue.finishTask(task);
+            }
+            Assert.assertEquals(0, jedis.zcard(indexKey).longValue());
+        } finally {
+            kmQueueManager.returnResource(jedis);
+            kmQueueManager.destroy();
+        }
+    }
+
+    @Test
+    public void unreadableTaskIdTest() throws Exception {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "unreadable_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del("unreadable_queue");
+
+            // 1.无法读取任务id的任务不会被取出
+            jedis.lpush("unreadable_queue", "not a task");
+            TaskQueue taskQueue = kmQueueManager.getTaskQueue("unreadable_queue");
+            Assert.assertTrue(taskQueue.popTasks(10, 0).isEmpty());
+
+            // 2.该任务仍保留在任务队列中，不会丢失
+            Assert.assertEquals(Collections.singletonList("not a task"), jedis.lrange("unreadable_queue", 0, -1));
+            jedis.del("unreadable_queue");
+        } finally {
+            kmQueueManager.returnResource(jedis);
+            kmQueueManager.destroy();
+        }
+    }
+
+    @Test
+    public void delayedTaskTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue", "worker2_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.获取队列
+        TaskQueue taskQueue = kmQueueManager.getTaskQueue("worker1_queue");
+        // 2.添加延时任务，一个已经到期，一个一小时后到期
+        Task due = taskQueue.pushTaskAt(new Task(taskQueue.getName(), null, "", "due task", new Task.TaskStatus()), System.currentTimeMillis() - 1);
+        Task later = taskQueue.pushTaskDelayed(new Task(taskQueue.getName(), null, "", "later task", new Task.TaskStatus()), 60 * 60 * 1000);
+        Assert.assertNotNull(due);
+        Assert.assertNotNull(later);
+        Assert.assertTrue(taskQueue.popTasks(10, 0).isEmpty());
+
+        // 3.将到期的延时任务放入任务队列
+        DelayedTaskPromoter promoter = new DelayedTaskPromoter.Builder(kmQueueManager, "worker1_queue").build();
+        Assert.assertEquals(1, promoter.promote());
+        List<Task> tasks = taskQueue.popTasks(10, 0);
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals("due task", tasks.get(0).getData());
+
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(taskQueue.getName() + Constant.DELAYED_SUFFIX);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    @Test
+    public void priorityTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "priority_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .setPriorities("priority_queue", 1, 6, 3, 1)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.获取队列
+        TaskQueue taskQueue = kmQueueManager.getTaskQueue("priority_queue");
+        // 2.三个优先级各添加100个任务，未设置优先级的任务使用默认优先级1
+        List<Task> pushed = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            for (int priority : new int[]{0, Task.NO_PRIORITY, 2}) {
+                Task task = new Task(taskQueue.getName(), null, "", String.valueOf(priority), new Task.TaskStatus());
+                task.setPriority(priority);
+                pushed.add(task);
+            }
+        }
+        Assert.assertEquals(300, taskQueue.pushTasks(pushed).size());
+
+        // 3.前100次获取大约按 6:3:1 的比例获取各个优先级的任务，低优先级的任务不会饿死
+        int[] counts = new int[3];
+        List<Task> popped = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Task task = taskQueue.popTask();
+            int priority = Integer.parseInt(task.getData());
+            counts[priority == Task.NO_PRIORITY ? 1 : priority]++;
+            popped.add(task);
+        }
+        Assert.assertEquals(60, counts[0]);
+        Assert.assertEquals(30, counts[1]);
+        Assert.assertEquals(10, counts[2]);
+
+        // 4.剩余的任务全部可以取出
+        while (popped.size() < 300) {
+            List<Task> tasks = taskQueue.popTasks(50, 0);
+            Assert.assertFalse(tasks.isEmpty());
+            popped.addAll(tasks);
+        }
+        taskQueue.finishTasks(popped);
+    }
+
+    @Test
+    public void multiQueueTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "multi1_queue:safe", "multi2_queue")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .setQueueWeight("multi1_queue", 3)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.获取多个任务队列的组合
+        MultiTaskQueue taskQueue = kmQueueManager.getMultiTaskQueue("multi1_queue", "multi2_queue");
+        // 2.两个任务队列各添加100个任务
+        List<Task> pushed = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            pushed.add(new Task("multi1_queue", null, "", "multi1_queue", new Task.TaskStatus()));
+            pushed.add(new Task("multi2_queue", null, "", "multi2_queue", new Task.TaskStatus()));
+        }
+        Assert.assertEquals(200, taskQueue.pushTasks(pushed).size());
+
+        // 3.前40次获取按 3:1 的比例获取两个任务队列的任务
+        int count = 0;
+        List<Task> popped = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Task task = taskQueue.popTask();
+            if ("multi1_queue".equals(task.getQueue())) {
+                count++;
+            }
+            popped.add(task);
+        }
+        Assert.assertEquals(30, count);
+
+        // 4.剩余的任务全部可以取出
+        while (popped.size() < 200) {
+            List<Task> tasks = taskQueue.popTasks(50, 0);
+            Assert.assertFalse(tasks.isEmpty());
+            popped.addAll(tasks);
+        }
+        taskQueue.finishTasks(popped);
+    }
+
+    @Test
+    public void shardedQueueTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "sharded_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .setShards("sharded_queue", 4)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.通过任务队列名称获取分片队列
+        ShardedTaskQueue taskQueue = (ShardedTaskQueue) kmQueueManager.getTaskQueue("sharded_queue");
+        Assert.assertEquals(4, taskQueue.getShards().size());
+
+        // 2.添加400个任务，各个分片的任务数大致均衡
+        List<Task> pushed = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            pushed.add(new Task("sharded_queue", null, "", "sharded task " + i, new Task.TaskStatus()));
+        }
+        Assert.assertEquals(400, taskQueue.pushTasks(pushed).size());
+        for (RedisTaskQueue shard : taskQueue.getShards()) {
+            Assert.assertTrue(shard.size() >= 50 && shard.size() <= 150);
+        }
+
+        // 3.唯一性任务在所有分片中只能添加一次
+        Assert.assertNotNull(taskQueue.pushTask(new Task("sharded_queue", "unique", true, "", "unique task", new Task.TaskStatus())));
+        Assert.assertNull(taskQueue.pushTask(new Task("sharded_queue", "unique", true, "", "unique task", new Task.TaskStatus())));
+
+        // 4.批量获取时从各个分片平均获取，任务通过所属的分片完成
+        List<Task> popped = taskQueue.popTasks(40, 0);
+        Assert.assertEquals(40, popped.size());
+        Map<String, Integer> counts = new HashMap<>();
+        for (Task task : popped) {
+            counts.merge(task.getQueue(), 1, Integer::sum);
+        }
+        Assert.assertEquals(4, counts.size());
+        while (popped.size() < 401) {
+            List<Task> tasks = taskQueue.popTasks(50, 1000);
+            Assert.assertFalse(tasks.isEmpty());
+            popped.addAll(tasks);
+        }
+        taskQueue.finishTasks(popped);
+        Assert.assertNotNull(taskQueue.pushTask(new Task("sharded_queue", "unique", true, "", "unique task", new Task.TaskStatus())));
+        taskQueue.finishTask(taskQueue.popTask());
+    }
+
+    @Test(expected = NestedException.class)
+    public void shardedPrioritiesTest() {
+        new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "sharded_queue:safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setShards("sharded_queue", 4)
+                .setPriorities("sharded_queue", 1, 3, 1)
+                .build();
+    }
+
+    @Test
+    public void shardedMultiQueueTest() {
+        KMQueueManager kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "sharded_queue", "multi2_queue")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .setShards("sharded_queue", 2)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+
+        // 1.分片队列不能直接组合
+        try {
+            kmQueueManager.getMultiTaskQueue("sharded_queue", "multi2_queue");
+            Assert.fail();
+        } catch (NestedException e) {
+            Assert.assertTrue(e.getMessage().contains("sharded_queue" + Constant.SHARD_SUFFIX + "0"));
+        }
+
+        // 2.可以组合分片队列的各个分片
+        MultiTaskQueue taskQueue = kmQueueManager.getMultiTaskQueue("sharded_queue" + Constant.SHARD_SUFFIX + "0",
+                "sharded_queue" + Constant.SHARD_SUFFIX + "1", "multi2_queue");
+        kmQueueManager.getTaskQueue("sharded_queue").pushTask(new Task("sharded_queue", null, "", "sharded task", new Task.TaskStatus()));
+        List<Task> popped = taskQueue.popTasks(10, 0);
+        Assert.assertEquals(1, popped.size());
+        Assert.assertEquals("sharded task", popped.get(0).getData());
+    }
 }
@@ -0,0 +1,208 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.stream.StreamTaskQueue;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 基于Redis Stream的任务队列测试，需要Redis 6.2及以上版本
+ */
+public class StreamTaskQueueTest {
+
+    private static final String QUEUE_NAME = "stream_queue";
+
+    private KMQueueManager kmQueueManager;
+
+    @Before
+    public void init() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "worker1_queue")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+    }
+
+    @After
+    public void destroy() throws Exception {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME + Constant.STREAM_SUFFIX, QUEUE_NAME + Constant.STREAM_SIGNAL_SUFFIX, QUEUE_NAME + Constant.UNIQUE_SUFFIX,
+                    QUEUE_NAME + Constant.STREAM_SUFFIX + Constant.DELAYED_SUFFIX, QUEUE_NAME + Constant.STREAM_HEADER_SUFFIX);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        kmQueueManager.destroy();
+    }
+
+    @Test
+    public void popTasksTest() {
+        StreamTaskQueue taskQueue = new StreamTaskQueue.Builder(kmQueueManager, QUEUE_NAME)
+                .setMode(KMQueueManager.SAFE)
+                .build();
+
+        // 1.批量添加任务，唯一性任务只能添加一次
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(new Task(QUEUE_NAME, null, "", "stream task " + i, new Task.TaskStatus()));
+        }
+        Assert.assertEquals(10, taskQueue.pushTasks(tasks).size());
+        Assert.assertNotNull(taskQueue.pushTask(new Task(QUEUE_NAME, "unique", true, "", "unique task", new Task.TaskStatus())));
+        Assert.assertNull(taskQueue.pushTask(new Task(QUEUE_NAME, "unique", true, "", "unique task", new Task.TaskStatus())));
+
+        // 2.按插入顺序批量获取任务
+        List<Task> popped = taskQueue.popTasks(20, 0);
+        Assert.assertEquals(11, popped.size());
+        Assert.assertEquals("stream task 0", popped.get(0).getData());
+        Assert.assertNotNull(popped.get(0).getEntryId());
+
+        // 3.完成任务后，唯一性任务可以再次添加
+        taskQueue.finishTasks(popped);
+        Assert.assertNotNull(taskQueue.pushTask(new Task(QUEUE_NAME, "unique", true, "", "unique task", new Task.TaskStatus())));
+        taskQueue.finishTasks(taskQueue.popTasks(1, 0));
+        Assert.assertTrue(taskQueue.popTasks(1, 0).isEmpty());
+    }
+
+    @Test
+    public void batchFinishTest() {
+        StreamTaskQueue taskQueue = new StreamTaskQueue.Builder(kmQueueManager, QUEUE_NAME)
+                .setMode(KMQueueManager.SAFE)
+                .build();
+
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            tasks.add(new Task(QUEUE_NAME, null, "", "stream task " + i, new Task.TaskStatus()));
+        }
+        taskQueue.pushTasks(tasks);
+
+        // 1.批量获取、完成任务，每个任务恰好获取一次
+        Set<String> popped = new HashSet<>();
+        List<Task> batch;
+        while (!(batch = taskQueue.popTasks(100, 0)).isEmpty()) {
+            Assert.assertTrue(batch.size() <= 100);
+            for (Task task : batch) {
+                Assert.assertTrue(popped.add(task.getData()));
+            }
+            taskQueue.finishTasks(batch);
+        }
+        Assert.assertEquals(250, popped.size());
+
+        // 2.完成后待确认列表为空，消息已删除
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            byte[] streamKey = SafeEncoder.encode(QUEUE_NAME + Constant.STREAM_SUFFIX);
+            Object pending = jedis.eval(SafeEncoder.encode("return redis.call('XPENDING', KEYS[1], ARGV[1])[1]"),
+                    Collections.singletonList(streamKey), Collections.singletonList(SafeEncoder.encode(taskQueue.getGroup())));
+            Assert.assertEquals(0L, pending);
+            Object length = jedis.eval(SafeEncoder.encode("return redis.call('XLEN', KEYS[1])"),
+                    Collections.singletonList(streamKey), Collections.<byte[]>emptyList());
+            Assert.assertEquals(0L, length);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    @Test
+    public void pushTaskToHeaderTest() {
+        StreamTaskQueue taskQueue = new StreamTaskQueue.Builder(kmQueueManager, QUEUE_NAME)
+                .setMode(KMQueueManager.SAFE)
+                .build();
+
+        // 1.插入到队首的任务先于其它任务获取
+        taskQueue.pushTask(new Task(QUEUE_NAME, null, "", "stream task 0", new Task.TaskStatus()));
+        taskQueue.pushTask(new Task(QUEUE_NAME, null, "", "stream task 1", new Task.TaskStatus()));
+        taskQueue.pushTaskToHeader(new Task(QUEUE_NAME, null, "", "header task", new Task.TaskStatus()));
+        List<Task> popped = taskQueue.popTasks(2, 0);
+        Assert.assertEquals(2, popped.size());
+        Assert.assertEquals("header task", popped.get(0).getData());
+        Assert.assertTrue(popped.get(0).isHeaderEntry());
+        Assert.assertEquals("stream task 0", popped.get(1).getData());
+        Assert.assertFalse(popped.get(1).isHeaderEntry());
+
+        // 2.完成任务时确认各自所在Stream中的消息
+        taskQueue.finishTasks(popped);
+        taskQueue.finishTasks(taskQueue.popTasks(1, 0));
+        Assert.assertTrue(taskQueue.popTasks(1, 0).isEmpty());
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            for (String stream : new String[]{QUEUE_NAME + Constant.STREAM_SUFFIX, QUEUE_NAME + Constant.STREAM_HEADER_SUFFIX}) {
+                Object pending = jedis.eval(SafeEncoder.encode("return redis.call('XPENDING', KEYS[1], ARGV[1])[1]"),
+                        Collections.singletonList(SafeEncoder.encode(stream)), Collections.singletonList(SafeEncoder.encode(taskQueue.getGroup())));
+                Assert.assertEquals(0L, pending);
+            }
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    @Test
+    public void delayedTaskTest() {
+        StreamTaskQueue taskQueue = new StreamTaskQueue.Builder(kmQueueManager, QUEUE_NAME)
+                .setMode(KMQueueManager.SAFE)
+                .build();
+
+        // 1.延时任务到期之前不能获取，唯一性任务只能添加一次
+        long epochMs = System.currentTimeMillis() + 1500;
+        Assert.assertNotNull(taskQueue.pushTaskAt(new Task(QUEUE_NAME, "delayed", true, "", "delayed task", new Task.TaskStatus()), epochMs));
+        Assert.assertNull(taskQueue.pushTaskAt(new Task(QUEUE_NAME, "delayed", true, "", "delayed task", new Task.TaskStatus()), epochMs));
+        Assert.assertTrue(taskQueue.popTasks(1, 0).isEmpty());
+
+        // 2.阻塞等待时，到期后即可获取
+        List<Task> popped = taskQueue.popTasks(1, 5000);
+        Assert.assertEquals(1, popped.size());
+        Assert.assertEquals("delayed task", popped.get(0).getData());
+        Assert.assertTrue(System.currentTimeMillis() >= epochMs);
+        Assert.assertTrue(popped.get(0).getTaskStatus().getGenTimestamp() >= epochMs);
+
+        // 3.完成任务后，唯一性任务可以再次添加
+        taskQueue.finishTasks(popped);
+        Assert.assertNotNull(taskQueue.pushTaskAt(new Task(QUEUE_NAME, "delayed", true, "", "delayed task", new Task.TaskStatus()), 0));
+        Assert.assertEquals(1, taskQueue.popTasks(1, 0).size());
+    }
+
+    @Test
+    public void claimTest() throws InterruptedException {
+        StreamTaskQueue consumer1 = new StreamTaskQueue.Builder(kmQueueManager, QUEUE_NAME)
+                .setMode(KMQueueManager.SAFE)
+                .setConsumer("consumer1")
+                .setProtectedTimeout(200)
+                .setRetryTimes(1)
+                .build();
+        StreamTaskQueue consumer2 = new StreamTaskQueue.Builder(kmQueueManager, QUEUE_NAME)
+                .setMode(KMQueueManager.SAFE)
+                .setConsumer("consumer2")
+                .setProtectedTimeout(200)
+                .setRetryTimes(1)
+                .build();
+
+        consumer1.pushTask(new Task(QUEUE_NAME, null, "", "stuck task", new Task.TaskStatus()));
+        Assert.assertEquals(1, consumer1.popTasks(1, 0).size());// 获取后不完成
+        Assert.assertTrue(consumer2.popTasks(1, 0).isEmpty());
+
+        // 1.执行超时后由其它消费者认领并重试
+        Thread.sleep(300);
+        List<Task> claimed = consumer2.popTasks(1, 0);
+        Assert.assertEquals(1, claimed.size());
+        Assert.assertEquals(Constant.RETRY, claimed.get(0).getTaskStatus().getState());
+        Assert.assertEquals(1, claimed.get(0).getTaskStatus().getRetry());
+
+        // 2.超过重试次数后不再执行
+        Thread.sleep(300);
+        Assert.assertTrue(consumer1.popTasks(1, 0).isEmpty());
+    }
+}
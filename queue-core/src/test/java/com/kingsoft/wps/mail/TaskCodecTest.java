@@ -0,0 +1,178 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.JsonTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * 任务编解码器测试
+ */
+public class TaskCodecTest {
+
+    private static final Logger logger = Logger.getLogger(TaskCodecTest.class.getName());
+
+    /**
+     * 两种编解码器可以互相解码，编解码前后任务数据一致
+     */
+    @Test
+    public void roundTripTest() {
+        Task.TaskStatus status = new Task.TaskStatus();
+        status.setState(Constant.RETRY);
+        status.setRetry(2);
+        status.setExcTimestamp(System.currentTimeMillis());
+        Task task = new Task("codec_queue", "任务-1", true, "mail", "{\"to\":\"收件人\"}", status);
+        task.setPriority(2);
+
+        TaskCodec binary = new BinaryTaskCodec();
+        TaskCodec json = new JsonTaskCodec();
+        assertTaskEquals(task, binary.decode(binary.encode(task)));
+        assertTaskEquals(task, binary.decode(json.encode(task)));// 之前版本放入队列的JSON格式的任务
+        assertTaskEquals(task, json.decode(binary.encode(task)));
+
+        Task empty = new Task("codec_queue", null, null, null, new Task.TaskStatus());
+        assertTaskEquals(empty, binary.decode(binary.encode(empty)));
+    }
+
+    /**
+     * 安全队列需要在Lua脚本中读取任务id，不写入二进制或JSON头部的编解码器不能使用
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void customCodecTest() {
+        TaskCodec binary = new BinaryTaskCodec();
+        new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), "codec_queue:safe")
+                .setTaskCodec(new TaskCodec() {
+                    @Override
+                    public byte[] encode(Task task) {
+                        byte[] bytes = binary.encode(task);
+                        byte[] prefixed = new byte[bytes.length + 1];
+                        System.arraycopy(bytes, 0, prefixed, 1, bytes.length);
+                        return prefixed;
+                    }
+
+                    @Override
+                    public Task decode(byte[] bytes) {
+                        return binary.decode(Arrays.copyOfRange(bytes, 1, bytes.length));
+                    }
+                });
+    }
+
+    /**
+     * 编码后的大小与编解码耗时对比
+     */
+    @Test
+    public void codecBenchmarkTest() {
+        Task task = new Task("codec_queue", null, "mail", "mail proxy task data", new Task.TaskStatus());
+        TaskCodec[] codecs = {new JsonTaskCodec(), new BinaryTaskCodec()};
+        int count = 200000;
+        for (TaskCodec codec : codecs) {
+            long start = System.currentTimeMillis();
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = codec.encode(task);
+                size = bytes.length;
+                codec.decode(bytes);
+            }
+            long cost = System.currentTimeMillis() - start;
+            logger.info(codec.getClass().getSimpleName() + ": " + size + " bytes, " + count * 1000L / Math.max(cost, 1) + " tasks/s");
+        }
+    }
+
+    /**
+     * 超过压缩阈值的任务数据被压缩，解码后第一次获取任务数据时解压，未解压的任务再次编码时不重复压缩
+     */
+    @Test
+    public void compressTest() {
+        String data = mailData(20 * 1024);
+        Task task = new Task("codec_queue", null, "mail", data, new Task.TaskStatus());
+        TaskCodec codec = new BinaryTaskCodec.Builder()
+                .setCompressThreshold(1024)
+                .setCompressThreshold("plain_queue", BinaryTaskCodec.NO_COMPRESSION)
+                .build();
+
+        byte[] bytes = codec.encode(task);
+        Assert.assertTrue(bytes.length < data.length() / 2);
+        Task decoded = codec.decode(bytes);
+        Assert.assertNotNull(decoded.getCompressedData());// 尚未解压
+        Assert.assertArrayEquals(bytes, codec.encode(decoded));
+        Assert.assertArrayEquals(bytes, new BinaryTaskCodec().encode(decoded));
+        assertTaskEquals(task, decoded);
+        Assert.assertNull(decoded.getCompressedData());
+        assertTaskEquals(task, new JsonTaskCodec().decode(new JsonTaskCodec().encode(codec.decode(bytes))));
+
+        // 低于阈值、以及设置为不压缩的队列
+        Task small = new Task("codec_queue", null, "mail", "small data", new Task.TaskStatus());
+        Assert.assertNull(codec.decode(codec.encode(small)).getCompressedData());
+        Task plain = new Task("plain_queue", null, "mail", data, new Task.TaskStatus());
+        Assert.assertTrue(codec.encode(plain).length > data.length());
+    }
+
+    /**
+     * 压缩节省的存储空间与消耗的CPU时间对比
+     */
+    @Test
+    public void compressBenchmarkTest() {
+        int count = 2000;
+        compressBenchmark(count / 4, false);// 预热
+        compressBenchmark(count, true);
+    }
+
+    private void compressBenchmark(int count, boolean print) {
+        for (int size : new int[]{1024, 8 * 1024, 32 * 1024}) {
+            Task task = new Task("codec_queue", null, "mail", mailData(size), new Task.TaskStatus());
+            TaskCodec[] codecs = {new BinaryTaskCodec(), new BinaryTaskCodec.Builder().setCompressThreshold(512).build()};
+            for (TaskCodec codec : codecs) {
+                byte[] bytes = null;
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    bytes = codec.encode(task);
+                }
+                long encodeCost = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    codec.decode(bytes).getData();
+                }
+                long decodeCost = System.nanoTime() - start;
+                if (print) {
+                    logger.info("data " + task.getData().getBytes(StandardCharsets.UTF_8).length + " bytes, "
+                            + (codec == codecs[0] ? "plain" : "compressed") + ": stored " + bytes.length + " bytes, encode " + encodeCost / count / 1000 + " us, decode " + decodeCost / count / 1000 + " us");
+                }
+            }
+        }
+    }
+
+    /**
+     * 生成模拟邮件内容的任务数据
+     *
+     * @param size 任务数据的大小
+     * @return 任务数据
+     */
+    private String mailData(int size) {
+        StringBuilder builder = new StringBuilder("{\"subject\":\"周报\",\"html\":\"");
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("<p style=\\\"margin:0\\\">第").append(i).append("行，收件人user").append(i % 37).append("@example.com</p>");
+        }
+        return builder.append("\"}").toString();
+    }
+
+    private void assertTaskEquals(Task expected, Task actual) {
+        Assert.assertEquals(expected.getQueue(), actual.getQueue());
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.isUnique(), actual.isUnique());
+        Assert.assertEquals(expected.getType(), actual.getType());
+        Assert.assertEquals(expected.getData(), actual.getData());
+        Assert.assertEquals(expected.getTaskStatus().getState(), actual.getTaskStatus().getState());
+        Assert.assertEquals(expected.getTaskStatus().getGenTimestamp(), actual.getTaskStatus().getGenTimestamp());
+        Assert.assertEquals(expected.getTaskStatus().getExcTimestamp(), actual.getTaskStatus().getExcTimestamp());
+        Assert.assertEquals(expected.getPriority(), actual.getPriority());
+        Assert.assertEquals(expected.getTaskStatus().getRetry(), actual.getTaskStatus().getRetry());
+    }
+}
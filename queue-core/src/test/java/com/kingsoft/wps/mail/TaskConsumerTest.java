@@ -0,0 +1,304 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.RedisTaskQueue;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.consumer.TaskConsumer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * 任务消费者测试，安全队列的任务通过备份队列完成，正在执行的任务数即备份队列索引中的任务数
+ */
+public class TaskConsumerTest {
+
+    private static final Logger logger = Logger.getLogger(TaskConsumerTest.class.getName());
+
+    private static final String QUEUE_NAME = "consumer_queue";
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    @Before
+    public void init() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .setAliveTimeout(Constant.ALIVE_TIMEOUT)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+        clear();
+    }
+
+    @After
+    public void destroy() throws Exception {
+        clear();
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * 所有任务都被处理一次，安全队列的任务全部完成
+     */
+    @Test
+    public void consumeTest() throws Exception {
+        pushTasks(10000);
+
+        Set<String> handled = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(10000);
+        TaskConsumer taskConsumer = new TaskConsumer.Builder(taskQueue, (data, params) -> {
+            handled.add(data);
+            latch.countDown();
+        })
+                .setConcurrency(8)
+                .setPrefetch(64)
+                .setPollTimeout(100)
+                .build();
+        taskConsumer.start();
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(taskConsumer.shutdown(5000));
+        Assert.assertEquals(10000, handled.size());
+        Assert.assertEquals(0, size());
+        Assert.assertEquals(0, inFlight());
+    }
+
+    /**
+     * 工作线程全部阻塞时，取出的任务数不超过 prefetch + concurrency
+     */
+    @Test
+    public void backpressureTest() throws Exception {
+        pushTasks(1000);
+
+        AtomicInteger handled = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        TaskConsumer taskConsumer = new TaskConsumer.Builder(taskQueue, (data, params) -> {
+            handled.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })
+                .setConcurrency(4)
+                .setPrefetch(16)
+                .setPollTimeout(100)
+                .build();
+        taskConsumer.start();
+
+        Thread.sleep(500);
+        Assert.assertEquals(4 + 16, 1000 - size());
+        Assert.assertEquals(4 + 16, inFlight());
+
+        release.countDown();
+        Assert.assertTrue(taskConsumer.shutdown(5000));
+        // 停止后处理完已预取的任务，不再获取新任务
+        Assert.assertEquals(0, inFlight());
+        Assert.assertEquals(1000, handled.get() + size());
+    }
+
+    /**
+     * 任务处理器抛出异常的任务不会被完成，留在备份队列中由备份队列监控重试
+     */
+    @Test
+    public void failureTest() throws Exception {
+        pushTasks(1000);
+
+        CountDownLatch latch = new CountDownLatch(1000);
+        TaskConsumer taskConsumer = new TaskConsumer.Builder(taskQueue, (data, params) -> {
+            latch.countDown();
+            // 任务序号为奇数的任务处理失败
+            if (Integer.parseInt(data.substring(5)) % 2 != 0) {
+                throw new IllegalStateException("handle failed: " + data);
+            }
+        })
+                .setConcurrency(4)
+                .setPollTimeout(100)
+                .build();
+        taskConsumer.start();
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(taskConsumer.shutdown(5000));
+        Assert.assertEquals(0, size());
+        Assert.assertEquals(500, inFlight());
+    }
+
+    /**
+     * 批量任务处理器每次处理多个任务，只完成处理成功的任务
+     */
+    @Test
+    public void batchConsumeTest() throws Exception {
+        pushTasks(10000);
+
+        AtomicInteger batches = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(10000);
+        TaskConsumer taskConsumer = new TaskConsumer.BatchBuilder(taskQueue, (tasks, params) -> {
+            batches.incrementAndGet();
+            boolean[] results = new boolean[tasks.size()];
+            for (int i = 0; i < tasks.size(); i++) {
+                // 任务序号为奇数的任务处理失败
+                results[i] = Integer.parseInt(tasks.get(i).getData().substring(5)) % 2 == 0;
+                latch.countDown();
+            }
+            return results;
+        })
+                .setConcurrency(4)
+                .setBatchSize(50)
+                .setPollTimeout(100)
+                .build();
+        taskConsumer.start();
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(taskConsumer.shutdown(5000));
+        Assert.assertTrue(batches.get() < 10000 / 10);
+        Assert.assertEquals(0, size());
+        Assert.assertEquals(5000, inFlight());
+    }
+
+    /**
+     * Redis不可用时获取任务立即返回，拉取线程退避，不会空转
+     */
+    @Test
+    public void unavailableTest() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        KMQueueManager unavailable = new KMQueueManager.Builder(EmbeddedRedis.HOST, port, QUEUE_NAME)
+                .setMaxWaitMillis(100L)
+                .setMaxTotal(8)
+                .setMaxIdle(8)
+                .build();
+        unavailable.init();
+
+        // 统计获取任务失败的次数
+        AtomicInteger failures = new AtomicInteger();
+        Logger queueLogger = Logger.getLogger(RedisTaskQueue.class.getName());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                failures.incrementAndGet();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        queueLogger.addHandler(handler);
+        try {
+            TaskConsumer taskConsumer = new TaskConsumer.Builder(unavailable.getTaskQueue(QUEUE_NAME), (data, params) -> {
+            })
+                    .setPollTimeout(200)
+                    .build();
+            taskConsumer.start();
+            Thread.sleep(1000);
+            Assert.assertTrue(taskConsumer.shutdown(5000));
+        } finally {
+            queueLogger.removeHandler(handler);
+            unavailable.destroy();
+        }
+        // 退避时间依次为 10, 20, 40, 80, 160, 200, 200 ... ms
+        logger.info("failed polls in 1s: " + failures.get());
+        Assert.assertTrue(failures.get() > 0);
+        Assert.assertTrue(failures.get() < 20);
+    }
+
+    /**
+     * 吞吐量随工作线程数的变化，每个任务耗时1ms
+     */
+    @Test
+    public void throughputTest() throws Exception {
+        for (int concurrency : new int[]{1, 4, 16, 64}) {
+            int count = 500 * concurrency;
+            pushTasks(count);
+
+            CountDownLatch latch = new CountDownLatch(count);
+            TaskConsumer taskConsumer = new TaskConsumer.Builder(taskQueue, (data, params) -> {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latch.countDown();
+            })
+                    .setConcurrency(concurrency)
+                    .setPrefetch(concurrency * 2)
+                    .setPollTimeout(100)
+                    .build();
+            long start = System.currentTimeMillis();
+            taskConsumer.start();
+            Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+            long cost = System.currentTimeMillis() - start;
+            taskConsumer.shutdown(5000);
+
+            logger.info("concurrency: " + concurrency + ", " + count * 1000L / Math.max(cost, 1) + " tasks/s");
+        }
+    }
+
+    private void pushTasks(int count) {
+        List<Task> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new Task(QUEUE_NAME, null, "", "task " + i, new Task.TaskStatus()));
+        }
+        taskQueue.pushTasks(tasks);
+    }
+
+    /**
+     * 任务队列中等待执行的任务数
+     */
+    private long size() {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            return jedis.llen(QUEUE_NAME);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    /**
+     * 正在执行的任务数，即备份队列索引中的任务数
+     */
+    private long inFlight() {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            return jedis.zcard(kmQueueManager.getBackUpQueueName() + Constant.BACKUP_INDEX_SUFFIX);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+
+    private void clear() {
+        String backUpQueueName = kmQueueManager.getBackUpQueueName();
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME, QUEUE_NAME + Constant.UNIQUE_SUFFIX,
+                    backUpQueueName + Constant.BACKUP_TASKS_SUFFIX, backUpQueueName + Constant.BACKUP_INDEX_SUFFIX);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+}
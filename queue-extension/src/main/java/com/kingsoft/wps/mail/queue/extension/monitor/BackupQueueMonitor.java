@@ -1,11 +1,16 @@
 package com.kingsoft.wps.mail.queue.extension.monitor;
 
-import com.alibaba.fastjson.JSON;
+import com.kingsoft.wps.mail.distributed.lock.DistributedLock;
 import com.kingsoft.wps.mail.queue.*;
 import com.kingsoft.wps.mail.queue.backup.BackupQueue;
 import com.kingsoft.wps.mail.queue.backup.RedisBackupQueue;
+import com.kingsoft.wps.mail.queue.cluster.KMJedisCluster;
+import com.kingsoft.wps.mail.queue.codec.BinaryTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.JsonTaskCodec;
+import com.kingsoft.wps.mail.queue.codec.TaskCodec;
 import com.kingsoft.wps.mail.queue.config.Constant;
 import com.kingsoft.wps.mail.utils.Assert;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
@@ -14,10 +19,11 @@ import redis.clients.util.Pool;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -26,11 +32,27 @@ import java.util.logging.Logger;
  * 备份队列监控
  * <p>
  * 超时任务重试
+ * <p>
+ * 备份队列索引分区后，多个监控实例可以同时运行，通过分布式锁认领各个分区并发地处理
+ * <p>
+ * 集群模式下每个hash tag有单独的备份队列（{@link KMQueueAdapter#getBackUpQueueName(String)}），每个备份队列需要单独的监控
  */
 public class BackupQueueMonitor extends KMQueueAdapter {
 
     private static final Logger logger = Logger.getLogger(BackupQueueMonitor.class.getName());
 
+    /**
+     * 每次从备份队列中获取的执行超时的任务数
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private static final int REDIS_DB_IDX = 0;
+
+    /**
+     * 迁移任务的分布式锁，redis string key：备份队列名称 + MIGRATE_LOCK_SUFFIX + {@link Constant#DISTR_LOCK_SUFFIX}
+     */
+    private static final String MIGRATE_LOCK_SUFFIX = "_migrate";
+
     /**
      * 任务超时重试次数
      */
@@ -69,6 +91,16 @@ public class BackupQueueMonitor extends KMQueueAdapter {
      */
     private BackupQueue backupQueue;
 
+    /**
+     * 并发处理备份队列索引各个分区的线程池
+     */
+    private ExecutorService executor;
+
+    /**
+     * 备份队列索引分区的分布式锁的过期时长，单位：ms
+     */
+    private int lockExpiryMillis;
+
     /**
      * 构造方法私有化，防止外部调用
      */
@@ -107,84 +139,191 @@ public class BackupQueueMonitor extends KMQueueAdapter {
 
     /**
      * 启动监控
+     * <p>
+     * 1.将备份队列中还没有建立索引的任务迁移到备份队列索引中；<br>
+     * 2.在线程池中并发地处理备份队列索引的各个分区，每个分区需要先获取该分区的分布式锁，
+     * 获取失败说明该分区正在被其它监控实例处理，直接跳过；<br>
+     * 3.通过备份队列索引分批获取执行超时（对应的是大于`protectedTimeout`）的任务并做处理，
+     * 未超时的任务不会被读取，每次监控的耗时只与超时的任务数有关；<br>
+     * <p>
+     * 注意，存活时间超时（对应的是大于`aliveTimeout`）的任务，在其执行超时之后才会被处理
      */
     public void monitor() {
-        Task task;
         try {
             String backUpQueueName = this.getBackUpQueueName();
             DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
             logger.info("Backup queue[" + backUpQueueName + "]Monitoring begins：" + format.format(new Date()));
-            task = backupQueue.popTask();
-            while (task != null &&
-                    !backUpQueueName.equals(task.getQueue()) &&
-                    !RedisBackupQueue.MARKER.equals(task.getType())) {
-
-                /**
-                 * 判断任务状态，分别处理
-                 * 1. 任务执行超时，且重试次数大于等于retry指定次数，则持久化到数据库
-                 * 2. 任务执行超时，且重试次数小于retry指定次数，则重新放入任务队列
-                 * 最后，如果满足以上条件，同时删除备份队列中的该任务
-                 */
-                TaskQueue taskQueue = new RedisTaskQueue(this, task.getQueue(), KMQueueManager.SAFE);
-                // 获取任务状态
-                Task.TaskStatus status = task.getTaskStatus();
-
-                long currentTimeMillis = System.currentTimeMillis();// 当前时间戳
-                long taskGenTimeMillis = status.getGenTimestamp();// 任务生成的时间戳
-                long intervalTimeMillis = currentTimeMillis - taskGenTimeMillis;// 任务的存活时间
-                if (intervalTimeMillis > this.aliveTimeout) {
-                    if (pipeline != null) {
-                        pipeline.process(taskQueue, task);// 彻底失败任务的处理
-                    }
-                    // 删除备份队列中的该任务
-                    backupQueue.finishTask(task);
-                }
 
-                long taskExcTimeMillis = status.getExcTimestamp();// 任务执行的时间戳
-                intervalTimeMillis = currentTimeMillis - taskExcTimeMillis;// 任务此次执行时间
+            // 将备份队列中还没有建立索引的任务迁移到备份队列索引中
+            migrateTasks();
 
-                if (intervalTimeMillis > this.protectedTimeout) {// 任务执行超时
+            // 执行的时间戳小于等于该值的任务即为执行超时的任务
+            long maxExcTimestamp = System.currentTimeMillis() - this.protectedTimeout;
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < backupQueue.getPartitions(); i++) {
+                final int partition = i;
+                futures.add(executor.submit(() -> monitorPartition(partition, maxExcTimestamp)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        }
 
-                    // 增加心跳健康检测
-                    if (aliveDetectHandler != null) {
+    }
 
-                        boolean isAlive = aliveDetectHandler.check(this, task);
-                        if (isAlive) {// 当前任务还在执行
-                            // 继续从备份队列中取出任务，进入下一次循环
-                            task = backupQueue.popTask();
-                            continue;
-                        }
-                    }
+    /**
+     * 将备份队列中还没有建立索引的任务迁移到备份队列索引中
+     * <p>
+     * 迁移时需要循环遍历备份队列，同一时刻只允许一个监控实例执行
+     */
+    private void migrateTasks() {
+        Jedis jedis = null;
+        DistributedLock lock = null;
+        try {
+            String lockKey = this.getBackUpQueueName() + MIGRATE_LOCK_SUFFIX + Constant.DISTR_LOCK_SUFFIX;
+            jedis = this.getResource(REDIS_DB_IDX, lockKey);
+            lock = new DistributedLock(jedis, lockKey, 0, this.lockExpiryMillis);
+            if (lock.acquire()) {
+                backupQueue.migrateTasks();
+            }
+        } catch (Throwable e) {
+            logger.info(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+            if (jedis != null) {
+                this.returnResource(jedis);
+            }
+        }
+    }
 
-                    Task originTask = JSON.parseObject(JSON.toJSONString(task), Task.class);// 保留原任务数据，用于删除该任务
-
-                    if (status.getRetry() < this.getRetryTimes()) {
-                        // 重新放入任务队列
-                        // 更新状态标记为retry
-                        status.setState(Constant.RETRY);
-                        // 更新重试次数retry + 1
-                        status.setRetry(status.getRetry() + 1);
-                        task.setTaskStatus(status);
-                        // 放入任务队列的队首，优先处理
-                        taskQueue.pushTaskToHeader(task);
-                    } else {
-                        if (pipeline != null) {
-                            pipeline.process(taskQueue, task);// 彻底失败任务的处理
-                        }
-                    }
+    /**
+     * 处理备份队列索引的一个分区
+     * <p>
+     * 持有该分区的分布式锁期间，分批获取执行超时的任务并做处理，每批处理完成后续约分布式锁，续约失败则停止处理该分区
+     *
+     * @param partition       分区序号
+     * @param maxExcTimestamp 任务执行的时间戳上限
+     */
+    private void monitorPartition(int partition, long maxExcTimestamp) {
+        Jedis jedis = null;
+        DistributedLock lock = null;
+        try {
+            String lockKey = this.getBackUpQueueName() + Constant.DISTR_LOCK_SUFFIX;
+            if (backupQueue.getPartitions() > 1) {
+                lockKey += "_" + partition;
+            }
+            jedis = this.getResource(REDIS_DB_IDX, lockKey);
+            lock = new DistributedLock(jedis, lockKey, 0, this.lockExpiryMillis);
+            if (!lock.acquire()) {
+                logger.info("Backup queue[" + this.getBackUpQueueName() + "]partition[" + partition + "]is being monitored by another monitor");
+                return;
+            }
 
-                    // 删除备份队列中的该任务
-                    backupQueue.finishTask(originTask);
+            int offset = 0;// 仍在执行（健康检测存活）而保留在备份队列中的任务数
+            List<Task> tasks = backupQueue.getExpiredTasks(partition, maxExcTimestamp, offset, BATCH_SIZE);
+            while (!tasks.isEmpty()) {
+                for (Task task : tasks) {
+                    if (!processTask(task)) {
+                        offset++;
+                    }
+                }
+                // 续约分布式锁，防止处理时间超过锁的过期时长后，其它监控实例同时处理该分区
+                if (!lock.renew()) {
+                    logger.info("Backup queue[" + this.getBackUpQueueName() + "]partition[" + partition + "]lock lost");
+                    break;
                 }
-                // 继续从备份队列中取出任务，进入下一次循环
-                task = backupQueue.popTask();
+                // 继续获取执行超时的任务
+                tasks = backupQueue.getExpiredTasks(partition, maxExcTimestamp, offset, BATCH_SIZE);
             }
-
         } catch (Throwable e) {
             logger.info(e.getMessage());
             e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+            if (jedis != null) {
+                this.returnResource(jedis);
+            }
         }
+    }
 
+    /**
+     * 处理执行超时的任务
+     * <p>
+     * 判断任务状态，分别处理
+     * 1. 任务存活时间超时，不再重试
+     * 2. 任务执行超时，且重试次数大于等于retry指定次数，则持久化到数据库
+     * 3. 任务执行超时，且重试次数小于retry指定次数，则重新放入任务队列
+     * 最后，如果满足以上条件，同时删除备份队列中的该任务
+     *
+     * @param task 执行超时的任务
+     * @return 任务已从备份队列中删除返回true，任务仍在执行（健康检测存活）返回false
+     */
+    private boolean processTask(Task task) {
+        TaskQueue taskQueue = new RedisTaskQueue(this, task.getQueue(), KMQueueManager.SAFE);
+        // 获取任务状态
+        Task.TaskStatus status = task.getTaskStatus();
+
+        long currentTimeMillis = System.currentTimeMillis();// 当前时间戳
+        long taskGenTimeMillis = status.getGenTimestamp();// 任务生成的时间戳
+        long intervalTimeMillis = currentTimeMillis - taskGenTimeMillis;// 任务的存活时间
+        if (intervalTimeMillis > this.aliveTimeout) {
+            if (pipeline != null) {
+                pipeline.process(taskQueue, task);// 彻底失败任务的处理
+            }
+            // 删除备份队列中的该任务，不再重试
+            backupQueue.finishTask(task);
+            return true;
+        }
+
+        // 任务执行超时，增加心跳健康检测
+        if (aliveDetectHandler != null) {
+
+            boolean isAlive = aliveDetectHandler.check(this, task);
+            if (isAlive) {// 当前任务还在执行，保留在备份队列中
+                return false;
+            }
+        }
+
+        Task originTask = taskCodec.decode(taskCodec.encode(task));// 保留原任务数据，用于删除该任务
+        originTask.setBackupKey(task.getBackupKey());
+
+        if (status.getRetry() < this.getRetryTimes()) {
+            // 重新放入任务队列
+            // 更新状态标记为retry
+            status.setState(Constant.RETRY);
+            // 更新重试次数retry + 1
+            status.setRetry(status.getRetry() + 1);
+            task.setTaskStatus(status);
+            // 放入任务队列的队首，优先处理
+            taskQueue.pushTaskToHeader(task);
+        } else {
+            if (pipeline != null) {
+                pipeline.process(taskQueue, task);// 彻底失败任务的处理
+            }
+        }
+
+        // 删除备份队列中的该任务
+        backupQueue.finishTask(originTask);
+        return true;
+    }
+
+    /**
+     * 关闭监控线程池以及redis连接池
+     *
+     * @throws Exception 关闭redis连接池异常
+     */
+    @Override
+    public synchronized void destroy() throws Exception {
+        executor.shutdown();
+        super.destroy();
     }
 
     /**
@@ -198,11 +337,13 @@ public class BackupQueueMonitor extends KMQueueAdapter {
          * <li>default</li>
          * <li>single</li>
          * <li>sentinel</li>
+         * <li>cluster</li>
          * </ul>
          */
         private final String REDIS_CONN_DEFAULT = "default";
         private final String REDIS_CONN_SINGLE = "single";
         private final String REDIS_CONN_SENTINEL = "sentinel";
+        private final String REDIS_CONN_CLUSTER = "cluster";
         private String REDIS_CONN_MODE;
 
         /**
@@ -230,6 +371,11 @@ public class BackupQueueMonitor extends KMQueueAdapter {
          */
         private Set<String> sentinels;
 
+        /**
+         * 集群节点
+         */
+        private Set<HostAndPort> clusterNodes;
+
         /**
          * 连接池最大分配的连接数
          */
@@ -278,6 +424,31 @@ public class BackupQueueMonitor extends KMQueueAdapter {
          */
         private AliveDetectHandler aliveDetectHandler;
 
+        /**
+         * 备份队列索引的分区数，默认1，即不分区
+         */
+        private int backupPartitions = 1;
+
+        /**
+         * 并发处理备份队列索引各个分区的线程数，默认为分区数与CPU核数中的较小值
+         */
+        private int monitorThreads;
+
+        /**
+         * 备份队列索引分区的分布式锁的过期时长，默认60秒，单位：ms
+         */
+        private int lockExpiryMillis = 60 * 1000;
+
+        /**
+         * 任务编解码器，默认为{@link BinaryTaskCodec}
+         */
+        private TaskCodec taskCodec = new BinaryTaskCodec();
+
+        /**
+         * 各个任务队列的优先级设置
+         */
+        private Map<String, TaskPriorities> taskPriorities = new HashMap<>();
+
         /**
          * 创建Builder对象
          * <p>
@@ -342,6 +513,26 @@ public class BackupQueueMonitor extends KMQueueAdapter {
             this.REDIS_CONN_MODE = this.REDIS_CONN_SENTINEL;
         }
 
+        /**
+         * 创建Builder对象
+         * <p>
+         * 采用Redis Cluster的方式，每个节点创建一个连接池，连接池的设置对每个节点生效
+         *
+         * @param clusterNodes    集群节点，至少一个，其它节点自动发现
+         * @param backUpQueueName 备份队列名称，通过{@link KMQueueManager#getBackUpQueueName(String)}获取任务队列对应的备份队列
+         */
+        public Builder(Set<HostAndPort> clusterNodes, String backUpQueueName) {
+            Assert.isTrue(clusterNodes != null && !clusterNodes.isEmpty(), "Param clusterNodes can't empty");
+            Assert.notNull(backUpQueueName, "Param backUpQueueName can't null");
+
+            this.retryTimes = 3;
+            this.aliveTimeout = Long.MAX_VALUE;
+            this.protectedTimeout = Long.MAX_VALUE;
+            this.clusterNodes = new HashSet<>(clusterNodes);
+            this.backUpQueueName = backUpQueueName;
+            this.REDIS_CONN_MODE = this.REDIS_CONN_CLUSTER;
+        }
+
         /**
          * 设置redis连接池最大分配的连接数
          * <p>
@@ -463,6 +654,77 @@ public class BackupQueueMonitor extends KMQueueAdapter {
             return this;
         }
 
+        /**
+         * 设置备份队列索引的分区数，默认1，即不分区
+         * <p>
+         * 需要与队列管理器设置的分区数相同
+         *
+         * @param backupPartitions 备份队列索引的分区数
+         * @return 返回Builder
+         */
+        public Builder setBackupPartitions(int backupPartitions) {
+            Assert.greaterThanEquals(backupPartitions, 1, "Param backupPartitions must be greater than 0");
+            this.backupPartitions = backupPartitions;
+            return this;
+        }
+
+        /**
+         * 设置并发处理备份队列索引各个分区的线程数，默认为分区数与CPU核数中的较小值
+         *
+         * @param monitorThreads 线程数
+         * @return 返回Builder
+         */
+        public Builder setMonitorThreads(int monitorThreads) {
+            Assert.greaterThanEquals(monitorThreads, 1, "Param monitorThreads must be greater than 0");
+            this.monitorThreads = monitorThreads;
+            return this;
+        }
+
+        /**
+         * 设置备份队列索引分区的分布式锁的过期时长，默认60秒，单位：ms
+         * <p>
+         * 监控实例每处理完一批任务会续约该锁；如果监控实例宕机，锁过期后其它监控实例才能处理该分区
+         *
+         * @param lockExpiryMillis 分布式锁的过期时长
+         * @return 返回Builder
+         */
+        public Builder setLockExpiryMillis(int lockExpiryMillis) {
+            Assert.greaterThanEquals(lockExpiryMillis, 1, "Param lockExpiryMillis must be greater than 0");
+            this.lockExpiryMillis = lockExpiryMillis;
+            return this;
+        }
+
+        /**
+         * 设置任务编解码器，默认为{@link BinaryTaskCodec}
+         * <p>
+         * 两种内置的编解码器都可以解码对方编码的任务；
+         * 如果还有旧版本的消费者（只能解码JSON格式），需要先设置为{@link JsonTaskCodec}，所有消费者升级之后再切换
+         *
+         * @param taskCodec 任务编解码器
+         * @return 返回Builder
+         */
+        public Builder setTaskCodec(TaskCodec taskCodec) {
+            Assert.notNull(taskCodec, "Param taskCodec can't null");
+            this.taskCodec = taskCodec;
+            return this;
+        }
+
+        /**
+         * 设置任务队列的优先级，需要与队列管理器的设置相同（{@link KMQueueManager.Builder#setPriorities(String, int, int...)}）
+         * <p>
+         * 重试的任务放回其优先级对应的列表
+         *
+         * @param queue           任务队列名称
+         * @param defaultPriority 默认优先级
+         * @param weights         各个优先级的权重
+         * @return 返回Builder
+         */
+        public Builder setPriorities(String queue, int defaultPriority, int... weights) {
+            Assert.notNull(queue, "Param queue can't null");
+            this.taskPriorities.put(queue, new TaskPriorities(defaultPriority, weights));
+            return this;
+        }
+
         public BackupQueueMonitor build() {
 
             BackupQueueMonitor queueMonitor = new BackupQueueMonitor();
@@ -485,6 +747,13 @@ public class BackupQueueMonitor extends KMQueueAdapter {
                     jedisPoolConfig.setMaxWaitMillis(this.poolMaxWaitMillis);
                     this.pool = new JedisSentinelPool("master", sentinels, jedisPoolConfig);
                     break;
+                case REDIS_CONN_CLUSTER:
+                    jedisPoolConfig = new JedisPoolConfig();
+                    jedisPoolConfig.setMaxTotal(this.poolMaxTotal);
+                    jedisPoolConfig.setMaxIdle(this.poolMaxIdle);
+                    jedisPoolConfig.setMaxWaitMillis(this.poolMaxWaitMillis);
+                    queueMonitor.cluster = new KMJedisCluster(clusterNodes, jedisPoolConfig);
+                    break;
             }
             queueMonitor.pool = this.pool;
             queueMonitor.backUpQueueName = this.backUpQueueName;
@@ -493,6 +762,19 @@ public class BackupQueueMonitor extends KMQueueAdapter {
             queueMonitor.aliveTimeout = this.aliveTimeout;
             queueMonitor.protectedTimeout = this.protectedTimeout;
             queueMonitor.aliveDetectHandler = this.aliveDetectHandler;
+            queueMonitor.backupPartitions = this.backupPartitions;
+            queueMonitor.taskCodec = this.taskCodec;
+            queueMonitor.taskPriorities = new HashMap<>(this.taskPriorities);
+            queueMonitor.lockExpiryMillis = this.lockExpiryMillis;
+
+            int threads = this.monitorThreads > 0 ? this.monitorThreads
+                    : Math.min(this.backupPartitions, Runtime.getRuntime().availableProcessors());
+            AtomicInteger threadIndex = new AtomicInteger();
+            queueMonitor.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "backup-queue-monitor-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
 
             queueMonitor.backupQueue = new RedisBackupQueue(queueMonitor);// 备份队列
 
@@ -20,7 +20,7 @@ public class MonitorTest {
         // 根据任务队列的名称构造备份队列的名称，注意：这里的任务队列参数一定要和KMQueueManager构造时传入的一一对应。
         String backUpQueueName = KMQUtils.genBackUpQueueName("worker1_queue", "worker2_queue:safe");
         // 构造Monitor监听器
-        BackupQueueMonitor backupQueueMonitor = new BackupQueueMonitor.Builder("127.0.0.1", 6379, backUpQueueName)
+        BackupQueueMonitor backupQueueMonitor = new BackupQueueMonitor.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), backUpQueueName)
                 .setMaxWaitMillis(-1L)
                 .setMaxTotal(600)
                 .setMaxIdle(300)
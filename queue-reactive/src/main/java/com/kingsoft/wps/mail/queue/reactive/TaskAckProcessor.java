@@ -0,0 +1,165 @@
+package com.kingsoft.wps.mail.queue.reactive;
+
+import com.kingsoft.wps.mail.queue.KMQueueAdapter;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.utils.Assert;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * 完成任务的操作符
+ * <p>
+ * 放在任务处理之后，收到的任务即为处理完成的任务：对于安全队列，调用{@link TaskQueue#finishTask(Task)}，再将任务传给下游；
+ * 下游的需求与取消直接传给上游
+ * <p>
+ * 只允许一个下游订阅者
+ */
+public class TaskAckProcessor implements Processor<Task, Task> {
+
+    /**
+     * 任务队列
+     */
+    private final TaskQueue taskQueue;
+
+    /**
+     * 上游的订阅
+     */
+    private Subscription upstream;
+
+    /**
+     * 下游订阅者
+     */
+    private Subscriber<? super Task> downstream;
+
+    /**
+     * 下游订阅之前，上游的结束信号：null - 未结束，Throwable - 异常结束，this - 正常结束
+     */
+    private Object terminal;
+
+    /**
+     * 是否正在将上游的订阅传给下游
+     */
+    private boolean connecting;
+
+    /**
+     * 下游是否已经收到上游的订阅
+     */
+    private boolean connected;
+
+    /**
+     * 构造方法
+     *
+     * @param taskQueue 任务所属的任务队列
+     */
+    public TaskAckProcessor(TaskQueue taskQueue) {
+        Assert.notNull(taskQueue, "Param taskQueue can't null");
+        this.taskQueue = taskQueue;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Task> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Param subscriber can't null");
+        }
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+                subscriber = null;
+            }
+        }
+        if (subscriber != null) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("TaskAckProcessor allows only one subscriber"));
+            return;
+        }
+        connect();
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        synchronized (this) {
+            if (upstream == null) {
+                upstream = subscription;
+                subscription = null;
+            }
+        }
+        if (subscription != null) {// 已经订阅了上游
+            subscription.cancel();
+            return;
+        }
+        connect();
+    }
+
+    @Override
+    public void onNext(Task task) {
+        if (KMQueueAdapter.SAFE.equals(taskQueue.getMode())) {
+            // 任务执行完成，删除备份队列的相应任务
+            taskQueue.finishTask(task);
+        }
+        downstream.onNext(task);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        Subscriber<? super Task> subscriber;
+        synchronized (this) {
+            if (!connected) {
+                terminal = t;
+                return;
+            }
+            subscriber = downstream;
+        }
+        subscriber.onError(t);
+    }
+
+    @Override
+    public void onComplete() {
+        Subscriber<? super Task> subscriber;
+        synchronized (this) {
+            if (!connected) {
+                terminal = this;
+                return;
+            }
+            subscriber = downstream;
+        }
+        subscriber.onComplete();
+    }
+
+    /**
+     * 上游与下游都已订阅时，将上游的订阅传给下游
+     */
+    private void connect() {
+        Subscription subscription;
+        Subscriber<? super Task> subscriber;
+        synchronized (this) {
+            if (connecting || upstream == null || downstream == null) {
+                return;
+            }
+            connecting = true;
+            subscription = upstream;
+            subscriber = downstream;
+        }
+        // 先传递订阅，再传递在此之前收到的结束信号
+        subscriber.onSubscribe(subscription);
+        Object pending;
+        synchronized (this) {
+            connected = true;
+            pending = terminal;
+        }
+        if (pending instanceof Throwable) {
+            subscriber.onError((Throwable) pending);
+        } else if (pending != null) {
+            subscriber.onComplete();
+        }
+    }
+}
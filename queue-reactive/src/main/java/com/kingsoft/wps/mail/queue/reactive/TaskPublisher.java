@@ -0,0 +1,271 @@
+package com.kingsoft.wps.mail.queue.reactive;
+
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.utils.Assert;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * 将任务队列发布为Reactive Streams的{@link Publisher}
+ * <p>
+ * 1.订阅者通过{@link Subscription#request(long)}表达需求，发布者按需求非阻塞地批量获取任务（{@link TaskQueue#popTasks(int, long)}），
+ * 每次最多获取min(需求, batchSize)个，没有需求时不会从任务队列获取任务；<br>
+ * 2.任务队列为空时，间隔pollIntervalMs后再次获取，等待期间不占用Redis连接和线程；<br>
+ * 3.获取任务在调度线程中执行，不会阻塞调用request的线程；同一订阅的onNext串行调用；<br>
+ * <p>
+ * 对于安全队列，发布的任务处于正在执行的状态，处理完成后需要调用{@link TaskQueue#finishTask(Task)}，
+ * 可以在处理之后使用{@link TaskAckProcessor}；取消订阅时已发布而未完成的任务，由备份队列监控重试。
+ * <p>
+ * 任务队列不会结束，发布者不会调用onComplete
+ */
+public class TaskPublisher implements Publisher<Task> {
+
+    private static final Logger logger = Logger.getLogger(TaskPublisher.class.getName());
+
+    /**
+     * 任务队列
+     */
+    private TaskQueue taskQueue;
+
+    /**
+     * 每次从任务队列中最多获取的任务数
+     */
+    private int batchSize;
+
+    /**
+     * 任务队列为空时，再次获取任务的间隔，单位：ms
+     */
+    private long pollIntervalMs;
+
+    /**
+     * 获取任务的调度线程池
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 构造方法私有化，防止外部调用
+     */
+    private TaskPublisher() {
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Task> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Param subscriber can't null");
+        }
+        subscriber.onSubscribe(new TaskSubscription(subscriber));
+    }
+
+    /**
+     * 关闭获取任务的调度线程池，所有订阅不再发布任务
+     * <p>
+     * 注意，通过{@link Builder#setScheduler(ScheduledExecutorService)}传入的线程池同样会被关闭
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * 一个订阅者的订阅
+     */
+    private class TaskSubscription implements Subscription {
+
+        private final Subscriber<? super Task> subscriber;
+
+        /**
+         * 尚未满足的需求
+         */
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * 大于0时表示已有获取任务的调度，保证同一时刻只有一个线程获取任务并调用onNext
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        TaskSubscription(Subscriber<? super Task> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Param n must be greater than 0, rule 3.9"));
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n;
+                if (next < 0) {// 溢出时为Long.MAX_VALUE，即不限需求
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+            if (wip.getAndIncrement() == 0) {
+                schedule(0);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void schedule(long delayMs) {
+            try {
+                scheduler.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+            } catch (Throwable e) {// 调度线程池已关闭
+                cancelled = true;
+                logger.info(e.getMessage());
+            }
+        }
+
+        /**
+         * 按需求获取任务并发布，任务队列为空时间隔pollIntervalMs再次获取
+         */
+        private void drain() {
+            while (true) {
+                int missed = wip.get();
+                while (!cancelled) {
+                    long demand = requested.get();
+                    if (demand == 0) {
+                        break;
+                    }
+
+                    List<Task> tasks;
+                    try {
+                        tasks = taskQueue.popTasks((int) Math.min(demand, batchSize), 0);
+                    } catch (Throwable e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (tasks.isEmpty()) {
+                        // 任务队列为空，保留当前调度，稍后再次获取
+                        schedule(pollIntervalMs);
+                        return;
+                    }
+                    if (demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-tasks.size());
+                    }
+                    for (Task task : tasks) {
+                        subscriber.onNext(task);
+                    }
+                }
+                if (cancelled || wip.addAndGet(-missed) == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 构建器，用于设置初始化参数
+     */
+    public static class Builder {
+
+        /**
+         * 任务队列
+         */
+        private TaskQueue taskQueue;
+
+        /**
+         * 每次从任务队列中最多获取的任务数，默认100
+         */
+        private int batchSize;
+
+        /**
+         * 任务队列为空时，再次获取任务的间隔，默认100ms
+         */
+        private long pollIntervalMs;
+
+        /**
+         * 获取任务的调度线程池，默认为单线程
+         */
+        private ScheduledExecutorService scheduler;
+
+        /**
+         * 创建Builder对象
+         *
+         * @param taskQueue 任务队列
+         */
+        public Builder(TaskQueue taskQueue) {
+            Assert.notNull(taskQueue, "Param taskQueue can't null");
+
+            this.taskQueue = taskQueue;
+            this.batchSize = 100;
+            this.pollIntervalMs = 100;
+        }
+
+        /**
+         * 设置每次从任务队列中最多获取的任务数，默认100
+         *
+         * @param batchSize 每次最多获取的任务数
+         * @return 返回Builder
+         */
+        public Builder setBatchSize(int batchSize) {
+            Assert.greaterThanEquals(batchSize, 1, "Param batchSize must be greater than 0");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * 设置任务队列为空时，再次获取任务的间隔，默认100ms
+         *
+         * @param pollIntervalMs 再次获取任务的间隔，单位：ms
+         * @return 返回Builder
+         */
+        public Builder setPollInterval(long pollIntervalMs) {
+            Assert.greaterThanEquals(pollIntervalMs, 1, "Param pollIntervalMs must be greater than 0");
+            this.pollIntervalMs = pollIntervalMs;
+            return this;
+        }
+
+        /**
+         * 设置获取任务的调度线程池，默认为单线程
+         *
+         * @param scheduler 调度线程池
+         * @return 返回Builder
+         */
+        public Builder setScheduler(ScheduledExecutorService scheduler) {
+            Assert.notNull(scheduler, "Param scheduler can't null");
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public TaskPublisher build() {
+            TaskPublisher taskPublisher = new TaskPublisher();
+            taskPublisher.taskQueue = this.taskQueue;
+            taskPublisher.batchSize = this.batchSize;
+            taskPublisher.pollIntervalMs = this.pollIntervalMs;
+            taskPublisher.scheduler = this.scheduler;
+            if (taskPublisher.scheduler == null) {
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread thread = new Thread(r, "task-publisher-" + this.taskQueue.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                // 关闭后不再执行等待中的获取任务
+                scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                taskPublisher.scheduler = scheduler;
+            }
+            return taskPublisher;
+        }
+    }
+}
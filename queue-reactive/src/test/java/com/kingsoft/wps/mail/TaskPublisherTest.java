@@ -0,0 +1,223 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.config.Constant;
+import com.kingsoft.wps.mail.queue.reactive.TaskAckProcessor;
+import com.kingsoft.wps.mail.queue.reactive.TaskPublisher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 任务发布者测试：需求转换为批量获取任务，处理之后完成任务
+ */
+public class TaskPublisherTest {
+
+    private static final String QUEUE_NAME = "reactive_queue";
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    /**
+     * 记录每次批量获取任务时的max参数
+     */
+    private List<Integer> pops;
+
+    @Before
+    public void init() {
+        kmQueueManager = new KMQueueManager.Builder(EmbeddedRedis.HOST, EmbeddedRedis.getInstance().getPort(), QUEUE_NAME + ":safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(600)
+                .setMaxIdle(300)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        pops = new CopyOnWriteArrayList<>();
+        TaskQueue redisTaskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+        taskQueue = new TaskQueue() {
+            @Override
+            public String getName() {
+                return redisTaskQueue.getName();
+            }
+
+            @Override
+            public String getMode() {
+                return redisTaskQueue.getMode();
+            }
+
+            @Override
+            public Task pushTask(Task task) {
+                return redisTaskQueue.pushTask(task);
+            }
+
+            @Override
+            public List<Task> pushTasks(List<Task> tasks) {
+                return redisTaskQueue.pushTasks(tasks);
+            }
+
+            @Override
+            public Task pushTaskAt(Task task, long epochMs) {
+                return redisTaskQueue.pushTaskAt(task, epochMs);
+            }
+
+            @Override
+            public void pushTaskToHeader(Task task) {
+                redisTaskQueue.pushTaskToHeader(task);
+            }
+
+            @Override
+            public Task popTask() {
+                return redisTaskQueue.popTask();
+            }
+
+            @Override
+            public List<Task> popTasks(int max, long timeoutMs) {
+                pops.add(max);
+                return redisTaskQueue.popTasks(max, timeoutMs);
+            }
+
+            @Override
+            public void finishTask(Task task) {
+                redisTaskQueue.finishTask(task);
+            }
+
+            @Override
+            public void finishTasks(List<Task> tasks) {
+                redisTaskQueue.finishTasks(tasks);
+            }
+        };
+    }
+
+    @After
+    public void destroy() throws Exception {
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            jedis.del(QUEUE_NAME);
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        kmQueueManager.destroy();
+    }
+
+    /**
+     * request(25)，每次最多获取10个：依次获取10、10、5个任务，需求满足后不再获取
+     */
+    @Test
+    public void demandTest() throws Exception {
+        pushTasks(100);
+        TaskPublisher taskPublisher = new TaskPublisher.Builder(taskQueue).setBatchSize(10).build();
+        List<Task> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(25);
+        Subscription[] subscription = new Subscription[1];
+        taskPublisher.subscribe(new Subscriber<Task>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+                s.request(25);
+            }
+
+            @Override
+            public void onNext(Task task) {
+                received.add(task);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        Assert.assertEquals(25, received.size());
+        Assert.assertEquals(java.util.Arrays.asList(10, 10, 5), pops);
+
+        // 未完成的任务保留在备份队列中
+        for (Task task : received) {
+            taskQueue.finishTask(task);
+        }
+        subscription[0].cancel();
+        taskPublisher.shutdown();
+    }
+
+    /**
+     * 处理之后完成任务，备份队列中不再保留正在执行的任务
+     */
+    @Test
+    public void ackTest() throws Exception {
+        TaskPublisher taskPublisher = new TaskPublisher.Builder(taskQueue).setBatchSize(16).setPollInterval(10).build();
+        TaskAckProcessor ackProcessor = new TaskAckProcessor(taskQueue);
+        taskPublisher.subscribe(ackProcessor);
+
+        CountDownLatch latch = new CountDownLatch(500);
+        ackProcessor.subscribe(new Subscriber<Task>() {
+            private Subscription subscription;
+
+            private int received;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription = s;
+                s.request(8);
+            }
+
+            @Override
+            public void onNext(Task task) {
+                latch.countDown();
+                // 每处理完8个任务，再请求8个
+                if (++received % 8 == 0) {
+                    subscription.request(8);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        // 订阅之后再插入任务，任务队列为空时会间隔一段时间再次获取
+        Thread.sleep(100);
+        pushTasks(500);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int max : pops) {
+            Assert.assertTrue(max <= 8);
+        }
+
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            Assert.assertEquals(0L, (long) jedis.zcard(kmQueueManager.getBackUpQueueName() + Constant.BACKUP_INDEX_SUFFIX));
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+        taskPublisher.shutdown();
+    }
+
+    private void pushTasks(int count) {
+        List<Task> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new Task(QUEUE_NAME, null, "", "task " + i, new Task.TaskStatus()));
+        }
+        taskQueue.pushTasks(tasks);
+    }
+}
@@ -0,0 +1,303 @@
+package com.kingsoft.wps.mail.queue.virtual;
+
+import com.kingsoft.wps.mail.queue.KMQueueAdapter;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskHandler;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.utils.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 基于虚拟线程的任务消费者
+ * <p>
+ * 1.每个订阅者是一个虚拟线程，以阻塞的方式从任务队列获取任务，阻塞期间不占用平台线程；<br>
+ * 2.每个任务在一个新的虚拟线程中调用任务处理器处理，对于安全队列，处理成功后调用{@link TaskQueue#finishTask(Task)}；<br>
+ * 3.同一时刻正在处理的任务最多为maxConcurrentTasks个，达到上限时订阅者停止获取任务（背压）；<br>
+ * <p>
+ * 大量空闲的订阅者、以及以I/O为主的任务处理器，不再需要同样数量的平台线程。
+ * 注意，每个阻塞中的订阅者仍然占用一个Redis连接，连接池最大分配的连接数需要大于订阅者数
+ * <p>
+ * 与{@link com.kingsoft.wps.mail.queue.consumer.TaskConsumer}一致，任务处理器抛出异常时安全队列的任务不会被完成，
+ * 由备份队列监控在执行超时后重试（{@link TaskHandler}）。
+ * 任务处理器会被多个虚拟线程同时调用，需要保证线程安全
+ */
+public class VirtualThreadTaskConsumer {
+
+    private static final Logger logger = Logger.getLogger(VirtualThreadTaskConsumer.class.getName());
+
+    /**
+     * 任务队列
+     */
+    private TaskQueue taskQueue;
+
+    /**
+     * 任务处理器
+     */
+    private TaskHandler taskHandler;
+
+    /**
+     * 业务自定义参数
+     */
+    private Object[] params;
+
+    /**
+     * 订阅者数，即同时阻塞获取任务的虚拟线程数
+     */
+    private int subscriptions;
+
+    /**
+     * 同一时刻最多正在处理的任务数
+     */
+    private int maxConcurrentTasks;
+
+    /**
+     * 任务队列为空时，订阅者每次的最大阻塞时间，单位：ms
+     */
+    private long pollTimeoutMs;
+
+    /**
+     * 剩余可以处理的任务数
+     */
+    private Semaphore permits;
+
+    /**
+     * 订阅者线程
+     */
+    private List<Thread> subscribers;
+
+    /**
+     * 处理任务的虚拟线程
+     */
+    private ExecutorService handlers;
+
+    /**
+     * 是否正在运行
+     */
+    private volatile boolean running;
+
+    /**
+     * 构造方法私有化，防止外部调用
+     */
+    private VirtualThreadTaskConsumer() {
+    }
+
+    /**
+     * 启动消费者
+     */
+    public synchronized void start() {
+        Assert.isTrue(!running && subscribers == null, "Task consumer already started");
+        running = true;
+
+        String prefix = "task-consumer-" + taskQueue.getName();
+        handlers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix + "-handler-", 0).factory());
+        subscribers = new ArrayList<>(subscriptions);
+        Thread.Builder subscriberBuilder = Thread.ofVirtual().name(prefix + "-subscriber-", 0);
+        for (int i = 0; i < subscriptions; i++) {
+            subscribers.add(subscriberBuilder.start(this::subscribe));
+        }
+        logger.info("Task consumer[" + taskQueue.getName() + "]started, subscriptions: " + subscriptions + ", maxConcurrentTasks: " + maxConcurrentTasks);
+    }
+
+    /**
+     * 停止消费者
+     * <p>
+     * 订阅者不再获取新任务，等待正在处理的任务完成；
+     * 超时后仍未完成的任务，对于安全队列，由备份队列监控重试
+     *
+     * @param timeoutMs 最大等待时间，单位：ms
+     * @return 在超时之前所有任务处理完成返回true
+     * @throws InterruptedException 线程中断异常
+     */
+    public synchronized boolean shutdown(long timeoutMs) throws InterruptedException {
+        if (subscribers == null) {
+            return true;
+        }
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Thread subscriber : subscribers) {
+            subscriber.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        handlers.shutdown();
+        boolean terminated = handlers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (!terminated) {
+            subscribers.forEach(Thread::interrupt);
+            handlers.shutdownNow();
+        }
+        logger.info("Task consumer[" + taskQueue.getName() + "]stopped");
+        return terminated;
+    }
+
+    /**
+     * 是否正在运行
+     *
+     * @return 正在运行返回true
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 订阅者：获取到处理任务的许可后，阻塞地获取一个任务，交给新的虚拟线程处理
+     */
+    private void subscribe() {
+        while (running) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            boolean submitted = false;
+            try {
+                List<Task> tasks = taskQueue.popTasks(1, pollTimeoutMs);
+                if (!tasks.isEmpty()) {
+                    Task task = tasks.get(0);
+                    handlers.execute(() -> handle(task));
+                    submitted = true;
+                }
+            } catch (Throwable e) {
+                logger.info(e.getMessage());
+                e.printStackTrace();
+            } finally {
+                if (!submitted) {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理任务
+     *
+     * @param task 队列任务
+     */
+    private void handle(Task task) {
+        try {
+            try {
+                taskHandler.handle(task.getData(), params);
+            } catch (Throwable e) {
+                logger.info(e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            if (KMQueueAdapter.SAFE.equals(taskQueue.getMode())) {
+                // 任务执行完成，删除备份队列的相应任务
+                taskQueue.finishTask(task);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * 构建器，用于设置初始化参数
+     */
+    public static class Builder {
+
+        /**
+         * 任务队列
+         */
+        private TaskQueue taskQueue;
+
+        /**
+         * 任务处理器
+         */
+        private TaskHandler taskHandler;
+
+        /**
+         * 业务自定义参数
+         */
+        private Object[] params;
+
+        /**
+         * 订阅者数，默认1
+         */
+        private int subscriptions;
+
+        /**
+         * 同一时刻最多正在处理的任务数，默认与订阅者数相同
+         */
+        private int maxConcurrentTasks;
+
+        /**
+         * 任务队列为空时，订阅者每次的最大阻塞时间，默认1000ms
+         */
+        private long pollTimeoutMs;
+
+        /**
+         * 创建Builder对象
+         *
+         * @param taskQueue   任务队列
+         * @param taskHandler 任务处理器，会被多个虚拟线程同时调用
+         * @param params      业务自定义参数
+         */
+        public Builder(TaskQueue taskQueue, TaskHandler taskHandler, Object... params) {
+            Assert.notNull(taskQueue, "Param taskQueue can't null");
+            Assert.notNull(taskHandler, "Param taskHandler can't null");
+
+            this.taskQueue = taskQueue;
+            this.taskHandler = taskHandler;
+            this.params = params;
+            this.subscriptions = 1;
+            this.pollTimeoutMs = 1000;
+        }
+
+        /**
+         * 设置订阅者数，即同时阻塞获取任务的虚拟线程数，默认1
+         * <p>
+         * 每个阻塞中的订阅者占用一个Redis连接
+         *
+         * @param subscriptions 订阅者数
+         * @return 返回Builder
+         */
+        public Builder setSubscriptions(int subscriptions) {
+            Assert.greaterThanEquals(subscriptions, 1, "Param subscriptions must be greater than 0");
+            this.subscriptions = subscriptions;
+            return this;
+        }
+
+        /**
+         * 设置同一时刻最多正在处理的任务数，默认与订阅者数相同
+         *
+         * @param maxConcurrentTasks 最多正在处理的任务数
+         * @return 返回Builder
+         */
+        public Builder setMaxConcurrentTasks(int maxConcurrentTasks) {
+            Assert.greaterThanEquals(maxConcurrentTasks, 1, "Param maxConcurrentTasks must be greater than 0");
+            this.maxConcurrentTasks = maxConcurrentTasks;
+            return this;
+        }
+
+        /**
+         * 设置任务队列为空时，订阅者每次的最大阻塞时间，默认1000ms
+         * <p>
+         * 注意，redis的阻塞超时时间以秒为单位，会向上取整到秒；同时也是停止消费者时，订阅者退出的最大延迟
+         *
+         * @param pollTimeoutMs 最大阻塞时间，单位：ms
+         * @return 返回Builder
+         */
+        public Builder setPollTimeout(long pollTimeoutMs) {
+            Assert.greaterThanEquals(pollTimeoutMs, 1, "Param pollTimeoutMs must be greater than 0");
+            this.pollTimeoutMs = pollTimeoutMs;
+            return this;
+        }
+
+        public VirtualThreadTaskConsumer build() {
+            VirtualThreadTaskConsumer taskConsumer = new VirtualThreadTaskConsumer();
+            taskConsumer.taskQueue = this.taskQueue;
+            taskConsumer.taskHandler = this.taskHandler;
+            taskConsumer.params = this.params;
+            taskConsumer.subscriptions = this.subscriptions;
+            taskConsumer.maxConcurrentTasks = this.maxConcurrentTasks > 0 ? this.maxConcurrentTasks : this.subscriptions;
+            taskConsumer.pollTimeoutMs = this.pollTimeoutMs;
+            taskConsumer.permits = new Semaphore(taskConsumer.maxConcurrentTasks);
+            return taskConsumer;
+        }
+    }
+}
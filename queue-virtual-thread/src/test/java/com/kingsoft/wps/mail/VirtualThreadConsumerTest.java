@@ -0,0 +1,92 @@
+package com.kingsoft.wps.mail;
+
+import com.kingsoft.wps.mail.queue.KMQueueManager;
+import com.kingsoft.wps.mail.queue.Task;
+import com.kingsoft.wps.mail.queue.TaskQueue;
+import com.kingsoft.wps.mail.queue.virtual.VirtualThreadTaskConsumer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 基于虚拟线程的任务消费者：大量空闲的订阅者，以及以I/O为主（每个任务耗时10ms）的任务处理器
+ */
+public class VirtualThreadConsumerTest {
+
+    private static final Logger logger = Logger.getLogger(VirtualThreadConsumerTest.class.getName());
+
+    private static final String QUEUE_NAME = "virtual_queue";
+
+    private static final int SUBSCRIPTIONS = 2000;
+
+    private static final int TASK_COUNT = 20000;
+
+    private KMQueueManager kmQueueManager;
+
+    private TaskQueue taskQueue;
+
+    @Before
+    public void init() {
+        kmQueueManager = new KMQueueManager.Builder("127.0.0.1", 6379, QUEUE_NAME + ":safe")
+                .setMaxWaitMillis(-1L)
+                .setMaxTotal(SUBSCRIPTIONS + 100)
+                .setMaxIdle(SUBSCRIPTIONS + 100)
+                .build();
+        // 初始化队列
+        kmQueueManager.init();
+        taskQueue = kmQueueManager.getTaskQueue(QUEUE_NAME);
+    }
+
+    @After
+    public void destroy() throws Exception {
+        kmQueueManager.destroy();
+    }
+
+    @Test
+    public void virtualThreadConsumerTest() throws Exception {
+        CountDownLatch latch = new CountDownLatch(TASK_COUNT);
+        VirtualThreadTaskConsumer taskConsumer = new VirtualThreadTaskConsumer.Builder(taskQueue, (data, params) -> {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            latch.countDown();
+        })
+                .setSubscriptions(SUBSCRIPTIONS)
+                .setMaxConcurrentTasks(SUBSCRIPTIONS * 2)
+                .build();
+        taskConsumer.start();
+
+        // 订阅者全部阻塞在空队列上
+        Thread.sleep(2000);
+        logger.info("idle subscriptions: " + SUBSCRIPTIONS + ", platform threads: " + ManagementFactory.getThreadMXBean().getThreadCount());
+
+        long start = System.currentTimeMillis();
+        List<Task> tasks = new ArrayList<>(TASK_COUNT);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            tasks.add(new Task(QUEUE_NAME, null, "", "mail proxy task " + i, new Task.TaskStatus()));
+        }
+        taskQueue.pushTasks(tasks);
+        Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long cost = System.currentTimeMillis() - start;
+        logger.info("tasks: " + TASK_COUNT + ", " + TASK_COUNT * 1000L / Math.max(cost, 1) + " tasks/s, platform threads: " + ManagementFactory.getThreadMXBean().getThreadCount());
+
+        Assert.assertTrue(taskConsumer.shutdown(10000));
+        Jedis jedis = kmQueueManager.getResource();
+        try {
+            Assert.assertEquals(0L, (long) jedis.zcard(kmQueueManager.getBackUpQueueName() + "_index"));
+        } finally {
+            kmQueueManager.returnResource(jedis);
+        }
+    }
+}